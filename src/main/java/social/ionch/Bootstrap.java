@@ -33,6 +33,7 @@
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
 
 import com.playsawdust.chipper.toolbox.io.LoggerPrintStream;
 
@@ -45,9 +46,12 @@
 import social.ionch.api.JsonObjectBuilder;
 import social.ionch.api.Version;
 import social.ionch.api.config.ConfigSectionHandler;
+import social.ionch.api.db.ActiveDatabase;
+import social.ionch.api.db.Database;
 import social.ionch.api.db.DatabaseFactoryRegistry;
 import social.ionch.api.plugin.Plugin;
 import social.ionch.api.plugin.PluginManager;
+import social.ionch.builtin.ActivityPubPlugin;
 import social.ionch.builtin.H2DatabasePlugin;
 
 public class Bootstrap {
@@ -113,6 +117,7 @@ public static void main(String[] args) {
 		log.info("{} starting up", Version.FULLER);
 		
 		PluginManager.addPlugin(new H2DatabasePlugin());
+		PluginManager.addPlugin(new ActivityPubPlugin());
 		
 		List<File> search = cfg.recursiveGet(JsonArray.class, "plugins.search").stream()
 				.map(Bootstrap::jsonElementToString)
@@ -182,6 +187,29 @@ public static void main(String[] args) {
 			System.exit(3);
 			return;
 		}
+		String backend = cfg.recursiveGet(String.class, "database.backend");
+		Database db;
+		try {
+			JsonObject dbCfg = cfg.recursiveGet(JsonObject.class, "database."+backend);
+			db = DatabaseFactoryRegistry.get(backend).fabricate(dbCfg == null ? new JsonObject() : dbCfg);
+		} catch (Throwable t) {
+			log.error("Could not connect to the {} database", backend, t);
+			System.exit(7);
+			return;
+		}
+		ActiveDatabase.$$_set(SkeletonKey.get(), db);
+		log.info("Using database {}", db.getUri());
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			log.info("Shutting down");
+			for (Plugin p : Lists.reverse(resolved)) {
+				try {
+					p.shutdown();
+				} catch (Throwable t) {
+					log.error("Plugin {} threw an exception during shutdown", p.getId(), t);
+				}
+			}
+			db.destroy();
+		}, "ionChannel shutdown"));
 		sw.start();
 		for (Plugin p : resolved) {
 			log.debug("Initializing {}", p.toFriendlyString());
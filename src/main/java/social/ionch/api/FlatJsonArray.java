@@ -0,0 +1,174 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api;
+
+import java.io.ByteArrayOutputStream;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+
+import blue.endless.jankson.JsonArray;
+import blue.endless.jankson.JsonElement;
+import blue.endless.jankson.api.SyntaxError;
+import social.ionch.api.JsonEventReader.Event;
+
+/**
+ * The array counterpart of {@link FlatJsonObject}: a read-only JSON array backed by a single
+ * exactly-sized Object array, holding the same kinds of values.
+ * <p>
+ * Immutable and thread-safe.
+ */
+public final class FlatJsonArray {
+	private static final Object[] NO_VALUES = new Object[0];
+
+	public static final FlatJsonArray EMPTY = new FlatJsonArray(NO_VALUES);
+
+	private final Object[] values;
+
+	private FlatJsonArray(Object[] values) {
+		this.values = values;
+	}
+
+	/**
+	 * @return a flat copy of the given tree. Comments are dropped.
+	 */
+	public static FlatJsonArray copyOf(JsonArray arr) {
+		if (arr.size() == 0) return EMPTY;
+		Object[] values = new Object[arr.size()];
+		int count = 0;
+		for (JsonElement ele : arr) {
+			values[count++] = FlatJsonObject.fromElement(ele);
+		}
+		return new FlatJsonArray(values);
+	}
+
+	public int size() {
+		return values.length;
+	}
+
+	public boolean isEmpty() {
+		return values.length == 0;
+	}
+
+	/**
+	 * @return the value at the index, or null for JSON null
+	 */
+	public @Nullable Object get(int index) {
+		return values[index];
+	}
+
+	/**
+	 * @return the value at the index if it's a string, otherwise null
+	 */
+	public @Nullable String getString(int index) {
+		Object o = values[index];
+		return o instanceof String ? (String)o : null;
+	}
+
+	/**
+	 * @return the value at the index if it's an object, otherwise null
+	 */
+	public @Nullable FlatJsonObject getObject(int index) {
+		Object o = values[index];
+		return o instanceof FlatJsonObject ? (FlatJsonObject)o : null;
+	}
+
+	/**
+	 * @return the value at the index if it's an array, otherwise null
+	 */
+	public @Nullable FlatJsonArray getArray(int index) {
+		Object o = values[index];
+		return o instanceof FlatJsonArray ? (FlatJsonArray)o : null;
+	}
+
+	/**
+	 * @return a read-only view of the values
+	 */
+	public List<Object> asList() {
+		return new AbstractList<Object>() {
+			@Override
+			public Object get(int index) {
+				return values[index];
+			}
+
+			@Override
+			public int size() {
+				return values.length;
+			}
+		};
+	}
+
+	/**
+	 * @return a new, mutable Jankson tree with the same contents, for marshalling
+	 */
+	public JsonArray toJsonArray() {
+		JsonArray arr = new JsonArray();
+		for (Object o : values) {
+			arr.add(FlatJsonObject.toElement(o));
+		}
+		return arr;
+	}
+
+	public void writeTo(JsonWriter writer) {
+		writer.beginArray();
+		for (Object o : values) {
+			FlatJsonObject.writeValue(writer, o);
+		}
+		writer.endArray();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o == this || (o instanceof FlatJsonArray && Arrays.equals(((FlatJsonArray)o).values, values));
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(values);
+	}
+
+	/**
+	 * @return this array as strict JSON
+	 */
+	@Override
+	public String toString() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonWriter writer = new JsonWriter(out);
+		writeTo(writer);
+		writer.flush();
+		return new String(out.toByteArray(), Charsets.UTF_8);
+	}
+
+	/**
+	 * Read the array the reader is positioned at the start of. Afterwards the reader is positioned
+	 * on its end.
+	 */
+	/*package*/ static FlatJsonArray read(JsonEventReader reader) throws SyntaxError {
+		Object[] values = NO_VALUES;
+		int count = 0;
+		while (reader.next() != Event.END_ARRAY) {
+			if (count == values.length) values = Arrays.copyOf(values, Math.max(8, count * 2));
+			values[count++] = FlatJsonObject.readValue(reader);
+		}
+		return count == 0 ? EMPTY : new FlatJsonArray(count == values.length ? values : Arrays.copyOf(values, count));
+	}
+
+}
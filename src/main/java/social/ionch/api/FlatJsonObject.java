@@ -0,0 +1,380 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import blue.endless.jankson.JsonArray;
+import blue.endless.jankson.JsonElement;
+import blue.endless.jankson.JsonNull;
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.JsonPrimitive;
+import blue.endless.jankson.api.SyntaxError;
+import social.ionch.api.JsonEventReader.Event;
+
+/**
+ * A read-only JSON object for data that's kept in memory for a long time and read far more than
+ * it's written, such as cached remote actors. Keys are kept sorted in one array and looked up by
+ * binary search, and values in a parallel array, with none of the per-entry map nodes and comment
+ * slots a {@link JsonObject} carries. Objects with the same set of keys share the key array.
+ * <p>
+ * Values are plain Java objects: {@link String}, {@link Long}, {@link Double}, {@link Boolean},
+ * {@link BigInteger} or {@link BigDecimal} for numbers too big for the others, FlatJsonObject,
+ * {@link FlatJsonArray}, or null for JSON null. Key order in the document is not kept.
+ * <p>
+ * Obtain one from {@link Nojankson#loadFlat(String)}, or by copying a tree with
+ * {@link #copyOf(JsonObject)}. Immutable and thread-safe.
+ */
+public final class FlatJsonObject {
+	/** Key arrays are shared between every object with the same keys, and dropped when unused. */
+	private static final Interner<Shape> SHAPES = Interners.newWeakInterner();
+	private static final Object[] NO_VALUES = new Object[0];
+
+	public static final FlatJsonObject EMPTY = new FlatJsonObject(SHAPES.intern(new Shape(new String[0])), NO_VALUES);
+
+	private static final class Shape {
+		final String[] keys;
+		final int hash;
+
+		Shape(String[] keys) {
+			this.keys = keys;
+			this.hash = Arrays.hashCode(keys);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Shape && ((Shape)o).hash == hash && Arrays.equals(((Shape)o).keys, keys);
+		}
+	}
+
+	private final Shape shape;
+	private final Object[] values;
+
+	private FlatJsonObject(Shape shape, Object[] values) {
+		this.shape = shape;
+		this.values = values;
+	}
+
+	/**
+	 * Build an object from parallel arrays of keys and values, in any order. If a key appears more
+	 * than once, the last value wins, as with {@link JsonObject#put}. The arrays are reused.
+	 */
+	private static FlatJsonObject of(String[] keys, Object[] values, int count) {
+		if (count == 0) return EMPTY;
+		// Insertion sort: objects are small, and often arrive sorted or nearly so
+		for (int i = 1; i < count; i++) {
+			String k = keys[i];
+			Object v = values[i];
+			int j = i - 1;
+			while (j >= 0 && keys[j].compareTo(k) > 0) {
+				keys[j + 1] = keys[j];
+				values[j + 1] = values[j];
+				j--;
+			}
+			keys[j + 1] = k;
+			values[j + 1] = v;
+		}
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			if (size > 0 && keys[size - 1].equals(keys[i])) {
+				values[size - 1] = values[i];
+			} else {
+				keys[size] = keys[i];
+				values[size++] = values[i];
+			}
+		}
+		return new FlatJsonObject(SHAPES.intern(new Shape(Arrays.copyOf(keys, size))), Arrays.copyOf(values, size));
+	}
+
+	/**
+	 * @return a flat copy of the given tree. Comments are dropped.
+	 */
+	public static FlatJsonObject copyOf(JsonObject obj) {
+		String[] keys = new String[obj.size()];
+		Object[] values = new Object[keys.length];
+		int count = 0;
+		for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
+			keys[count] = entry.getKey();
+			values[count++] = fromElement(entry.getValue());
+		}
+		return of(keys, values, count);
+	}
+
+	public int size() {
+		return values.length;
+	}
+
+	public boolean isEmpty() {
+		return values.length == 0;
+	}
+
+	/**
+	 * @return the keys, in sorted order
+	 */
+	public List<String> keys() {
+		return new AbstractList<String>() {
+			@Override
+			public String get(int index) {
+				return shape.keys[index];
+			}
+
+			@Override
+			public int size() {
+				return values.length;
+			}
+		};
+	}
+
+	/**
+	 * @return the key at the given position in sorted order
+	 */
+	public String keyAt(int index) {
+		return shape.keys[index];
+	}
+
+	/**
+	 * @return the value belonging to {@link #keyAt(int) keyAt(index)}
+	 */
+	public @Nullable Object valueAt(int index) {
+		return values[index];
+	}
+
+	/**
+	 * @return the position of the key, or a negative number if it's absent
+	 */
+	public int indexOf(String key) {
+		return Arrays.binarySearch(shape.keys, key);
+	}
+
+	/**
+	 * @return true if the key is present, even if its value is null
+	 */
+	public boolean containsKey(String key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * @return the value for the key, or null if it's absent or JSON null
+	 */
+	public @Nullable Object get(String key) {
+		int i = indexOf(key);
+		return i < 0 ? null : values[i];
+	}
+
+	/**
+	 * @return the value for the key if it's a string, otherwise null
+	 */
+	public @Nullable String getString(String key) {
+		Object o = get(key);
+		return o instanceof String ? (String)o : null;
+	}
+
+	/**
+	 * @return the value for the key as a long if it's a number, otherwise the default
+	 */
+	public long getLong(String key, long defaultValue) {
+		Object o = get(key);
+		return o instanceof Number ? ((Number)o).longValue() : defaultValue;
+	}
+
+	/**
+	 * @return the value for the key as a double if it's a number, otherwise the default
+	 */
+	public double getDouble(String key, double defaultValue) {
+		Object o = get(key);
+		return o instanceof Number ? ((Number)o).doubleValue() : defaultValue;
+	}
+
+	/**
+	 * @return the value for the key if it's a boolean, otherwise the default
+	 */
+	public boolean getBoolean(String key, boolean defaultValue) {
+		Object o = get(key);
+		return o instanceof Boolean ? (Boolean)o : defaultValue;
+	}
+
+	/**
+	 * @return the value for the key if it's an object, otherwise null
+	 */
+	public @Nullable FlatJsonObject getObject(String key) {
+		Object o = get(key);
+		return o instanceof FlatJsonObject ? (FlatJsonObject)o : null;
+	}
+
+	/**
+	 * @return the value for the key if it's an array, otherwise null
+	 */
+	public @Nullable FlatJsonArray getArray(String key) {
+		Object o = get(key);
+		return o instanceof FlatJsonArray ? (FlatJsonArray)o : null;
+	}
+
+	/**
+	 * @return a new, mutable Jankson tree with the same contents, for marshalling. Keys come out in
+	 * 		sorted order.
+	 */
+	public JsonObject toJsonObject() {
+		JsonObject obj = new JsonObject();
+		for (int i = 0; i < values.length; i++) {
+			obj.put(shape.keys[i], toElement(values[i]));
+		}
+		return obj;
+	}
+
+	public void writeTo(JsonWriter writer) {
+		writer.beginObject();
+		for (int i = 0; i < values.length; i++) {
+			writer.key(shape.keys[i]);
+			writeValue(writer, values[i]);
+		}
+		writer.endObject();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) return true;
+		if (!(o instanceof FlatJsonObject)) return false;
+		FlatJsonObject other = (FlatJsonObject)o;
+		// Interned, so equal key sets are the same Shape
+		return other.shape == shape && Arrays.equals(other.values, values);
+	}
+
+	@Override
+	public int hashCode() {
+		return shape.hash * 31 + Arrays.hashCode(values);
+	}
+
+	/**
+	 * @return this object as strict JSON
+	 */
+	@Override
+	public String toString() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonWriter writer = new JsonWriter(out);
+		writeTo(writer);
+		writer.flush();
+		return new String(out.toByteArray(), Charsets.UTF_8);
+	}
+
+	/**
+	 * Read the object the reader is positioned at the start of, for building a flat object into a
+	 * larger structure being read with a {@link JsonBinder}. Afterwards the reader is positioned on
+	 * its end.
+	 * @throws IllegalStateException if the reader isn't positioned on {@link Event#START_OBJECT}
+	 */
+	public static FlatJsonObject read(JsonEventReader reader) throws SyntaxError {
+		if (reader.current() != Event.START_OBJECT) throw new IllegalStateException("Not positioned on an object: "+reader.current());
+		return readMembers(reader);
+	}
+
+	private static FlatJsonObject readMembers(JsonEventReader reader) throws SyntaxError {
+		String[] keys = new String[8];
+		Object[] values = new Object[8];
+		int count = 0;
+		while (reader.next() != Event.END_OBJECT) {
+			if (count == keys.length) {
+				keys = Arrays.copyOf(keys, count * 2);
+				values = Arrays.copyOf(values, count * 2);
+			}
+			keys[count] = reader.getString();
+			reader.next();
+			values[count++] = readValue(reader);
+		}
+		return of(keys, values, count);
+	}
+
+	/*package*/ static @Nullable Object readValue(JsonEventReader reader) throws SyntaxError {
+		switch (reader.current()) {
+		case START_OBJECT:
+			return readMembers(reader);
+		case START_ARRAY:
+			return FlatJsonArray.read(reader);
+		case STRING:
+			return reader.getString();
+		case NUMBER:
+			return normalize(reader.getNumber());
+		case BOOLEAN:
+			return reader.getBoolean();
+		case NULL:
+			return null;
+		default:
+			throw new IllegalStateException("Not positioned on a value: "+reader.current());
+		}
+	}
+
+	private static Object normalize(Number n) {
+		if (n instanceof Integer || n instanceof Short || n instanceof Byte) return n.longValue();
+		if (n instanceof Float) return n.doubleValue();
+		if (n instanceof Long || n instanceof Double || n instanceof BigInteger || n instanceof BigDecimal) return n;
+		return new BigDecimal(n.toString());
+	}
+
+	/*package*/ static @Nullable Object fromElement(@Nullable JsonElement ele) {
+		if (ele == null || ele instanceof JsonNull) return null;
+		if (ele instanceof JsonObject) return copyOf((JsonObject)ele);
+		if (ele instanceof JsonArray) return FlatJsonArray.copyOf((JsonArray)ele);
+		if (ele instanceof JsonPrimitive) {
+			Object o = ((JsonPrimitive)ele).getValue();
+			if (o instanceof Number) return normalize((Number)o);
+			if (o instanceof Boolean) return o;
+			return String.valueOf(o);
+		}
+		throw new IllegalArgumentException("Don't know how to copy "+ele.getClass().getName());
+	}
+
+	/*package*/ static JsonElement toElement(@Nullable Object o) {
+		if (o == null) return JsonNull.INSTANCE;
+		if (o instanceof FlatJsonObject) return ((FlatJsonObject)o).toJsonObject();
+		if (o instanceof FlatJsonArray) return ((FlatJsonArray)o).toJsonArray();
+		if (o instanceof Boolean) return (Boolean)o ? JsonPrimitive.TRUE : JsonPrimitive.FALSE;
+		return new JsonPrimitive(o);
+	}
+
+	/*package*/ static void writeValue(JsonWriter writer, @Nullable Object o) {
+		if (o == null) {
+			writer.nullValue();
+		} else if (o instanceof String) {
+			writer.value((String)o);
+		} else if (o instanceof Number) {
+			writer.value((Number)o);
+		} else if (o instanceof Boolean) {
+			writer.value(((Boolean)o).booleanValue());
+		} else if (o instanceof FlatJsonObject) {
+			((FlatJsonObject)o).writeTo(writer);
+		} else {
+			((FlatJsonArray)o).writeTo(writer);
+		}
+	}
+
+}
@@ -16,6 +16,8 @@
 
 package social.ionch.api;
 
+import java.io.OutputStream;
+
 import blue.endless.jankson.JsonArray;
 import blue.endless.jankson.JsonElement;
 import blue.endless.jankson.JsonGrammar;
@@ -74,4 +76,20 @@ public String toJson() {
 		return array.toJson(JsonGrammar.STRICT);
 	}
 
+	/**
+	 * Write this as strict JSON into the given writer, without rendering it to a String first.
+	 */
+	public void writeTo(JsonWriter writer) {
+		writer.value(array);
+	}
+
+	/**
+	 * Write this as strict UTF-8 JSON to the given stream, which is flushed but left open.
+	 */
+	public void writeTo(OutputStream out) {
+		JsonWriter writer = new JsonWriter(out);
+		writer.value(array);
+		writer.flush();
+	}
+
 }
@@ -0,0 +1,591 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+import blue.endless.jankson.JsonArray;
+import blue.endless.jankson.JsonElement;
+import blue.endless.jankson.JsonNull;
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.JsonPrimitive;
+import blue.endless.jankson.api.SyntaxError;
+import social.ionch.api.JsonEventReader.Event;
+
+/**
+ * A compact binary form of JSON trees, for caching and storing documents that would otherwise be
+ * run through the text tokenizer again every time they're read.
+ * <p>
+ * Each value is a one-byte tag followed by its payload. Integers are zigzag varints, doubles are
+ * their raw IEEE bits, and big numbers keep their exact decimal text. Strings are length-prefixed
+ * UTF-8. Object keys go through a per-document dictionary: the first use of a key spells it out,
+ * and every later use is a varint index, which for ActivityPub documents removes most of their
+ * bulk.
+ * <p>
+ * Decoding works in place on a {@link ByteBuffer}, heap or direct, and can either build a Jankson
+ * tree or stream STRICT JSON text straight into a {@link JsonWriter} without building anything.
+ * Round trips are lossless: text, then binary, then text again gives the same JSON that writing the
+ * tree would have.
+ */
+public final class JsonBinary {
+	private static final byte MAGIC = (byte)0xB7;
+	private static final byte VERSION = 1;
+
+	private static final int TAG_NULL = 0;
+	private static final int TAG_FALSE = 1;
+	private static final int TAG_TRUE = 2;
+	/** zigzag varint */
+	private static final int TAG_LONG = 3;
+	/** 8 bytes, big-endian IEEE 754 */
+	private static final int TAG_DOUBLE = 4;
+	/** varint length, then the ASCII decimal text of a BigInteger or BigDecimal */
+	private static final int TAG_BIG = 5;
+	/** varint length, then UTF-8 */
+	private static final int TAG_STRING = 6;
+	/** varint count, then that many values */
+	private static final int TAG_ARRAY = 7;
+	/** varint count, then that many key references, each followed by a value */
+	private static final int TAG_OBJECT = 8;
+
+	private JsonBinary() {}
+
+	/**
+	 * @return the binary form of the given tree
+	 */
+	public static byte[] encode(JsonElement element) {
+		Encoder enc = new Encoder();
+		enc.write(MAGIC);
+		enc.write(VERSION);
+		enc.element(element);
+		return enc.toByteArray();
+	}
+
+	/**
+	 * Encode the next value from a reader, straight from the text, without building a tree for it.
+	 * Afterwards the reader is positioned on the last event of the value.
+	 */
+	public static byte[] encode(JsonEventReader reader) throws SyntaxError {
+		Encoder enc = new Encoder();
+		enc.write(MAGIC);
+		enc.write(VERSION);
+		if (reader.next() == Event.END_DOCUMENT) throw new SyntaxError("Expected JSON value, got end of input");
+		enc.event(reader);
+		return enc.toByteArray();
+	}
+
+	/**
+	 * @see #decode(ByteBuffer)
+	 */
+	public static JsonElement decode(byte[] data) throws SyntaxError {
+		return decode(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Build a tree out of the remaining bytes of the given buffer. The buffer's position is left
+	 * alone.
+	 * @throws SyntaxError if the data is truncated or isn't in this format
+	 */
+	public static JsonElement decode(ByteBuffer data) throws SyntaxError {
+		Decoder dec = new Decoder(data);
+		JsonElement result = dec.element();
+		dec.requireEnd();
+		return result;
+	}
+
+	/**
+	 * Write the remaining bytes of the given buffer out as STRICT JSON text, without building a
+	 * tree. The buffer's position is left alone.
+	 * @throws SyntaxError if the data is truncated or isn't in this format
+	 */
+	public static void transcode(ByteBuffer data, JsonWriter writer) throws SyntaxError {
+		Decoder dec = new Decoder(data);
+		dec.transcode(writer);
+		dec.requireEnd();
+	}
+
+	/**
+	 * @return the given binary data as STRICT JSON text
+	 */
+	public static String toJson(byte[] data) throws SyntaxError {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+		JsonWriter writer = new JsonWriter(out);
+		transcode(ByteBuffer.wrap(data), writer);
+		writer.flush();
+		return new String(out.toByteArray(), Charsets.UTF_8);
+	}
+
+	private static final class Encoder {
+		byte[] out = new byte[256];
+		int size;
+		final Map<String, Integer> keys = Maps.newHashMap();
+		byte[] scratch = new byte[64];
+
+		void element(JsonElement element) {
+			if (element == null || element instanceof JsonNull) {
+				write(TAG_NULL);
+			} else if (element instanceof JsonObject) {
+				JsonObject obj = (JsonObject)element;
+				write(TAG_OBJECT);
+				varint(obj.size());
+				for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
+					key(entry.getKey());
+					element(entry.getValue());
+				}
+			} else if (element instanceof JsonArray) {
+				JsonArray arr = (JsonArray)element;
+				write(TAG_ARRAY);
+				varint(arr.size());
+				for (JsonElement ele : arr) {
+					element(ele);
+				}
+			} else if (element instanceof JsonPrimitive) {
+				Object value = ((JsonPrimitive)element).getValue();
+				if (value instanceof Number) {
+					number((Number)value);
+				} else if (value instanceof Boolean) {
+					write((Boolean)value ? TAG_TRUE : TAG_FALSE);
+				} else {
+					write(TAG_STRING);
+					string(String.valueOf(value));
+				}
+			} else {
+				throw new IllegalArgumentException("Don't know how to encode "+element.getClass().getName());
+			}
+		}
+
+		void event(JsonEventReader reader) throws SyntaxError {
+			switch (reader.current()) {
+			case START_OBJECT: {
+				write(TAG_OBJECT);
+				// The count isn't known until the end, so leave room for it and fill it in after
+				int slot = reserveCount();
+				int count = 0;
+				while (reader.next() != Event.END_OBJECT) {
+					key(reader.getString());
+					reader.next();
+					event(reader);
+					count++;
+				}
+				fillCount(slot, count);
+				break;
+			}
+			case START_ARRAY: {
+				write(TAG_ARRAY);
+				int slot = reserveCount();
+				int count = 0;
+				while (reader.next() != Event.END_ARRAY) {
+					event(reader);
+					count++;
+				}
+				fillCount(slot, count);
+				break;
+			}
+			case STRING:
+				write(TAG_STRING);
+				string(reader.getString());
+				break;
+			case NUMBER:
+				number(reader.getNumber());
+				break;
+			case BOOLEAN:
+				write(reader.getBoolean() ? TAG_TRUE : TAG_FALSE);
+				break;
+			case NULL:
+				write(TAG_NULL);
+				break;
+			default:
+				throw new IllegalStateException("Not positioned on a value: "+reader.current());
+			}
+		}
+
+		void number(Number n) {
+			if (n instanceof Double || n instanceof Float) {
+				write(TAG_DOUBLE);
+				long bits = Double.doubleToRawLongBits(n.doubleValue());
+				for (int shift = 56; shift >= 0; shift -= 8) {
+					write((int)(bits >>> shift));
+				}
+			} else if (n instanceof BigInteger || n instanceof BigDecimal) {
+				write(TAG_BIG);
+				string(n.toString());
+			} else {
+				write(TAG_LONG);
+				long v = n.longValue();
+				varint((v << 1) ^ (v >> 63));
+			}
+		}
+
+		/**
+		 * A key is written as a varint: 0 followed by the key itself the first time it's seen, and
+		 * its index plus one from then on.
+		 */
+		void key(String key) {
+			Integer index = keys.get(key);
+			if (index != null) {
+				varint(index + 1);
+			} else {
+				keys.put(key, keys.size());
+				varint(0);
+				string(key);
+			}
+		}
+
+		/**
+		 * Like UTF-8, except that unpaired surrogates are encoded as if they were characters of
+		 * their own instead of being replaced, so that no string is ever changed by a round trip.
+		 */
+		void string(String s) {
+			int len = s.length();
+			if (scratch.length < len * 3) scratch = new byte[len * 3];
+			int n = 0;
+			for (int i = 0; i < len; i++) {
+				char c = s.charAt(i);
+				if (c < 0x80) {
+					scratch[n++] = (byte)c;
+				} else if (c < 0x800) {
+					scratch[n++] = (byte)(0xc0 | (c >> 6));
+					scratch[n++] = (byte)(0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					scratch[n++] = (byte)(0xf0 | (cp >> 18));
+					scratch[n++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+					scratch[n++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+					scratch[n++] = (byte)(0x80 | (cp & 0x3f));
+				} else {
+					scratch[n++] = (byte)(0xe0 | (c >> 12));
+					scratch[n++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+					scratch[n++] = (byte)(0x80 | (c & 0x3f));
+				}
+			}
+			varint(n);
+			write(scratch, 0, n);
+		}
+
+		void varint(long v) {
+			while ((v & ~0x7FL) != 0) {
+				write((int)((v & 0x7f) | 0x80));
+				v >>>= 7;
+			}
+			write((int)v);
+		}
+
+		/**
+		 * Leave a byte for a count that isn't known yet, which is all most counts need.
+		 * @return where the count goes, for {@link #fillCount(int, int)}
+		 */
+		int reserveCount() {
+			int slot = size;
+			write(0);
+			return slot;
+		}
+
+		/**
+		 * Write a count into the byte left by {@link #reserveCount()}. A count too big for one byte
+		 * moves everything written since along to make room, which only happens for containers of
+		 * more than 127 items.
+		 */
+		void fillCount(int slot, int count) {
+			int width = 1;
+			for (int v = count >>> 7; v != 0; v >>>= 7) width++;
+			if (width > 1) {
+				ensureRoom(width - 1);
+				System.arraycopy(out, slot + 1, out, slot + width, size - slot - 1);
+				size += width - 1;
+			}
+			int v = count;
+			for (int i = 0; i < width - 1; i++) {
+				out[slot + i] = (byte)((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			out[slot + width - 1] = (byte)v;
+		}
+
+		void write(int b) {
+			if (size == out.length) ensureRoom(1);
+			out[size++] = (byte)b;
+		}
+
+		void write(byte[] b, int off, int len) {
+			ensureRoom(len);
+			System.arraycopy(b, off, out, size, len);
+			size += len;
+		}
+
+		void ensureRoom(int n) {
+			if (out.length - size < n) out = Arrays.copyOf(out, Math.max(out.length * 2, size + n));
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(out, size);
+		}
+	}
+
+	private static final class Decoder {
+		final ByteBuffer buf;
+		final int end;
+		int pos;
+		String[] keys = new String[16];
+		int keyCount;
+		/** For strings in a direct buffer, which have to be copied out before they can be decoded. */
+		byte[] scratch;
+
+		Decoder(ByteBuffer data) throws SyntaxError {
+			this.buf = data;
+			this.pos = data.position();
+			this.end = data.limit();
+			if (end - pos < 2 || buf.get(pos) != MAGIC) throw new SyntaxError("Not binary JSON");
+			if (buf.get(pos + 1) != VERSION) throw new SyntaxError("Unsupported binary JSON version " + buf.get(pos + 1));
+			pos += 2;
+		}
+
+		JsonElement element() throws SyntaxError {
+			int tag = readByte();
+			switch (tag) {
+			case TAG_NULL:
+				return JsonNull.INSTANCE;
+			case TAG_FALSE:
+				return JsonPrimitive.FALSE;
+			case TAG_TRUE:
+				return JsonPrimitive.TRUE;
+			case TAG_LONG:
+				return JsonPrimitive.of(readLong());
+			case TAG_DOUBLE:
+				return JsonPrimitive.of(readDouble());
+			case TAG_BIG: {
+				Number big = readBig();
+				return big instanceof BigDecimal ? JsonPrimitive.of((BigDecimal)big) : JsonPrimitive.of((BigInteger)big);
+			}
+			case TAG_STRING:
+				return JsonPrimitive.of(readString());
+			case TAG_ARRAY: {
+				int count = readCount();
+				JsonArray arr = new JsonArray();
+				for (int i = 0; i < count; i++) {
+					arr.add(element());
+				}
+				return arr;
+			}
+			case TAG_OBJECT: {
+				int count = readCount();
+				JsonObject obj = new JsonObject();
+				for (int i = 0; i < count; i++) {
+					String key = readKey();
+					obj.put(key, element());
+				}
+				return obj;
+			}
+			default:
+				throw new SyntaxError("Unknown binary JSON tag " + tag + " at byte " + (pos - 1));
+			}
+		}
+
+		void transcode(JsonWriter writer) throws SyntaxError {
+			int tag = readByte();
+			switch (tag) {
+			case TAG_NULL:
+				writer.nullValue();
+				break;
+			case TAG_FALSE:
+				writer.value(false);
+				break;
+			case TAG_TRUE:
+				writer.value(true);
+				break;
+			case TAG_LONG:
+				writer.value(readLong());
+				break;
+			case TAG_DOUBLE:
+				writer.value(readDouble());
+				break;
+			case TAG_BIG:
+				writer.value(readBig());
+				break;
+			case TAG_STRING: {
+				int len = readCount();
+				require(len);
+				if (buf.hasArray()) {
+					writer.valueUtf8(buf.array(), buf.arrayOffset() + pos, len);
+				} else {
+					writer.valueUtf8(copyOut(len), 0, len);
+				}
+				pos += len;
+				break;
+			}
+			case TAG_ARRAY: {
+				int count = readCount();
+				writer.beginArray();
+				for (int i = 0; i < count; i++) {
+					transcode(writer);
+				}
+				writer.endArray();
+				break;
+			}
+			case TAG_OBJECT: {
+				int count = readCount();
+				writer.beginObject();
+				for (int i = 0; i < count; i++) {
+					writer.key(readKey());
+					transcode(writer);
+				}
+				writer.endObject();
+				break;
+			}
+			default:
+				throw new SyntaxError("Unknown binary JSON tag " + tag + " at byte " + (pos - 1));
+			}
+		}
+
+		void requireEnd() throws SyntaxError {
+			if (pos != end) throw new SyntaxError("Unexpected data after the end of the binary JSON, at byte " + pos);
+		}
+
+		String readKey() throws SyntaxError {
+			long ref = readVarint();
+			if (ref != 0) {
+				if (ref > keyCount) throw new SyntaxError("Bad binary JSON key reference " + ref + " at byte " + pos);
+				return keys[(int)ref - 1];
+			}
+			String key = readString();
+			if (keyCount == keys.length) keys = Arrays.copyOf(keys, keyCount * 2);
+			keys[keyCount++] = key;
+			return key;
+		}
+
+		Number readBig() throws SyntaxError {
+			String text = readString();
+			try {
+				if (text.indexOf('.') >= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0) {
+					return new BigDecimal(text);
+				}
+				return new BigInteger(text);
+			} catch (NumberFormatException e) {
+				throw new SyntaxError("Malformed number in binary JSON: " + text);
+			}
+		}
+
+		long readLong() throws SyntaxError {
+			long zigzag = readVarint();
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		double readDouble() throws SyntaxError {
+			require(8);
+			long bits = 0;
+			for (int i = 0; i < 8; i++) {
+				bits = (bits << 8) | (buf.get(pos++) & 0xff);
+			}
+			return Double.longBitsToDouble(bits);
+		}
+
+		String readString() throws SyntaxError {
+			int len = readCount();
+			require(len);
+			byte[] arr;
+			int off;
+			if (buf.hasArray()) {
+				arr = buf.array();
+				off = buf.arrayOffset() + pos;
+			} else {
+				arr = copyOut(len);
+				off = 0;
+			}
+			pos += len;
+			return decodeUtf8(arr, off, len);
+		}
+
+		byte[] copyOut(int len) {
+			if (scratch == null || scratch.length < len) scratch = new byte[Math.max(len, 64)];
+			for (int i = 0; i < len; i++) {
+				scratch[i] = buf.get(pos + i);
+			}
+			return scratch;
+		}
+
+		/**
+		 * The inverse of {@link Encoder#string(String)}. The encoder only ever writes well-formed
+		 * sequences, so this doesn't try to be a validating decoder.
+		 */
+		String decodeUtf8(byte[] arr, int off, int len) throws SyntaxError {
+			int end = off + len;
+			int i = off;
+			while (i < end && arr[i] >= 0) i++;
+			if (i == end) return new String(arr, off, len, Charsets.ISO_8859_1);
+
+			char[] chars = new char[len];
+			int n = 0;
+			for (i = off; i < end; ) {
+				int b = arr[i++] & 0xff;
+				if (b < 0x80) {
+					chars[n++] = (char)b;
+				} else if (b < 0xe0) {
+					if (i >= end) throw truncatedString();
+					chars[n++] = (char)(((b & 0x1f) << 6) | (arr[i++] & 0x3f));
+				} else if (b < 0xf0) {
+					if (i + 1 >= end) throw truncatedString();
+					chars[n++] = (char)(((b & 0x0f) << 12) | ((arr[i] & 0x3f) << 6) | (arr[i + 1] & 0x3f));
+					i += 2;
+				} else {
+					if (i + 2 >= end) throw truncatedString();
+					int cp = ((b & 0x07) << 18) | ((arr[i] & 0x3f) << 12) | ((arr[i + 1] & 0x3f) << 6) | (arr[i + 2] & 0x3f);
+					i += 3;
+					chars[n++] = Character.highSurrogate(cp);
+					chars[n++] = Character.lowSurrogate(cp);
+				}
+			}
+			return new String(chars, 0, n);
+		}
+
+		SyntaxError truncatedString() {
+			return new SyntaxError("Truncated string in binary JSON before byte " + pos);
+		}
+
+		int readCount() throws SyntaxError {
+			long v = readVarint();
+			// Every element takes at least a byte, so a count can't be bigger than what's left
+			if (v > end - pos) throw new SyntaxError("Binary JSON length " + v + " runs past the end, at byte " + pos);
+			return (int)v;
+		}
+
+		long readVarint() throws SyntaxError {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				v |= (long)(b & 0x7f) << shift;
+				if ((b & 0x80) == 0) return v;
+			}
+			throw new SyntaxError("Malformed varint in binary JSON at byte " + pos);
+		}
+
+		int readByte() throws SyntaxError {
+			require(1);
+			return buf.get(pos++) & 0xff;
+		}
+
+		void require(int n) throws SyntaxError {
+			if (end - pos < n) throw new SyntaxError("Binary JSON is truncated at byte " + pos);
+		}
+	}
+
+}
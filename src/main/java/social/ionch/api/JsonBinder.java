@@ -0,0 +1,255 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import blue.endless.jankson.JsonElement;
+import blue.endless.jankson.api.DeserializationException;
+import blue.endless.jankson.api.SyntaxError;
+import social.ionch.api.JsonEventReader.Event;
+
+/**
+ * Fills in objects straight from a {@link JsonEventReader}, skipping both the intermediate Jankson
+ * tree and Jankson's reflective marshaller. Each JSON key is bound explicitly to a setter, so the
+ * key names (including any {@code @SerializedName} overrides on the target class) are spelled out
+ * right where the binder is built.
+ * <p>
+ * Keys without a binding are skipped at the tokenizer level. Register binders with
+ * {@link Nojankson.Builder#registerBinder} to have {@link Nojankson#fromJson(String, Class)} and
+ * friends use them.
+ * <p>
+ * Immutable and thread-safe.
+ */
+public final class JsonBinder<T> {
+
+	/**
+	 * Reads one key's value into the target. Called with the reader positioned on the first event
+	 * of the value, and must leave it on the last event of the value, like
+	 * {@link JsonEventReader#readElement()} does.
+	 */
+	@FunctionalInterface
+	public interface FieldReader<T> {
+		void read(T target, JsonEventReader reader) throws SyntaxError, DeserializationException;
+	}
+
+	@FunctionalInterface
+	public interface BooleanSetter<T> {
+		void accept(T target, boolean value);
+	}
+
+	private final Supplier<T> factory;
+	private final String[] keys;
+	private final byte[][] keysUtf8;
+	private final FieldReader<T>[] readers;
+
+	private JsonBinder(Supplier<T> factory, List<String> keys, List<FieldReader<T>> readers) {
+		this.factory = factory;
+		this.keys = keys.toArray(new String[0]);
+		this.keysUtf8 = new byte[this.keys.length][];
+		for (int i = 0; i < this.keys.length; i++) {
+			this.keysUtf8[i] = this.keys[i].getBytes(Charsets.UTF_8);
+		}
+		@SuppressWarnings("unchecked")
+		FieldReader<T>[] arr = readers.toArray(new FieldReader[0]);
+		this.readers = arr;
+	}
+
+	/**
+	 * @param factory makes a new, empty target object
+	 */
+	public static <T> Builder<T> builder(Supplier<T> factory) {
+		return new Builder<>(factory);
+	}
+
+	/**
+	 * Read the object the reader is positioned on. Values of the wrong type for their binding are
+	 * skipped, like {@link Nojankson#fromJson(blue.endless.jankson.JsonObject, Class)} does.
+	 * @return the filled-in object, or null if the reader is positioned on a JSON null
+	 */
+	public T read(JsonEventReader reader) throws SyntaxError {
+		try {
+			return read(reader, false);
+		} catch (DeserializationException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Read the object the reader is positioned on, failing on values of the wrong type for their
+	 * binding, like {@link Nojankson#fromJsonCarefully(blue.endless.jankson.JsonObject, Class)}
+	 * does.
+	 * @return the filled-in object, or null if the reader is positioned on a JSON null
+	 */
+	public T readCarefully(JsonEventReader reader) throws SyntaxError, DeserializationException {
+		return read(reader, true);
+	}
+
+	private T read(JsonEventReader reader, boolean careful) throws SyntaxError, DeserializationException {
+		if (reader.current() == Event.NULL) return null;
+		if (reader.current() != Event.START_OBJECT) {
+			if (careful) throw new DeserializationException("Expected an object, got "+reader.current());
+			reader.skipValue();
+			return null;
+		}
+		T t = factory.get();
+		outer: while (reader.next() == Event.KEY) {
+			for (int i = 0; i < keys.length; i++) {
+				if (reader.stringEquals(keysUtf8[i], keys[i])) {
+					int depth = reader.getDepth();
+					reader.next();
+					try {
+						readers[i].read(t, reader);
+					} catch (DeserializationException e) {
+						if (careful) throw e;
+						// the mismatch may have been found partway into the value
+						reader.skipToDepth(depth);
+					}
+					continue outer;
+				}
+			}
+			reader.skipValue();
+		}
+		return t;
+	}
+
+	private static DeserializationException mismatch(String expected, JsonEventReader reader) {
+		return new DeserializationException("Expected "+expected+", got "+reader.current());
+	}
+
+	public static final class Builder<T> {
+		private final Supplier<T> factory;
+		private final List<String> keys = Lists.newArrayList();
+		private final List<FieldReader<T>> readers = Lists.newArrayList();
+
+		private Builder(Supplier<T> factory) {
+			this.factory = factory;
+		}
+
+		/**
+		 * Bind a key to arbitrary reading logic.
+		 */
+		public Builder<T> field(String key, FieldReader<T> reader) {
+			if (keys.contains(key)) throw new IllegalArgumentException("Key \""+key+"\" is already bound");
+			keys.add(key);
+			readers.add(reader);
+			return this;
+		}
+
+		/**
+		 * Bind a key to a string setter. JSON null sets null.
+		 */
+		public Builder<T> string(String key, BiConsumer<T, String> setter) {
+			return field(key, (t, r) -> {
+				if (r.current() == Event.NULL) {
+					setter.accept(t, null);
+				} else if (r.current() == Event.STRING) {
+					setter.accept(t, r.getString());
+				} else {
+					throw mismatch("a string", r);
+				}
+			});
+		}
+
+		/**
+		 * Bind a key to an integral setter.
+		 */
+		public Builder<T> longValue(String key, ObjLongConsumer<T> setter) {
+			return field(key, (t, r) -> {
+				if (r.current() != Event.NUMBER) throw mismatch("a number", r);
+				setter.accept(t, r.getLong());
+			});
+		}
+
+		/**
+		 * Bind a key to a floating-point setter.
+		 */
+		public Builder<T> doubleValue(String key, ObjDoubleConsumer<T> setter) {
+			return field(key, (t, r) -> {
+				if (r.current() != Event.NUMBER) throw mismatch("a number", r);
+				setter.accept(t, r.getDouble());
+			});
+		}
+
+		/**
+		 * Bind a key to a boolean setter.
+		 */
+		public Builder<T> booleanValue(String key, BooleanSetter<T> setter) {
+			return field(key, (t, r) -> {
+				if (r.current() != Event.BOOLEAN) throw mismatch("a boolean", r);
+				setter.accept(t, r.getBoolean());
+			});
+		}
+
+		/**
+		 * Bind a key to a setter taking a list of strings. A lone string is accepted as a list of
+		 * one, since ActivityPub producers love to collapse single-element arrays. JSON null sets
+		 * null.
+		 */
+		public Builder<T> stringList(String key, BiConsumer<T, List<String>> setter) {
+			return field(key, (t, r) -> {
+				switch (r.current()) {
+				case NULL:
+					setter.accept(t, null);
+					break;
+				case STRING:
+					setter.accept(t, Lists.newArrayList(r.getString()));
+					break;
+				case START_ARRAY:
+					List<String> list = Lists.newArrayList();
+					while (r.next() != Event.END_ARRAY) {
+						if (r.current() != Event.STRING) throw mismatch("a string", r);
+						list.add(r.getString());
+					}
+					setter.accept(t, list);
+					break;
+				default:
+					throw mismatch("an array of strings", r);
+				}
+			});
+		}
+
+		/**
+		 * Bind a key to a setter taking a nested object, read with another binder. JSON null sets
+		 * null. The nested object is always read carefully; when the outer object isn't, a
+		 * mismatch anywhere inside it skips the nested object as a whole.
+		 */
+		public <V> Builder<T> object(String key, JsonBinder<V> binder, BiConsumer<T, V> setter) {
+			return field(key, (t, r) -> setter.accept(t, binder.read(r, true)));
+		}
+
+		/**
+		 * Bind a key to a setter taking the value as a Jankson tree, for parts of a document that
+		 * are too freeform to bind field-by-field.
+		 */
+		public Builder<T> element(String key, BiConsumer<T, JsonElement> setter) {
+			return field(key, (t, r) -> setter.accept(t, r.readElement()));
+		}
+
+		public JsonBinder<T> build() {
+			return new JsonBinder<>(factory, keys, readers);
+		}
+	}
+
+}
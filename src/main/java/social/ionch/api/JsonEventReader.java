@@ -0,0 +1,336 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import blue.endless.jankson.JsonArray;
+import blue.endless.jankson.JsonElement;
+import blue.endless.jankson.JsonNull;
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.JsonPrimitive;
+import blue.endless.jankson.api.SyntaxError;
+
+/**
+ * Pull-style reader over strict JSON, for walking documents one event at a time instead of building
+ * a whole tree for them. Obtain one from {@link Nojankson#reader}.
+ * <p>
+ * Each call to {@link #next()} advances to the next {@link Event}. While positioned on a scalar or
+ * a key, its contents can be read with {@link #getString()}, {@link #getNumber()} or
+ * {@link #getBoolean()}. Subtrees nobody cares about can be passed over with {@link #skipValue()},
+ * and ones that are wanted in full can be built with {@link #readElement()}.
+ * <p>
+ * Not thread-safe.
+ */
+public final class JsonEventReader implements Closeable {
+
+	public enum Event {
+		START_OBJECT,
+		END_OBJECT,
+		START_ARRAY,
+		END_ARRAY,
+		/** An object key. Its value is the next event. */
+		KEY,
+		STRING,
+		NUMBER,
+		BOOLEAN,
+		NULL,
+		/** The root value has been fully read. Returned forever once reached. */
+		END_DOCUMENT,
+		;
+	}
+
+	// What the grammar allows next
+	private static final int EXPECT_VALUE = 0;
+	private static final int EXPECT_FIRST_ARRAY_VALUE = 1;
+	private static final int EXPECT_ARRAY_VALUE = 2;
+	private static final int EXPECT_FIRST_KEY = 3;
+	private static final int EXPECT_KEY = 4;
+	private static final int EXPECT_COLON = 5;
+	private static final int EXPECT_SEPARATOR = 6;
+	private static final int EXPECT_EOF = 7;
+
+	private final JsonTokener tokener;
+	private final Closeable closeable;
+
+	private Event event;
+	private boolean bool;
+	private int expect = EXPECT_VALUE;
+
+	/** For each open container, {@code true} if it's an object. */
+	private boolean[] stack = new boolean[16];
+	private int depth;
+
+	/*package*/ JsonEventReader(JsonTokener tokener, @Nullable Closeable closeable) {
+		this.tokener = tokener;
+		this.closeable = closeable;
+	}
+
+	/**
+	 * Advance to the next event.
+	 * @return the new current event
+	 * @throws SyntaxError if the input is not valid JSON
+	 */
+	public Event next() throws SyntaxError {
+		if (event == Event.END_DOCUMENT) return event;
+		while (true) {
+			int token = tokener.advanceToToken();
+			switch (expect) {
+			case EXPECT_COLON:
+				if (token != JsonTokener.TOKEN_COLON)
+					throw tokener.createParseException(null, "Expected COLON, got " + token, true);
+				expect = EXPECT_VALUE;
+				continue;
+			case EXPECT_SEPARATOR:
+				if (token == JsonTokener.TOKEN_COMMA) {
+					expect = stack[depth - 1] ? EXPECT_KEY : EXPECT_ARRAY_VALUE;
+					continue;
+				}
+				if (token == JsonTokener.TOKEN_OBJECT_END && stack[depth - 1])
+					return endContainer(Event.END_OBJECT);
+				if (token == JsonTokener.TOKEN_ARRAY_END && !stack[depth - 1])
+					return endContainer(Event.END_ARRAY);
+				throw tokener.createParseException(null, stack[depth - 1]
+						? "Expected a comma or end of the object instead of " + token
+						: "Expected a comma or end of the array instead of " + token, true);
+			case EXPECT_FIRST_KEY:
+				if (token == JsonTokener.TOKEN_OBJECT_END)
+					return endContainer(Event.END_OBJECT);
+				// fall through
+			case EXPECT_KEY:
+				if (token != JsonTokener.TOKEN_STRING)
+					throw tokener.createParseException(null, "Expected STRING, got " + token, true);
+				expect = EXPECT_COLON;
+				return event = Event.KEY;
+			case EXPECT_FIRST_ARRAY_VALUE:
+				if (token == JsonTokener.TOKEN_ARRAY_END)
+					return endContainer(Event.END_ARRAY);
+				// fall through
+			case EXPECT_ARRAY_VALUE:
+			case EXPECT_VALUE:
+				return startValue(token);
+			case EXPECT_EOF:
+				if (token != JsonTokener.TOKEN_EOF)
+					throw tokener.createParseException(null, "Expected end of input, got " + token, true);
+				tokener.release();
+				return event = Event.END_DOCUMENT;
+			default:
+				throw new AssertionError("Impossible state "+expect);
+			}
+		}
+	}
+
+	private Event startValue(int token) throws SyntaxError {
+		switch (token) {
+		case JsonTokener.TOKEN_OBJECT_START:
+			push(true);
+			expect = EXPECT_FIRST_KEY;
+			return event = Event.START_OBJECT;
+		case JsonTokener.TOKEN_ARRAY_START:
+			push(false);
+			expect = EXPECT_FIRST_ARRAY_VALUE;
+			return event = Event.START_ARRAY;
+		case JsonTokener.TOKEN_STRING:
+			event = Event.STRING;
+			break;
+		case JsonTokener.TOKEN_NUMBER:
+			event = Event.NUMBER;
+			break;
+		case JsonTokener.TOKEN_TRUE:
+		case JsonTokener.TOKEN_FALSE:
+			bool = token == JsonTokener.TOKEN_TRUE;
+			event = Event.BOOLEAN;
+			break;
+		case JsonTokener.TOKEN_NULL:
+			event = Event.NULL;
+			break;
+		default:
+			throw tokener.createParseException(null, "Expected JSON value, got " + token, true);
+		}
+		expect = depth == 0 ? EXPECT_EOF : EXPECT_SEPARATOR;
+		return event;
+	}
+
+	private void push(boolean object) {
+		if (depth == stack.length) {
+			stack = Arrays.copyOf(stack, depth * 2);
+		}
+		stack[depth++] = object;
+	}
+
+	private Event endContainer(Event end) {
+		depth--;
+		expect = depth == 0 ? EXPECT_EOF : EXPECT_SEPARATOR;
+		return event = end;
+	}
+
+	/**
+	 * @return the current event, or null if {@link #next()} has not been called yet
+	 */
+	public @Nullable Event current() {
+		return event;
+	}
+
+	/**
+	 * @return how many objects and arrays are currently open around the reader's position
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return the key or string the reader is positioned on
+	 * @throws IllegalStateException if the current event isn't {@link Event#KEY KEY} or
+	 * 		{@link Event#STRING STRING}
+	 */
+	public String getString() {
+		if (event != Event.KEY && event != Event.STRING) throw new IllegalStateException("Not positioned on a string: "+event);
+		return tokener.stringValue();
+	}
+
+	/**
+	 * Compare the key or string the reader is positioned on without turning it into a String.
+	 * @param utf8 {@code str} encoded as UTF-8
+	 */
+	/*package*/ boolean stringEquals(byte[] utf8, String str) {
+		if (event != Event.KEY && event != Event.STRING) throw new IllegalStateException("Not positioned on a string: "+event);
+		return tokener.stringEquals(utf8, str);
+	}
+
+	/**
+	 * @return the number the reader is positioned on
+	 * @throws IllegalStateException if the current event isn't {@link Event#NUMBER NUMBER}
+	 */
+	public Number getNumber() throws SyntaxError {
+		if (event != Event.NUMBER) throw new IllegalStateException("Not positioned on a number: "+event);
+		return tokener.numberValue();
+	}
+
+	/**
+	 * Like {@link #getNumber()}, but without boxing or going through a String for plain integers.
+	 * Fractions are truncated.
+	 * @throws IllegalStateException if the current event isn't {@link Event#NUMBER NUMBER}
+	 */
+	public long getLong() throws SyntaxError {
+		if (event != Event.NUMBER) throw new IllegalStateException("Not positioned on a number: "+event);
+		return tokener.longValue();
+	}
+
+	/**
+	 * Like {@link #getNumber()}, but without boxing or going through a String for plain integers.
+	 * @throws IllegalStateException if the current event isn't {@link Event#NUMBER NUMBER}
+	 */
+	public double getDouble() throws SyntaxError {
+		if (event != Event.NUMBER) throw new IllegalStateException("Not positioned on a number: "+event);
+		return tokener.doubleValue();
+	}
+
+	/**
+	 * @return the boolean the reader is positioned on
+	 * @throws IllegalStateException if the current event isn't {@link Event#BOOLEAN BOOLEAN}
+	 */
+	public boolean getBoolean() {
+		if (event != Event.BOOLEAN) throw new IllegalStateException("Not positioned on a boolean: "+event);
+		return bool;
+	}
+
+	/**
+	 * Pass over the value at the reader's position without building anything for it. If positioned
+	 * on a key, skips that key's value. If positioned at the start of an object or array, skips to
+	 * its matching end. On a scalar, does nothing.
+	 */
+	public void skipValue() throws SyntaxError {
+		if (event == Event.KEY) next();
+		if (event == Event.START_OBJECT || event == Event.START_ARRAY) {
+			skipToDepth(depth - 1);
+		}
+	}
+
+	/**
+	 * Skip forward until the given number of containers are open, without building anything.
+	 */
+	/*package*/ void skipToDepth(int target) throws SyntaxError {
+		tokener.skipStrings = true;
+		try {
+			while (depth > target) {
+				next();
+			}
+		} finally {
+			tokener.skipStrings = false;
+		}
+	}
+
+	/**
+	 * Build the value at the reader's position into a tree. If positioned on a key, reads that key's
+	 * value. Afterwards the reader is positioned on the last event of the value.
+	 * @throws IllegalStateException if the reader isn't positioned on a key or value
+	 */
+	public JsonElement readElement() throws SyntaxError {
+		if (event == Event.KEY) next();
+		if (event == null) throw new IllegalStateException("Not positioned on a value: "+event);
+		switch (event) {
+		case START_OBJECT:
+			JsonObject obj = new JsonObject();
+			while (next() != Event.END_OBJECT) {
+				String key = getString();
+				next();
+				obj.put(key, readElement());
+			}
+			return obj;
+		case START_ARRAY:
+			JsonArray arr = new JsonArray();
+			while (next() != Event.END_ARRAY) {
+				arr.add(readElement());
+			}
+			return arr;
+		case STRING:
+			return new JsonPrimitive(getString());
+		case NUMBER:
+			return new JsonPrimitive(getNumber());
+		case BOOLEAN:
+			return bool ? JsonPrimitive.TRUE : JsonPrimitive.FALSE;
+		case NULL:
+			return JsonNull.INSTANCE;
+		default:
+			throw new IllegalStateException("Not positioned on a value: "+event);
+		}
+	}
+
+	/**
+	 * Give the tokener's buffers back to the pool early, for readers abandoned before the end of the
+	 * document. Nothing more can be read afterwards.
+	 */
+	/*package*/ void release() {
+		tokener.release();
+		expect = EXPECT_EOF;
+	}
+
+	/**
+	 * Close the underlying stream, if this reader was opened on one. Nothing more can be read
+	 * afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		release();
+		if (closeable != null) closeable.close();
+	}
+
+}
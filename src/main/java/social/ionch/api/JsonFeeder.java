@@ -0,0 +1,240 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+import blue.endless.jankson.JsonElement;
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.api.DeserializationException;
+import blue.endless.jankson.api.SyntaxError;
+
+/**
+ * Push-style front end to {@link Nojankson}, for request bodies that arrive a chunk at a time from
+ * non-blocking I/O. Chunks are handed to {@link #feed(ByteBuffer)} as they come in, which never
+ * blocks; once {@link #isComplete()} says the document is all there, or the sender has hit end of
+ * input, the result is parsed out of the collected bytes in one pass.
+ * <p>
+ * While feeding, bytes are only scanned for string and bracket boundaries, which is enough to tell
+ * when an object or array closes, and to reject junk sent after it straight away.
+ * <p>
+ * Obtain one from {@link Nojankson#feeder()}. Not thread-safe, but it may be handed between threads
+ * with the usual happens-before guarantees, as async I/O callbacks do.
+ */
+public final class JsonFeeder {
+	private static final int INITIAL_SIZE = 4 * 1024;
+
+	private final Nojankson nojankson;
+	private final JsonLimits limits;
+	private @Nullable MessageDigest digest;
+
+	private byte[] data = new byte[INITIAL_SIZE];
+	private int size;
+
+	// Structural scanner state
+	private int depth;
+	private boolean inString;
+	private boolean escape;
+	private boolean complete;
+
+	/*package*/ JsonFeeder(Nojankson nojankson) {
+		this.nojankson = nojankson;
+		this.limits = nojankson.getLimits();
+	}
+
+	/**
+	 * Take in the next chunk of the document.
+	 * @return true if the root value is now known to be complete; see {@link #isComplete()}
+	 * @throws SyntaxError if the brackets don't balance, or anything but whitespace follows a
+	 * 		complete document
+	 * @throws JsonLimitException if the document is already bigger or deeper than the Nojankson's
+	 * 		limits allow, in which case nothing more should be read from the sender
+	 */
+	public boolean feed(byte[] chunk, int off, int len) throws SyntaxError {
+		checkSize(len);
+		scan(chunk, off, len);
+		if (digest != null) digest.update(chunk, off, len);
+		ensureCapacity(len);
+		System.arraycopy(chunk, off, data, size, len);
+		size += len;
+		return complete;
+	}
+
+	/**
+	 * @see #feed(byte[], int, int)
+	 */
+	public boolean feed(byte[] chunk) throws SyntaxError {
+		return feed(chunk, 0, chunk.length);
+	}
+
+	/**
+	 * Take in the remaining bytes of the given buffer, advancing its position to its limit.
+	 * @see #feed(byte[], int, int)
+	 */
+	public boolean feed(ByteBuffer chunk) throws SyntaxError {
+		int len = chunk.remaining();
+		if (chunk.hasArray()) {
+			feed(chunk.array(), chunk.arrayOffset() + chunk.position(), len);
+			chunk.position(chunk.limit());
+		} else {
+			checkSize(len);
+			ensureCapacity(len);
+			chunk.get(data, size, len);
+			scan(data, size, len);
+			if (digest != null) digest.update(data, size, len);
+			size += len;
+		}
+		return complete;
+	}
+
+	/**
+	 * Feed every chunk to the given digest as well, in the same pass that scans it, so that the body
+	 * can be checked against its {@code Digest} header without going over it again. Only chunks fed
+	 * from now on are counted.
+	 * @param digest the digest, or null to stop
+	 */
+	public JsonFeeder digest(@Nullable MessageDigest digest) {
+		this.digest = digest;
+		return this;
+	}
+
+	/**
+	 * @return true once an object, array or string at the root has been closed. Documents that are a
+	 * 		bare number or literal can't be known to be complete until end of input.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return how many bytes have been fed so far
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Forget everything fed so far, keeping the buffer for the next document. The digest, if any, is
+	 * reset too.
+	 */
+	public void reset() {
+		if (digest != null) digest.reset();
+		size = 0;
+		depth = 0;
+		inString = false;
+		escape = false;
+		complete = false;
+	}
+
+	/**
+	 * Parse the document fed so far. Call once it's complete, or once the input has ended.
+	 * @see Nojankson#load(byte[], int, int)
+	 */
+	public JsonObject load() throws SyntaxError {
+		return nojankson.load(data, 0, size);
+	}
+
+	/**
+	 * @see #load()
+	 * @see Nojankson#loadElement(byte[], int, int)
+	 */
+	public JsonElement loadElement() throws SyntaxError {
+		return nojankson.loadElement(data, 0, size);
+	}
+
+	/**
+	 * @see #load()
+	 * @see Nojankson#fromJson(byte[], int, int, Class)
+	 */
+	public <T> T fromJson(Class<T> clazz) throws SyntaxError {
+		return nojankson.fromJson(data, 0, size, clazz);
+	}
+
+	/**
+	 * @see #load()
+	 * @see Nojankson#fromJsonCarefully(byte[], int, int, Class)
+	 */
+	public <T> T fromJsonCarefully(Class<T> clazz) throws SyntaxError, DeserializationException {
+		return nojankson.fromJsonCarefully(data, 0, size, clazz);
+	}
+
+	/**
+	 * Walk the document fed so far one event at a time. Nothing may be fed while the reader is in
+	 * use.
+	 * @see Nojankson#reader(byte[], int, int)
+	 */
+	public JsonEventReader reader() throws SyntaxError {
+		return nojankson.reader(data, 0, size);
+	}
+
+	private void checkSize(int more) throws JsonLimitException {
+		if ((long)size + more > limits.getMaxInputBytes())
+			throw new JsonLimitException("Input is longer than the limit of " + limits.getMaxInputBytes() + " bytes");
+	}
+
+	private void ensureCapacity(int more) {
+		if (data.length - size >= more) return;
+		long needed = (long)size + more;
+		if (needed > Integer.MAX_VALUE - 8) throw new OutOfMemoryError("JSON document too large to buffer");
+		data = Arrays.copyOf(data, (int)Math.max(needed, Math.min((long)data.length * 2, Integer.MAX_VALUE - 8)));
+	}
+
+	private void scan(byte[] chunk, int off, int len) throws SyntaxError {
+		for (int i = off; i < off + len; i++) {
+			int b = chunk[i];
+			if (complete) {
+				if (b != ' ' && b != '\n' && b != '\r' && b != '\t')
+					throw new SyntaxError("Unexpected data after the end of the document, at byte " + (size + i - off));
+				continue;
+			}
+			if (inString) {
+				if (escape) {
+					escape = false;
+				} else if (b == '\\') {
+					escape = true;
+				} else if (b == '"') {
+					inString = false;
+					if (depth == 0) complete = true;
+				}
+				continue;
+			}
+			switch (b) {
+			case '"':
+				inString = true;
+				break;
+			case '{':
+			case '[':
+				if (++depth > limits.getMaxDepth())
+					throw new JsonLimitException("Nesting is deeper than the limit of " + limits.getMaxDepth());
+				break;
+			case '}':
+			case ']':
+				if (depth == 0)
+					throw new SyntaxError("Unbalanced '" + (char)b + "', at byte " + (size + i - off));
+				if (--depth == 0) complete = true;
+				break;
+			default:
+				// Everything else is left for the real parser to judge
+			}
+		}
+	}
+
+}
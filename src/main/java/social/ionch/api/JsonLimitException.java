@@ -0,0 +1,39 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api;
+
+import blue.endless.jankson.api.SyntaxError;
+
+/**
+ * Thrown when a document breaks one of the {@link JsonLimits} it's being parsed under. Parsing stops
+ * at the point the limit is crossed, before anything more is built.
+ * <p>
+ * These are expected to be thrown at will by hostile peers, so they don't carry a stack trace.
+ */
+public final class JsonLimitException extends SyntaxError {
+	private static final long serialVersionUID = 1L;
+
+	public JsonLimitException(String message) {
+		super(message);
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api;
+
+/**
+ * Caps on how much a single document may make the parser do, for input from peers that can't be
+ * trusted. Limits are checked as the input is tokenized, so a document that breaks one fails with a
+ * {@link JsonLimitException} before the rest of it is read or built.
+ * <p>
+ * Immutable and thread-safe.
+ * @see Nojankson.Builder#limits(JsonLimits)
+ */
+public final class JsonLimits {
+	/** No limits at all. Fine for our own files, not for anything off the network. */
+	public static final JsonLimits NONE = builder().build();
+
+	/**
+	 * Generous enough for any honest ActivityPub document we've seen, and small enough that a
+	 * handful of concurrent hostile ones can't hurt.
+	 */
+	public static final JsonLimits FEDERATION = builder()
+			.maxDepth(64)
+			.maxStringLength(512 * 1024)
+			.maxElements(100_000)
+			.maxInputBytes(4L * 1024 * 1024)
+			.build();
+
+	private final int maxDepth;
+	private final int maxStringLength;
+	private final int maxElements;
+	private final long maxInputBytes;
+
+	private JsonLimits(Builder builder) {
+		this.maxDepth = builder.maxDepth;
+		this.maxStringLength = builder.maxStringLength;
+		this.maxElements = builder.maxElements;
+		this.maxInputBytes = builder.maxInputBytes;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return a builder starting from this set of limits
+	 */
+	public Builder toBuilder() {
+		return new Builder()
+				.maxDepth(maxDepth)
+				.maxStringLength(maxStringLength)
+				.maxElements(maxElements)
+				.maxInputBytes(maxInputBytes);
+	}
+
+	/**
+	 * @return how many objects and arrays may be open at once
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @return how many characters a single string or number may have
+	 */
+	public int getMaxStringLength() {
+		return maxStringLength;
+	}
+
+	/**
+	 * @return how many keys and values the whole document may have, counting objects and arrays
+	 * 		themselves
+	 */
+	public int getMaxElements() {
+		return maxElements;
+	}
+
+	/**
+	 * @return how many bytes of input may be read
+	 */
+	public long getMaxInputBytes() {
+		return maxInputBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "JsonLimits[depth=" + maxDepth + ", string=" + maxStringLength + ", elements=" + maxElements
+				+ ", bytes=" + maxInputBytes + "]";
+	}
+
+	public static final class Builder {
+		private int maxDepth = Integer.MAX_VALUE;
+		private int maxStringLength = Integer.MAX_VALUE;
+		private int maxElements = Integer.MAX_VALUE;
+		private long maxInputBytes = Long.MAX_VALUE;
+
+		private Builder() {}
+
+		public Builder maxDepth(int maxDepth) {
+			if (maxDepth < 1) throw new IllegalArgumentException("maxDepth must be positive");
+			this.maxDepth = maxDepth;
+			return this;
+		}
+
+		public Builder maxStringLength(int maxStringLength) {
+			if (maxStringLength < 0) throw new IllegalArgumentException("maxStringLength must not be negative");
+			this.maxStringLength = maxStringLength;
+			return this;
+		}
+
+		public Builder maxElements(int maxElements) {
+			if (maxElements < 1) throw new IllegalArgumentException("maxElements must be positive");
+			this.maxElements = maxElements;
+			return this;
+		}
+
+		public Builder maxInputBytes(long maxInputBytes) {
+			if (maxInputBytes < 1) throw new IllegalArgumentException("maxInputBytes must be positive");
+			this.maxInputBytes = maxInputBytes;
+			return this;
+		}
+
+		public JsonLimits build() {
+			return new JsonLimits(this);
+		}
+	}
+
+}
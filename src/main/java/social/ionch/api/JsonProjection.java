@@ -0,0 +1,185 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+import blue.endless.jankson.JsonElement;
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.api.SyntaxError;
+import social.ionch.api.JsonEventReader.Event;
+
+/**
+ * A set of dotted key paths, such as {@code "object.id"}, to pull out of a JSON object without
+ * parsing the rest of it. Everything not on one of the paths is skipped at the tokenizer level, and
+ * reading stops as soon as every path has been found.
+ * <p>
+ * Immutable and thread-safe; build these once and reuse them.
+ * @see Nojankson#project(String, JsonProjection)
+ */
+public final class JsonProjection {
+	private static final Splitter DOT_SPLITTER = Splitter.on('.');
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	private static final class Node {
+		final String key;
+		final byte[] keyUtf8;
+		/** The full path to this node. */
+		final String path;
+		/** If true, the value at this node was asked for. */
+		boolean wanted;
+		Node[] children = NO_CHILDREN;
+
+		Node(String key, String path) {
+			this.key = key;
+			this.keyUtf8 = key.getBytes(Charsets.UTF_8);
+			this.path = path;
+		}
+
+		Node child(String key, boolean create) {
+			for (Node n : children) {
+				if (n.key.equals(key)) return n;
+			}
+			if (!create) return null;
+			Node n = new Node(key, path == null ? key : path+"."+key);
+			children = Arrays.copyOf(children, children.length+1);
+			children[children.length-1] = n;
+			return n;
+		}
+
+		Node find(JsonEventReader reader) {
+			for (Node n : children) {
+				if (reader.stringEquals(n.keyUtf8, n.key)) return n;
+			}
+			return null;
+		}
+	}
+
+	private final Node root = new Node("", null);
+	private final ImmutableList<String> paths;
+	private final int wantedCount;
+
+	private JsonProjection(Collection<String> paths) {
+		this.paths = ImmutableList.copyOf(paths);
+		for (String path : this.paths) {
+			if (path.isEmpty()) throw new IllegalArgumentException("Cannot project an empty path");
+			Node n = root;
+			for (String key : DOT_SPLITTER.split(path)) {
+				if (key.isEmpty()) throw new IllegalArgumentException("Path \""+path+"\" has an empty key");
+				n = n.child(key, true);
+			}
+			n.wanted = true;
+		}
+		this.wantedCount = countWanted(root);
+	}
+
+	private static int countWanted(Node n) {
+		int count = n.wanted ? 1 : 0;
+		for (Node child : n.children) {
+			count += countWanted(child);
+		}
+		return count;
+	}
+
+	/**
+	 * @param paths dot-separated key paths, like {@code "type"} or {@code "object.id"}
+	 */
+	public static JsonProjection of(String... paths) {
+		return new JsonProjection(Arrays.asList(paths));
+	}
+
+	/**
+	 * @param paths dot-separated key paths, like {@code "type"} or {@code "object.id"}
+	 */
+	public static JsonProjection of(Collection<String> paths) {
+		return new JsonProjection(paths);
+	}
+
+	/**
+	 * @return the paths this projection picks out
+	 */
+	public ImmutableList<String> getPaths() {
+		return paths;
+	}
+
+	/**
+	 * Read the object the given reader is about to start, keeping only the values on this
+	 * projection's paths. Paths that don't exist in the document, or that pass through something
+	 * other than an object, are left out of the result.
+	 * @param reader a reader that has not been advanced yet
+	 * @return an object mapping each path that was found to its value
+	 * @throws SyntaxError if the input isn't a JSON object, or is malformed up to the point where
+	 * 		the last requested path was found
+	 */
+	public JsonObject read(JsonEventReader reader) throws SyntaxError {
+		if (reader.next() != Event.START_OBJECT)
+			throw new SyntaxError("JSON did not contain the correct type, expected JsonObject.");
+		JsonObject out = new JsonObject();
+		walk(reader, root, out, wantedCount);
+		return out;
+	}
+
+	/**
+	 * @return how many paths are still missing; 0 means the caller should stop reading
+	 */
+	private static int walk(JsonEventReader reader, Node node, JsonObject out, int remaining) throws SyntaxError {
+		while (reader.next() == Event.KEY) {
+			Node child = node.find(reader);
+			if (child == null) {
+				reader.skipValue();
+				continue;
+			}
+			Event value = reader.next();
+			if (child.wanted) {
+				JsonElement ele = reader.readElement();
+				remaining -= found(child, ele, out);
+			} else if (value == Event.START_OBJECT) {
+				remaining = walk(reader, child, out, remaining);
+			} else {
+				reader.skipValue();
+			}
+			if (remaining <= 0) return 0;
+		}
+		return remaining;
+	}
+
+	/**
+	 * Record a wanted node's value, along with any wanted paths beneath it.
+	 * @return how many paths were newly found
+	 */
+	private static int found(Node node, JsonElement ele, JsonObject out) {
+		int found = 0;
+		if (node.wanted && !out.containsKey(node.path)) {
+			out.put(node.path, ele);
+			found++;
+		}
+		if (ele instanceof JsonObject) {
+			JsonObject obj = (JsonObject)ele;
+			for (Node child : node.children) {
+				JsonElement sub = obj.get(child.key);
+				if (sub != null) found += found(child, sub, out);
+			}
+		}
+		return found;
+	}
+
+}
@@ -0,0 +1,1018 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import com.google.common.base.Charsets;
+
+import blue.endless.jankson.api.SyntaxError;
+
+/**
+ * Strict JSON tokenizer based on <a href="https://github.com/mmastrac/nanojson">nanojson</a>,
+ * adapted to scan UTF-8 bytes directly instead of widening them to chars first. Plain ASCII strings
+ * are left in the byte buffer and only turned into a String if someone asks for them with
+ * {@link #stringValue()}.
+ * <pre>
+ * Copyright 2011 The nanojson Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ * </pre>
+ */
+final class JsonTokener {
+	static final int BUFFER_SIZE = 32 * 1024;
+
+	static final int BUFFER_ROOM = 256;
+
+	/** Any integer with this many digits fits in a long. */
+	private static final int MAX_FAST_DIGITS = 18;
+
+	/** How much of a file to map at a time. Single mappings can't pass 2GB anyway. */
+	private static final long MAP_WINDOW = 256L * 1024 * 1024;
+
+	/** How many spare buffers and builders to keep around between parses. */
+	private static final int POOL_SIZE = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+	/** Builders that grew past this on some huge string are left to the GC rather than pooled. */
+	private static final int MAX_POOLED_BUILDER = BUFFER_SIZE;
+	/*
+	 * Scratch space is handed from one tokener to the next through bounded pools instead of
+	 * thread-locals, so that lots of short-lived (or virtual) threads don't each pin their own copy.
+	 * A tokener that is never released just means the pool makes a new one later.
+	 */
+	private static final ArrayBlockingQueue<byte[]> BUFFER_POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+	private static final ArrayBlockingQueue<StringBuilder> BUILDER_POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+
+	/**
+	 * Somewhere more bytes can be pulled from. Same contract as
+	 * {@link InputStream#read(byte[], int, int)}.
+	 */
+	interface ByteSource {
+		int read(byte[] b, int off, int len) throws IOException;
+	}
+
+	private int linePos = 1, rowPos, charOffset, utf8adjust;
+	private int tokenCharPos, tokenCharOffset;
+
+	private boolean eof;
+	private int index;
+	/** Where to get more bytes from, or null if the entire input is already in {@link #buffer}. */
+	private final ByteSource source;
+	private byte[] buffer;
+	private int bufferLength;
+
+	/**
+	 * Where the current string token starts in {@link #buffer}, or -1 if it had to be decoded into
+	 * {@link #reusableBuffer} instead.
+	 */
+	private int stringStart = -1;
+	private int stringLength;
+
+	StringBuilder reusableBuffer = acquireBuilder();
+	boolean isDouble;
+	/**
+	 * The digits of the current number token accumulated as it was scanned, so that small integers
+	 * never need to go through a String. Only meaningful if {@link #isDouble} is false and there
+	 * were no more than {@link #MAX_FAST_DIGITS} of them.
+	 */
+	private long integerValue;
+	private int integerDigits;
+	/**
+	 * If true, string tokens are only scanned for their end, not decoded; for passing over values
+	 * nobody is going to look at.
+	 */
+	boolean skipStrings;
+	/** Words to hand back shared instances of instead of decoding, or null. */
+	JsonVocabulary vocabulary;
+
+	// Limits from JsonLimits, and how close we are to them
+	private int maxDepth = Integer.MAX_VALUE;
+	private int maxStringLength = Integer.MAX_VALUE;
+	private int maxElements = Integer.MAX_VALUE;
+	private long maxInputBytes = Long.MAX_VALUE;
+	private int depth;
+	private int elements;
+	private long bytesRead;
+
+	static final char[] TRUE = { 'r', 'u', 'e' };
+	static final char[] FALSE = { 'a', 'l', 's', 'e' };
+	static final char[] NULL = { 'u', 'l', 'l' };
+
+	static final int TOKEN_EOF = 0;
+	static final int TOKEN_COMMA = 1;
+	static final int TOKEN_COLON = 2;
+	static final int TOKEN_OBJECT_END = 3;
+	static final int TOKEN_ARRAY_END = 4;
+	static final int TOKEN_NULL = 5;
+	static final int TOKEN_TRUE = 6;
+	static final int TOKEN_FALSE = 7;
+	static final int TOKEN_STRING = 8;
+	static final int TOKEN_NUMBER = 9;
+	static final int TOKEN_OBJECT_START = 10;
+	static final int TOKEN_ARRAY_START = 11;
+	static final int TOKEN_VALUE_MIN = TOKEN_NULL;
+
+	/**
+	 * Tokenize bytes pulled from the given source through a private buffer.
+	 */
+	JsonTokener(ByteSource source) throws SyntaxError {
+		this.source = source;
+		this.buffer = acquireBuffer();
+		init();
+	}
+
+	/**
+	 * Tokenize the given region of an array in place. The array is never written to.
+	 */
+	JsonTokener(byte[] bytes, int off, int len) throws SyntaxError {
+		this.source = null;
+		this.buffer = bytes;
+		this.index = off;
+		this.bufferLength = off + len;
+		// keep error positions relative to the start of the region
+		this.charOffset = -off;
+		init();
+	}
+
+	static JsonTokener from(String s) throws SyntaxError {
+		byte[] bytes = s.getBytes(Charsets.UTF_8);
+		return new JsonTokener(bytes, 0, bytes.length);
+	}
+
+	static JsonTokener from(InputStream in) throws SyntaxError {
+		return new JsonTokener(in::read);
+	}
+
+	/**
+	 * Like {@link #from(InputStream)}, but every byte read is also fed to the given digest on its way
+	 * into the buffer, while it's still in cache.
+	 */
+	static JsonTokener from(InputStream in, MessageDigest digest) throws SyntaxError {
+		return new JsonTokener((b, off, len) -> {
+			int r = in.read(b, off, len);
+			if (r > 0) digest.update(b, off, r);
+			return r;
+		});
+	}
+
+	/**
+	 * Tokenize the remaining bytes of the given buffer. The buffer's position is not modified.
+	 */
+	static JsonTokener from(ByteBuffer buf) throws SyntaxError {
+		if (buf.hasArray()) {
+			return new JsonTokener(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+		}
+		ByteBuffer dup = buf.duplicate();
+		return new JsonTokener((b, off, len) -> {
+			if (!dup.hasRemaining()) return -1;
+			int n = Math.min(len, dup.remaining());
+			dup.get(b, off, n);
+			return n;
+		});
+	}
+
+	/**
+	 * Tokenize a whole file by mapping it into memory a window at a time, so that it's only ever
+	 * copied into this tokener's buffer, however big it is. The channel has to stay open until
+	 * tokenizing is done.
+	 */
+	static JsonTokener from(FileChannel channel) throws IOException, SyntaxError {
+		long size = channel.size();
+		return new JsonTokener(new ByteSource() {
+			/** Where in the file the current window ends. */
+			private long mapped;
+			private ByteBuffer window = ByteBuffer.allocate(0);
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (!window.hasRemaining()) {
+					if (mapped >= size) return -1;
+					long n = Math.min(MAP_WINDOW, size - mapped);
+					window = channel.map(MapMode.READ_ONLY, mapped, n);
+					mapped += n;
+				}
+				int n = Math.min(len, window.remaining());
+				window.get(b, off, n);
+				return n;
+			}
+		});
+	}
+
+	private static byte[] acquireBuffer() {
+		byte[] buf = BUFFER_POOL.poll();
+		return buf != null ? buf : new byte[BUFFER_SIZE];
+	}
+
+	private static StringBuilder acquireBuilder() {
+		StringBuilder sb = BUILDER_POOL.poll();
+		return sb != null ? sb : new StringBuilder();
+	}
+
+	/**
+	 * Hand this tokener's scratch space back to the pool once nothing more is going to be read. The
+	 * tokener reports end of input afterwards. Safe to call more than once.
+	 */
+	void release() {
+		if (reusableBuffer == null) return;
+		if (reusableBuffer.capacity() <= MAX_POOLED_BUILDER) {
+			reusableBuffer.setLength(0);
+			BUILDER_POOL.offer(reusableBuffer);
+		}
+		reusableBuffer = null;
+		if (source != null) {
+			BUFFER_POOL.offer(buffer);
+			buffer = null;
+		}
+		eof = true;
+		index = bufferLength = 0;
+	}
+
+	/**
+	 * Start enforcing the given limits. Must be called before the first token is read.
+	 */
+	void limit(JsonLimits limits) throws SyntaxError {
+		this.maxDepth = limits.getMaxDepth();
+		this.maxStringLength = limits.getMaxStringLength();
+		this.maxElements = limits.getMaxElements();
+		this.maxInputBytes = limits.getMaxInputBytes();
+		// In place, the whole input is known up front; from a source, only the first buffer's worth
+		long length = source == null ? bufferLength + charOffset : bytesRead;
+		if (length > maxInputBytes)
+			throw limitExceeded("Input is longer than the limit of " + maxInputBytes + " bytes");
+	}
+
+	private JsonLimitException limitExceeded(String message) {
+		JsonLimitException e = new JsonLimitException(message);
+		e.setEndParsing(linePos, Math.max(1, index + charOffset - rowPos - utf8adjust));
+		return e;
+	}
+
+	private void checkStringLength(int length) throws JsonLimitException {
+		if (length > maxStringLength)
+			throw limitExceeded("String or number is longer than the limit of " + maxStringLength + " characters");
+	}
+
+	private void init() throws SyntaxError {
+		eof = source == null ? index >= bufferLength : refillBuffer();
+		consumeWhitespace();
+	}
+
+	/**
+	 * @return the contents of the string token that was just read
+	 */
+	String stringValue() {
+		if (stringStart >= 0) {
+			if (vocabulary != null) {
+				String word = vocabulary.lookup(buffer, stringStart, stringLength);
+				if (word != null) return word;
+			}
+			return new String(buffer, stringStart, stringLength, Charsets.ISO_8859_1);
+		}
+		return reusableBuffer.toString();
+	}
+
+	/**
+	 * Compare the string token that was just read against a known string without decoding it.
+	 * @param utf8 {@code str} encoded as UTF-8
+	 * @param str the string to compare to
+	 * @return {@code true} if the token's contents are equal to {@code str}
+	 */
+	boolean stringEquals(byte[] utf8, String str) {
+		if (stringStart >= 0) {
+			if (stringLength != utf8.length) return false;
+			for (int i = 0; i < stringLength; i++) {
+				if (buffer[stringStart + i] != utf8[i]) return false;
+			}
+			return true;
+		}
+		return str.contentEquals(reusableBuffer);
+	}
+
+	/**
+	 * @return the value of the number token that was just read, as the narrowest type that fits
+	 */
+	Number numberValue() throws SyntaxError {
+		if (!isDouble && integerDigits <= MAX_FAST_DIGITS) {
+			// Same types the slow path below picks, minus the String
+			long value = integerSigned();
+			// CHECKSTYLE_OFF: MagicNumber
+			if (integerDigits < 10 || (integerDigits == 10 && integerValue < 2_000_000_000L))
+				return Integer.valueOf((int)value);
+			// CHECKSTYLE_ON: MagicNumber
+			return Long.valueOf(value);
+		}
+
+		String number = reusableBuffer.toString();
+
+		try {
+			if (isDouble)
+				return Double.parseDouble(number);
+
+			// Quick parse for single-digits
+			if (number.length() == 1) {
+				return number.charAt(0) - '0';
+			} else if (number.length() == 2 && number.charAt(0) == '-') {
+				return '0' - number.charAt(1);
+			}
+
+			// HACK: Attempt to parse using the approximate best type for this
+			boolean firstMinus = number.charAt(0) == '-';
+			int length = firstMinus ? number.length() - 1 : number.length();
+			// CHECKSTYLE_OFF: MagicNumber
+			if (length < 10 || (length == 10 && number.charAt(firstMinus ? 1 : 0) < '2')) // 2 147 483 647
+				return Integer.parseInt(number);
+			if (length < 19 || (length == 19 && number.charAt(firstMinus ? 1 : 0) < '9')) // 9 223 372 036 854 775 807
+				return Long.parseLong(number);
+			// CHECKSTYLE_ON: MagicNumber
+			return new BigInteger(number);
+		} catch (NumberFormatException e) {
+			throw createParseException(e, "Malformed number: " + number, true);
+		}
+	}
+
+	void consumeKeyword(char first, char[] expected) throws SyntaxError {
+		if (ensureBuffer(expected.length) < expected.length) {
+			throw createHelpfulException(first, expected, 0);
+		}
+
+		for (int i = 0; i < expected.length; i++)
+			if (buffer[index++] != expected[i])
+				throw createHelpfulException(first, expected, i);
+
+		fixupAfterRawBufferRead();
+
+		// The token should end with something other than an ASCII letter
+		if (isAsciiLetter(peekChar()))
+			throw createHelpfulException(first, expected, expected.length);
+	}
+
+	/**
+	 * @return the number token that was just read as a long, without boxing it if it's a plain
+	 * 		integer; fractions are truncated as by {@link Number#longValue()}
+	 */
+	long longValue() throws SyntaxError {
+		if (!isDouble && integerDigits <= MAX_FAST_DIGITS) return integerSigned();
+		return numberValue().longValue();
+	}
+
+	/**
+	 * @return the number token that was just read as a double, without boxing it if it's a plain
+	 * 		integer
+	 */
+	double doubleValue() throws SyntaxError {
+		if (!isDouble && integerDigits <= MAX_FAST_DIGITS) return integerSigned();
+		return numberValue().doubleValue();
+	}
+
+	private long integerSigned() {
+		return reusableBuffer.charAt(0) == '-' ? -integerValue : integerValue;
+	}
+
+	void consumeTokenNumber(char savedChar) throws SyntaxError {
+		reusableBuffer.setLength(0);
+		reusableBuffer.append(savedChar);
+		isDouble = false;
+		if (savedChar == '-') {
+			integerValue = 0;
+			integerDigits = 0;
+		} else {
+			integerValue = savedChar - '0';
+			integerDigits = 1;
+		}
+
+		// The JSON spec is way stricter about number formats than
+		// Double.parseDouble(). This is a hand-rolled pseudo-parser that
+		// verifies numbers we read.
+		int state;
+		if (savedChar == '-') {
+			state = 1;
+		} else if (savedChar == '0') {
+			state = 3;
+		} else {
+			state = 2;
+		}
+
+		outer: while (true) {
+			checkStringLength(reusableBuffer.length());
+			int n = ensureBuffer(BUFFER_ROOM);
+			if (n == 0)
+				break outer;
+
+			for (int i = 0; i < n; i++) {
+				int nc = buffer[index];
+				if (!isDigitCharacter(nc))
+					break outer;
+
+				int ns = -1;
+				sw:
+				switch (state) {
+				case 1: // start leading negative
+					if (nc == '-' && state == 0) {
+						ns = 1; break sw;
+					}
+					if (nc == '0') {
+						ns = 3; break sw;
+					}
+					if (nc >= '0' && nc <= '9') {
+						ns = 2; break sw;
+					}
+					break;
+				case 2: // no leading zero
+				case 3: // leading zero
+					if ((nc >= '0' && nc <= '9') && state == 2) {
+						ns = 2; break sw;
+					}
+					if (nc == '.') {
+						isDouble = true;
+						ns = 4; break sw;
+					}
+					if (nc == 'e' || nc == 'E') {
+						isDouble = true;
+						ns = 6; break sw;
+					}
+					break;
+				case 4: // after period
+				case 5: // after period, one digit read
+					if (nc >= '0' && nc <= '9') {
+						ns = 5; break sw;
+					}
+					if ((nc == 'e' || nc == 'E') && state == 5) {
+						isDouble = true;
+						ns = 6; break sw;
+					}
+					break;
+				case 6: // after exponent
+				case 7: // after exponent and sign
+					if (nc == '+' || nc == '-' && state == 6) {
+						ns = 7; break sw;
+					}
+					if (nc >= '0' && nc <= '9') {
+						ns = 8; break sw;
+					}
+					break;
+				case 8: // after digits
+					if (nc >= '0' && nc <= '9') {
+						ns = 8; break sw;
+					}
+					break;
+				default:
+					assert false : "Impossible"; // will throw malformed number
+				}
+				reusableBuffer.append((char)nc);
+				index++;
+				if (ns == -1)
+					throw createParseException(null, "Malformed number: " + reusableBuffer, true);
+				if (ns == 2 || ns == 3) {
+					// Still in the integer part. Past MAX_FAST_DIGITS this overflows, but then it isn't used.
+					integerValue = integerValue * 10 + (nc - '0');
+					integerDigits++;
+				}
+				state = ns;
+			}
+		}
+
+		if (state != 2 && state != 3 && state != 5 && state != 8)
+			throw createParseException(null, "Malformed number: " + reusableBuffer, true);
+
+		// Special case for -0
+		if (state == 3 && savedChar == '-')
+			isDouble = true;
+
+		checkStringLength(reusableBuffer.length());
+		fixupAfterRawBufferRead();
+	}
+
+	void consumeTokenString() throws SyntaxError {
+		reusableBuffer.setLength(0);
+		stringStart = -1;
+		if (skipStrings) {
+			skipTokenString();
+			return;
+		}
+
+		// Fast path: a run of plain ASCII with no escapes can be handed out straight from the buffer.
+		// Input that's all in memory already can be scanned to the end in one go.
+		start:
+		while (true) {
+			int n = source == null ? bufferLength - index : ensureBuffer(BUFFER_ROOM);
+			if (n == 0)
+				throw createParseException(null, "String was not terminated before end of input", true);
+
+			for (int i = 0; i < n; i++) {
+				int c = stringChar();
+				if (c == '"') {
+					checkStringLength(reusableBuffer.length() + i);
+					int start = index - i - 1;
+					// If the closing quote was the last byte we have, the next refill will clobber it
+					if (reusableBuffer.length() == 0 && (source == null || index < bufferLength)) {
+						stringStart = start;
+						stringLength = i;
+					} else {
+						appendAscii(start, i);
+					}
+					fixupAfterRawBufferRead();
+					return;
+				}
+				if (c == '\\' || (c & 0x80) != 0) {
+					appendAscii(index - i - 1, i);
+					index--;
+					break start;
+				}
+			}
+
+			appendAscii(index - n, n);
+			checkStringLength(reusableBuffer.length());
+		}
+
+		outer: while (true) {
+			checkStringLength(reusableBuffer.length());
+			int n = ensureBuffer(BUFFER_ROOM);
+			if (n == 0)
+				throw createParseException(null, "String was not terminated before end of input", true);
+
+			int end = index + n;
+			while (index < end) {
+				int c = stringChar();
+
+				if ((c & 0x80) != 0) {
+					// If it's a UTF-8 codepoint, we know it won't have special meaning
+					consumeTokenStringUtf8Char(c & 0xff);
+					continue outer;
+				}
+
+				switch (c) {
+				case '\"':
+					checkStringLength(reusableBuffer.length());
+					fixupAfterRawBufferRead();
+					return;
+				case '\\':
+					// A short read may have split the escape across the end of the buffer
+					ensureBuffer(5);
+					requireBytes(1, "EOF encountered in the middle of a string escape");
+					int escape = buffer[index++];
+					switch (escape) {
+					case 'b':
+						reusableBuffer.append('\b');
+						break;
+					case 'f':
+						reusableBuffer.append('\f');
+						break;
+					case 'n':
+						reusableBuffer.append('\n');
+						break;
+					case 'r':
+						reusableBuffer.append('\r');
+						break;
+					case 't':
+						reusableBuffer.append('\t');
+						break;
+					case '"':
+					case '/':
+					case '\\':
+						reusableBuffer.append((char)escape);
+						break;
+					case 'u':
+						requireBytes(4, "EOF encountered in the middle of a string escape");
+						int escaped = 0;
+
+						for (int j = 0; j < 4; j++) {
+							escaped <<= 4;
+							int digit = buffer[index++];
+							if (digit >= '0' && digit <= '9') {
+								escaped |= (digit - '0');
+							} else if (digit >= 'A' && digit <= 'F') {
+								escaped |= (digit - 'A') + 10;
+							} else if (digit >= 'a' && digit <= 'f') {
+								escaped |= (digit - 'a') + 10;
+							} else {
+								throw createParseException(null, "Expected unicode hex escape character: " + (char)(digit & 0xff)
+										+ " (" + (digit & 0xff) + ")", false);
+							}
+						}
+
+						reusableBuffer.append((char)escaped);
+						break;
+					default:
+						throw createParseException(null, "Invalid escape: \\" + (char)(escape & 0xff), false);
+					}
+					// The buffer may have moved under us
+					continue outer;
+				default:
+					reusableBuffer.append((char)c);
+				}
+			}
+
+			if (index > bufferLength) {
+				index = bufferLength; // Reset index to last valid location
+				throw createParseException(null,
+						"EOF encountered in the middle of a string escape",
+						false);
+			}
+		}
+	}
+
+	/**
+	 * Find the end of a string without decoding any of it. Escapes are only looked at far enough to
+	 * know they can't end the string.
+	 */
+	private void skipTokenString() throws SyntaxError {
+		outer: while (true) {
+			int n = ensureBuffer(BUFFER_ROOM);
+			if (n == 0)
+				throw createParseException(null, "String was not terminated before end of input", true);
+
+			int end = index + n;
+			while (index < end) {
+				int c = stringChar();
+				if (c == '"') {
+					fixupAfterRawBufferRead();
+					return;
+				}
+				if (c == '\\') {
+					ensureBuffer(1);
+					requireBytes(1, "EOF encountered in the middle of a string escape");
+					index++;
+					continue outer;
+				} else if ((c & 0xc0) == 0x80) {
+					// continuation byte; keep error columns counting codepoints
+					utf8adjust++;
+				}
+			}
+		}
+	}
+
+	private void appendAscii(int start, int len) {
+		for (int i = start; i < start + len; i++)
+			reusableBuffer.append((char)buffer[i]);
+	}
+
+	@SuppressWarnings("fallthrough")
+	private void consumeTokenStringUtf8Char(int c) throws SyntaxError {
+		ensureBuffer(5);
+
+		// Hand-UTF8-decoding
+		switch (c & 0xf0) {
+		case 0x80:
+		case 0x90:
+		case 0xa0:
+		case 0xb0:
+			throw createParseException(null,
+					"Illegal UTF-8 continuation byte: 0x" + Integer.toHexString(c & 0xff), false);
+		case 0xc0:
+			// Check for illegal C0 and C1 bytes
+			if ((c & 0xe) == 0)
+				throw createParseException(null, "Illegal UTF-8 byte: 0x" + Integer.toHexString(c & 0xff),
+						false);
+			// fall-through
+		case 0xd0:
+			requireBytes(1, "UTF-8 codepoint was truncated");
+			c = (c & 0x1f) << 6 | (buffer[index++] & 0x3f);
+			reusableBuffer.append((char)c);
+			utf8adjust++;
+			break;
+		case 0xe0:
+			requireBytes(2, "UTF-8 codepoint was truncated");
+			c = (c & 0x0f) << 12 | (buffer[index++] & 0x3f) << 6 | (buffer[index++] & 0x3f);
+			utf8adjust += 2;
+			// Check for illegally-encoded surrogate - http://unicode.org/faq/utf_bom.html#utf8-4
+			if (c >= 0xd800 && c <= 0xdfff)
+				throw createParseException(null, "Illegal UTF-8 codepoint: 0x" + Integer.toHexString(c),
+						false);
+			reusableBuffer.append((char)c);
+			break;
+		case 0xf0:
+			if ((c & 0xf) >= 5)
+				throw createParseException(null, "Illegal UTF-8 byte: 0x" + Integer.toHexString(c & 0xff),
+						false);
+
+			// Extended char
+			switch ((c & 0xc) >> 2) {
+			case 0:
+			case 1:
+				requireBytes(3, "UTF-8 codepoint was truncated");
+				reusableBuffer.appendCodePoint((c & 7) << 18 | (buffer[index++] & 0x3f) << 12
+						| (buffer[index++] & 0x3f) << 6 | (buffer[index++] & 0x3f));
+				utf8adjust += 3;
+				break;
+			case 2:
+				requireBytes(4, "UTF-8 codepoint was truncated");
+				// TODO: \uFFFD (replacement char)
+				int codepoint = (c & 3) << 24 | (buffer[index++] & 0x3f) << 18 | (buffer[index++] & 0x3f) << 12
+						| (buffer[index++] & 0x3f) << 6 | (buffer[index++] & 0x3f);
+				throw createParseException(null,
+						"Unable to represent codepoint 0x" + Integer.toHexString(codepoint)
+								+ " in a Java string", false);
+			case 3:
+				requireBytes(5, "UTF-8 codepoint was truncated");
+				codepoint = (c & 1) << 30 | (buffer[index++] & 0x3f) << 24 | (buffer[index++] & 0x3f) << 18
+						| (buffer[index++] & 0x3f) << 12 | (buffer[index++] & 0x3f) << 6
+						| (buffer[index++] & 0x3f);
+				throw createParseException(null,
+						"Unable to represent codepoint 0x" + Integer.toHexString(codepoint)
+								+ " in a Java string", false);
+			default:
+				assert false : "Impossible";
+			}
+			break;
+		default:
+			// Regular old byte
+			break;
+		}
+		if (index > bufferLength)
+			throw createParseException(null, "UTF-8 codepoint was truncated", false);
+	}
+
+	/**
+	 * Bail out if fewer than n more bytes of input are available. The buffer may be the caller's
+	 * array, so there's no slack to read past the end into.
+	 */
+	private void requireBytes(int n, String message) throws SyntaxError {
+		if (bufferLength - index < n) {
+			index = bufferLength;
+			throw createParseException(null, message, false);
+		}
+	}
+
+	/**
+	 * @return the next byte of a string, sign-extended, so anything with the high bit set is negative
+	 */
+	private int stringChar() throws SyntaxError {
+		int c = buffer[index++];
+		if (c >= 0 && c < 32)
+			throwControlCharacterException(c);
+		return c;
+	}
+
+	private void throwControlCharacterException(int c) throws SyntaxError {
+		// Need to ensure that we position this at the correct location for the error
+		if (c == '\n') {
+			linePos++;
+			rowPos = index + 1 + charOffset;
+			utf8adjust = 0;
+		}
+		throw createParseException(null,
+				"Strings may not contain control characters: 0x" + Integer.toString(c, 16), false);
+	}
+
+	private boolean isDigitCharacter(int c) {
+		return (c >= '0' && c <= '9') || c == 'e' || c == 'E' || c == '.' || c == '+' || c == '-';
+	}
+
+	boolean isWhitespace(int c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	boolean isAsciiLetter(int c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+	}
+
+	private boolean refillBuffer() throws SyntaxError {
+		if (source == null) return true;
+		try {
+			int r = source.read(buffer, 0, buffer.length);
+			if (r <= 0) {
+				return true;
+			}
+			charOffset += bufferLength;
+			index = 0;
+			bufferLength = r;
+			bytesRead += r;
+			if (bytesRead > maxInputBytes)
+				throw limitExceeded("Input is longer than the limit of " + maxInputBytes + " bytes");
+			return false;
+		} catch (IOException e) {
+			throw createParseException(e, "IOException", true);
+		}
+	}
+
+	private int peekChar() {
+		return eof || index >= bufferLength ? -1 : buffer[index] & 0xff;
+	}
+
+	int ensureBuffer(int n) throws SyntaxError {
+		// We're good here
+		if (bufferLength - n >= index) {
+			return n;
+		}
+
+		// Everything we'll ever have is already here
+		if (source == null) {
+			return bufferLength - index;
+		}
+
+		// Nope, we need to read more, but we also have to retain whatever buffer we have
+		if (index > 0) {
+			charOffset += index;
+			bufferLength = bufferLength - index;
+			System.arraycopy(buffer, index, buffer, 0, bufferLength);
+			index = 0;
+		}
+		try {
+			while (buffer.length > bufferLength) {
+				int r = source.read(buffer, bufferLength, buffer.length - bufferLength);
+				if (r <= 0) {
+					return bufferLength - index;
+				}
+				bufferLength += r;
+				bytesRead += r;
+				if (bytesRead > maxInputBytes)
+					throw limitExceeded("Input is longer than the limit of " + maxInputBytes + " bytes");
+				if (bufferLength > n)
+					return bufferLength - index;
+			}
+
+			// Should be impossible
+			assert false : "Unexpected internal error";
+			throw new IOException("Unexpected internal error");
+		} catch (IOException e) {
+			throw createParseException(e, "IOException", true);
+		}
+	}
+
+	private int advanceChar() throws SyntaxError {
+		if (eof)
+			return -1;
+
+		int c = buffer[index] & 0xff;
+		if (c == '\n') {
+			linePos++;
+			rowPos = index + 1 + charOffset;
+			utf8adjust = 0;
+		}
+
+		index++;
+
+		// Prepare for next read
+		if (index >= bufferLength)
+			eof = refillBuffer();
+
+		return c;
+	}
+
+	private void consumeWhitespace() throws SyntaxError {
+		int n;
+		do {
+			n = ensureBuffer(BUFFER_ROOM);
+			for (int i = 0; i < n; i++) {
+				int c = buffer[index];
+				if (!isWhitespace(c)) {
+					fixupAfterRawBufferRead();
+					return;
+				}
+				if (c == '\n') {
+					linePos++;
+					rowPos = index + 1 + charOffset;
+					utf8adjust = 0;
+				}
+				index++;
+			}
+		} while (n > 0);
+		eof = true;
+	}
+
+	int advanceToToken() throws SyntaxError {
+		int c = advanceChar();
+		while (isWhitespace(c))
+			c = advanceChar();
+
+		tokenCharPos = index + charOffset - rowPos - utf8adjust;
+		tokenCharOffset = charOffset + index;
+
+		int token;
+		switch (c) {
+		case -1:
+			return TOKEN_EOF;
+		case '[':
+			if (++depth > maxDepth)
+				throw limitExceeded("Nesting is deeper than the limit of " + maxDepth);
+			token = TOKEN_ARRAY_START;
+			break;
+		case ']':
+			depth--;
+			token = TOKEN_ARRAY_END;
+			break;
+		case ',':
+			token = TOKEN_COMMA;
+			break;
+		case ':':
+			token = TOKEN_COLON;
+			break;
+		case '{':
+			if (++depth > maxDepth)
+				throw limitExceeded("Nesting is deeper than the limit of " + maxDepth);
+			token = TOKEN_OBJECT_START;
+			break;
+		case '}':
+			depth--;
+			token = TOKEN_OBJECT_END;
+			break;
+		case 't':
+			consumeKeyword((char)c, JsonTokener.TRUE);
+			token = TOKEN_TRUE;
+			break;
+		case 'f':
+			consumeKeyword((char)c, JsonTokener.FALSE);
+			token = TOKEN_FALSE;
+			break;
+		case 'n':
+			consumeKeyword((char)c, JsonTokener.NULL);
+			token = TOKEN_NULL;
+			break;
+		case '\"':
+			consumeTokenString();
+			token = TOKEN_STRING;
+			break;
+		case '-':
+		case '0':
+		case '1':
+		case '2':
+		case '3':
+		case '4':
+		case '5':
+		case '6':
+		case '7':
+		case '8':
+		case '9':
+			consumeTokenNumber((char)c);
+			token = TOKEN_NUMBER;
+			break;
+		case '+':
+		case '.':
+			throw createParseException(null, "Numbers may not start with '" + (char)c + "'", true);
+		default:
+			if (isAsciiLetter(c))
+				throw createHelpfulException((char)c, null, 0);
+
+			throw createParseException(null, "Unexpected character: " + (char)c, true);
+		}
+
+		// Keys count too, since they cost as much to hold on to as values
+		if (token >= TOKEN_VALUE_MIN && ++elements > maxElements)
+			throw limitExceeded("Document has more keys and values than the limit of " + maxElements);
+
+		return token;
+	}
+
+	void fixupAfterRawBufferRead() throws SyntaxError {
+		if (index >= bufferLength)
+			eof = refillBuffer();
+	}
+
+	SyntaxError createHelpfulException(char first, char[] expected, int failurePosition)
+			throws SyntaxError {
+		// Build the first part of the token
+		StringBuilder errorToken = new StringBuilder(first
+				+ (expected == null ? "" : new String(expected, 0, failurePosition)));
+
+		// Consume the whole pseudo-token to make a better error message
+		while (isAsciiLetter(peekChar()) && errorToken.length() < 15)
+			errorToken.append((char)advanceChar());
+
+		return createParseException(null, "Unexpected token '" + errorToken + "'"
+				+ (expected == null ? "" : ". Did you mean '" + first + new String(expected) + "'?"), true);
+	}
+
+	SyntaxError createParseException(Exception e, String message, boolean tokenPos) {
+		if (tokenPos) {
+			SyntaxError se = new SyntaxError(message);
+			se.setStartParsing(linePos, tokenCharPos);
+			se.setEndParsing(linePos, tokenCharPos+tokenCharOffset);
+			return se;
+		} else {
+			int charPos = Math.max(1, index + charOffset - rowPos - utf8adjust);
+			SyntaxError se = new SyntaxError(message);
+			se.setEndParsing(linePos, charPos);
+			return se;
+		}
+	}
+}
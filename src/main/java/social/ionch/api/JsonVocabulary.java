@@ -0,0 +1,137 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api;
+
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A fixed table of strings that turn up in nearly every document, such as object keys and
+ * {@code type} values. When a parser is given a vocabulary, any string token that matches one of
+ * its words is returned as the table's shared String instance, matched against the raw input bytes
+ * without allocating anything.
+ * <p>
+ * Only plain ASCII words without escapes are matched; anything else is decoded as usual.
+ * <p>
+ * Immutable and thread-safe.
+ * @see Nojankson.Builder#vocabulary(JsonVocabulary)
+ */
+public final class JsonVocabulary {
+
+	/**
+	 * Keys and common values from the ActivityStreams 2.0 and ActivityPub vocabularies, plus the
+	 * handful of extensions Mastodon and friends put on every actor.
+	 */
+	public static final JsonVocabulary ACTIVITY_STREAMS = of(
+			// Keys
+			"@context", "@id", "@type", "@language", "@value",
+			"id", "type", "actor", "object", "target", "result", "origin", "instrument",
+			"to", "cc", "bto", "bcc", "audience",
+			"attributedTo", "inReplyTo", "published", "updated", "startTime", "endTime", "deleted",
+			"content", "contentMap", "summary", "summaryMap", "name", "nameMap", "mediaType",
+			"url", "href", "rel", "icon", "image", "attachment", "tag", "generator", "location",
+			"preview", "replies", "context", "conversation", "sensitive",
+			"width", "height", "duration", "blurhash", "focalPoint",
+			"items", "orderedItems", "totalItems", "first", "last", "next", "prev", "partOf", "current",
+			"inbox", "outbox", "followers", "following", "liked", "likes", "shares", "streams",
+			"endpoints", "sharedInbox", "preferredUsername", "manuallyApprovesFollowers", "discoverable",
+			"featured", "featuredTags", "publicKey", "publicKeyPem", "owner", "signature",
+			"oneOf", "anyOf", "closed", "votersCount",
+			// Values
+			"https://www.w3.org/ns/activitystreams", "https://www.w3.org/ns/activitystreams#Public",
+			"https://w3id.org/security/v1", "as:Public", "Public",
+			"Create", "Update", "Delete", "Follow", "Accept", "Reject", "Add", "Remove", "Like",
+			"Announce", "Undo", "Block", "Flag", "Move", "Question", "Tombstone",
+			"Note", "Article", "Page", "Event", "Image", "Video", "Audio", "Document", "Link",
+			"Mention", "Hashtag", "Emoji", "PropertyValue",
+			"Person", "Service", "Application", "Group", "Organization",
+			"Collection", "OrderedCollection", "CollectionPage", "OrderedCollectionPage",
+			"text/html", "text/plain", "image/png", "image/jpeg", "image/gif", "image/webp",
+			"en"
+			);
+
+	private final ImmutableSet<String> words;
+	private final byte[][] keys;
+	private final String[] values;
+	private final int mask;
+	private final int maxLength;
+
+	private JsonVocabulary(Iterable<String> words) {
+		this.words = ImmutableSet.copyOf(words);
+		int size = Integer.highestOneBit(Math.max(this.words.size(), 1) * 4 - 1) << 1;
+		this.keys = new byte[size][];
+		this.values = new String[size];
+		this.mask = size - 1;
+		int max = 0;
+		for (String word : this.words) {
+			byte[] utf8 = word.getBytes(Charsets.UTF_8);
+			int slot = hash(utf8, 0, utf8.length) & mask;
+			while (keys[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = utf8;
+			// intern() so that the same words coming from elsewhere in the program can share too
+			values[slot] = word.intern();
+			max = Math.max(max, utf8.length);
+		}
+		this.maxLength = max;
+	}
+
+	public static JsonVocabulary of(String... words) {
+		return new JsonVocabulary(Arrays.asList(words));
+	}
+
+	public static JsonVocabulary of(Iterable<String> words) {
+		return new JsonVocabulary(words);
+	}
+
+	/**
+	 * @return a vocabulary with the words of this one plus the given ones
+	 */
+	public JsonVocabulary plus(String... more) {
+		return new JsonVocabulary(ImmutableSet.<String>builder().addAll(words).add(more).build());
+	}
+
+	public ImmutableSet<String> getWords() {
+		return words;
+	}
+
+	/**
+	 * @return the shared instance for the given UTF-8 bytes, or null if they aren't in the table
+	 */
+	/*package*/ String lookup(byte[] buf, int off, int len) {
+		if (len > maxLength) return null;
+		int slot = hash(buf, off, len) & mask;
+		while (true) {
+			byte[] key = keys[slot];
+			if (key == null) return null;
+			if (key.length == len && Arrays.equals(key, 0, len, buf, off, off + len)) return values[slot];
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static int hash(byte[] buf, int off, int len) {
+		int h = len;
+		for (int i = off; i < off + len; i++) {
+			h = 31 * h + buf[i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+}
@@ -0,0 +1,459 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+
+import blue.endless.jankson.JsonArray;
+import blue.endless.jankson.JsonElement;
+import blue.endless.jankson.JsonNull;
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.JsonPrimitive;
+
+/**
+ * Writes strict, compact JSON as UTF-8 straight into an {@link OutputStream} or {@link ByteBuffer},
+ * without building a String for the document first. Commas and colons are placed automatically;
+ * callers just open and close containers, name keys, and write values.
+ * <p>
+ * Pre-serialized JSON can be spliced in with {@link #rawValue(byte[])}, which is the cheap way to
+ * emit objects whose serialized form is already cached.
+ * <p>
+ * I/O errors from the underlying stream are rethrown as {@link UncheckedIOException} so that
+ * calls can be chained. Not thread-safe.
+ */
+public final class JsonWriter implements Closeable, Flushable {
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final byte[] HEX = "0123456789abcdef".getBytes(Charsets.US_ASCII);
+	private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+
+	// What the grammar allows next
+	private static final int EXPECT_VALUE = 0;
+	private static final int EXPECT_FIRST_ARRAY_VALUE = 1;
+	private static final int EXPECT_ARRAY_VALUE = 2;
+	private static final int EXPECT_FIRST_KEY = 3;
+	private static final int EXPECT_KEY = 4;
+	private static final int EXPECT_OBJECT_VALUE = 5;
+	private static final int EXPECT_NOTHING = 6;
+
+	private final OutputStream out;
+	private final ByteBuffer sink;
+	private final byte[] buffer;
+	private int pos;
+
+	private int expect = EXPECT_VALUE;
+	/** For each open container, {@code true} if it's an object. */
+	private boolean[] stack = new boolean[16];
+	private int depth;
+
+	/**
+	 * Write to the given stream. Output is buffered; call {@link #flush()} or {@link #close()} when
+	 * done.
+	 */
+	public JsonWriter(OutputStream out) {
+		this.out = out;
+		this.sink = null;
+		this.buffer = new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * Write into the given buffer, starting at its position. Output is buffered; call
+	 * {@link #flush()} or {@link #close()} when done, after which the buffer's position is just
+	 * past the written JSON.
+	 * @throws BufferOverflowException from any call, if the buffer fills up
+	 */
+	public JsonWriter(ByteBuffer sink) {
+		this.out = null;
+		this.sink = sink;
+		this.buffer = new byte[BUFFER_SIZE];
+	}
+
+	public JsonWriter beginObject() {
+		beforeValue();
+		push(true);
+		expect = EXPECT_FIRST_KEY;
+		writeByte('{');
+		return this;
+	}
+
+	public JsonWriter endObject() {
+		if (depth == 0 || !stack[depth - 1] || expect == EXPECT_OBJECT_VALUE)
+			throw new IllegalStateException("Not in an object, or a key is missing its value");
+		writeByte('}');
+		pop();
+		return this;
+	}
+
+	public JsonWriter beginArray() {
+		beforeValue();
+		push(false);
+		expect = EXPECT_FIRST_ARRAY_VALUE;
+		writeByte('[');
+		return this;
+	}
+
+	public JsonWriter endArray() {
+		if (depth == 0 || stack[depth - 1]) throw new IllegalStateException("Not in an array");
+		writeByte(']');
+		pop();
+		return this;
+	}
+
+	/**
+	 * Name the key for the next value written.
+	 */
+	public JsonWriter key(String key) {
+		if (expect == EXPECT_KEY) {
+			writeByte(',');
+		} else if (expect != EXPECT_FIRST_KEY) {
+			throw new IllegalStateException("Not expecting a key here");
+		}
+		writeString(key);
+		writeByte(':');
+		expect = EXPECT_OBJECT_VALUE;
+		return this;
+	}
+
+	/**
+	 * Write a string, or null if {@code value} is null.
+	 */
+	public JsonWriter value(@Nullable String value) {
+		if (value == null) return nullValue();
+		beforeValue();
+		writeString(value);
+		return this;
+	}
+
+	public JsonWriter value(long value) {
+		beforeValue();
+		writeAscii(Long.toString(value));
+		return this;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the value is NaN or infinite, which JSON can't represent
+	 */
+	public JsonWriter value(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			throw new IllegalArgumentException("JSON cannot represent "+value);
+		beforeValue();
+		writeAscii(Double.toString(value));
+		return this;
+	}
+
+	public JsonWriter value(boolean value) {
+		beforeValue();
+		writeBytes(value ? TRUE : FALSE, 0, value ? 4 : 5);
+		return this;
+	}
+
+	/**
+	 * Write a number, or null if {@code value} is null.
+	 */
+	public JsonWriter value(@Nullable Number value) {
+		if (value == null) return nullValue();
+		if (value instanceof Double || value instanceof Float) return value(value.doubleValue());
+		beforeValue();
+		if (value instanceof BigDecimal) {
+			writeAscii(((BigDecimal)value).toString());
+		} else if (value instanceof BigInteger) {
+			writeAscii(value.toString());
+		} else {
+			writeAscii(Long.toString(value.longValue()));
+		}
+		return this;
+	}
+
+	public JsonWriter nullValue() {
+		beforeValue();
+		writeBytes(NULL, 0, 4);
+		return this;
+	}
+
+	/**
+	 * Write out a Jankson tree. Comments are dropped, as in {@link blue.endless.jankson.JsonGrammar#STRICT}.
+	 * A Java null is written as JSON null.
+	 */
+	public JsonWriter value(@Nullable JsonElement value) {
+		if (value == null || value instanceof JsonNull) return nullValue();
+		if (value instanceof JsonObject) {
+			beginObject();
+			for (Map.Entry<String, JsonElement> entry : ((JsonObject)value).entrySet()) {
+				key(entry.getKey());
+				value(entry.getValue());
+			}
+			return endObject();
+		}
+		if (value instanceof JsonArray) {
+			beginArray();
+			for (JsonElement ele : (JsonArray)value) {
+				value(ele);
+			}
+			return endArray();
+		}
+		if (value instanceof JsonPrimitive) {
+			Object o = ((JsonPrimitive)value).getValue();
+			if (o instanceof Number) return value((Number)o);
+			if (o instanceof Boolean) return value(((Boolean)o).booleanValue());
+			return value(String.valueOf(o));
+		}
+		throw new IllegalArgumentException("Don't know how to write "+value.getClass().getName());
+	}
+
+	/**
+	 * Splice in an already-serialized JSON value as-is. The fragment must be a single, complete JSON
+	 * value encoded as UTF-8; it is not checked.
+	 */
+	public JsonWriter rawValue(byte[] json) {
+		return rawValue(json, 0, json.length);
+	}
+
+	/**
+	 * @see #rawValue(byte[])
+	 */
+	public JsonWriter rawValue(byte[] json, int off, int len) {
+		beforeValue();
+		writeBytes(json, off, len);
+		return this;
+	}
+
+	/**
+	 * @see #rawValue(byte[])
+	 */
+	public JsonWriter rawValue(String json) {
+		return rawValue(json.getBytes(Charsets.UTF_8));
+	}
+
+	/**
+	 * Write a string that's already encoded as UTF-8, copying it through with only the escaping JSON
+	 * needs. Surrogates encoded on their own, as {@link JsonBinary} does for unpaired ones, are
+	 * written as unicode escapes.
+	 */
+	/*package*/ JsonWriter valueUtf8(byte[] utf8, int off, int len) {
+		beforeValue();
+		writeByte('"');
+		int end = off + len;
+		int run = off;
+		for (int i = off; i < end; i++) {
+			int b = utf8[i] & 0xff;
+			if (b < 0x20 || b == '"' || b == '\\') {
+				writeBytes(utf8, run, i - run);
+				writeEscape((char)b);
+				run = i + 1;
+			} else if (b == 0xed && i + 2 < end && (utf8[i + 1] & 0xff) >= 0xa0) {
+				writeBytes(utf8, run, i - run);
+				writeEscape((char)(((b & 0x0f) << 12) | ((utf8[i + 1] & 0x3f) << 6) | (utf8[i + 2] & 0x3f)));
+				i += 2;
+				run = i + 1;
+			}
+		}
+		writeBytes(utf8, run, end - run);
+		writeByte('"');
+		return this;
+	}
+
+	/**
+	 * @return true if a complete root value has been written
+	 */
+	public boolean isComplete() {
+		return expect == EXPECT_NOTHING;
+	}
+
+	/**
+	 * Push everything written so far out to the underlying stream or buffer.
+	 */
+	@Override
+	public void flush() {
+		drain();
+		if (out != null) {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Flush, then close the underlying stream if there is one.
+	 */
+	@Override
+	public void close() throws IOException {
+		drain();
+		if (out != null) out.close();
+	}
+
+	private void beforeValue() {
+		switch (expect) {
+		case EXPECT_VALUE:
+			expect = EXPECT_NOTHING;
+			break;
+		case EXPECT_FIRST_ARRAY_VALUE:
+			expect = EXPECT_ARRAY_VALUE;
+			break;
+		case EXPECT_ARRAY_VALUE:
+			writeByte(',');
+			break;
+		case EXPECT_OBJECT_VALUE:
+			expect = EXPECT_KEY;
+			break;
+		case EXPECT_FIRST_KEY:
+		case EXPECT_KEY:
+			throw new IllegalStateException("Expected a key before this value");
+		default:
+			throw new IllegalStateException("The root value has already been written");
+		}
+	}
+
+	private void push(boolean object) {
+		if (depth == stack.length) {
+			stack = Arrays.copyOf(stack, depth * 2);
+		}
+		stack[depth++] = object;
+	}
+
+	private void pop() {
+		depth--;
+		if (depth == 0) {
+			expect = EXPECT_NOTHING;
+		} else {
+			expect = stack[depth - 1] ? EXPECT_KEY : EXPECT_ARRAY_VALUE;
+		}
+	}
+
+	private void writeString(String s) {
+		writeByte('"');
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				if (c < 0x20 || c == '"' || c == '\\') {
+					writeEscape(c);
+				} else {
+					if (pos == buffer.length) drain();
+					buffer[pos++] = (byte)c;
+				}
+			} else {
+				if (buffer.length - pos < 4) drain();
+				if (c < 0x800) {
+					buffer[pos++] = (byte)(0xc0 | (c >> 6));
+					buffer[pos++] = (byte)(0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					buffer[pos++] = (byte)(0xf0 | (cp >> 18));
+					buffer[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+					buffer[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+					buffer[pos++] = (byte)(0x80 | (cp & 0x3f));
+				} else if (Character.isSurrogate(c)) {
+					// Unpaired surrogates can't be encoded as UTF-8, so escape them instead
+					writeEscape(c);
+				} else {
+					buffer[pos++] = (byte)(0xe0 | (c >> 12));
+					buffer[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+					buffer[pos++] = (byte)(0x80 | (c & 0x3f));
+				}
+			}
+		}
+		writeByte('"');
+	}
+
+	private void writeEscape(char c) {
+		if (buffer.length - pos < 6) drain();
+		buffer[pos++] = '\\';
+		switch (c) {
+		case '"':  buffer[pos++] = '"'; return;
+		case '\\': buffer[pos++] = '\\'; return;
+		case '\b': buffer[pos++] = 'b'; return;
+		case '\f': buffer[pos++] = 'f'; return;
+		case '\n': buffer[pos++] = 'n'; return;
+		case '\r': buffer[pos++] = 'r'; return;
+		case '\t': buffer[pos++] = 't'; return;
+		default:
+			buffer[pos++] = 'u';
+			buffer[pos++] = HEX[(c >> 12) & 0xf];
+			buffer[pos++] = HEX[(c >> 8) & 0xf];
+			buffer[pos++] = HEX[(c >> 4) & 0xf];
+			buffer[pos++] = HEX[c & 0xf];
+		}
+	}
+
+	private void writeAscii(String s) {
+		int len = s.length();
+		if (buffer.length - pos < len) {
+			drain();
+			if (len > buffer.length) {
+				emit(s.getBytes(Charsets.US_ASCII), 0, len);
+				return;
+			}
+		}
+		for (int i = 0; i < len; i++) {
+			buffer[pos++] = (byte)s.charAt(i);
+		}
+	}
+
+	private void writeByte(char c) {
+		if (pos == buffer.length) drain();
+		buffer[pos++] = (byte)c;
+	}
+
+	private void writeBytes(byte[] b, int off, int len) {
+		if (buffer.length - pos < len) {
+			drain();
+			if (len > buffer.length) {
+				// Too big to be worth copying through the buffer
+				emit(b, off, len);
+				return;
+			}
+		}
+		System.arraycopy(b, off, buffer, pos, len);
+		pos += len;
+	}
+
+	private void drain() {
+		if (pos == 0) return;
+		emit(buffer, 0, pos);
+		pos = 0;
+	}
+
+	private void emit(byte[] b, int off, int len) {
+		if (out != null) {
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		} else {
+			sink.put(b, off, len);
+		}
+	}
+
+}
@@ -0,0 +1,379 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Maps;
+
+import blue.endless.jankson.JsonElement;
+import blue.endless.jankson.api.SyntaxError;
+
+/**
+ * Reads newline-delimited JSON (one document per line) in bulk, parsing on a {@link ForkJoinPool}
+ * so that big imports scale with the cores available. The input is cut into chunks at line
+ * boundaries on the calling thread; each chunk is parsed as its own task, and the results are
+ * handed to a {@link Sink}, in input order or as soon as they're ready.
+ * <p>
+ * Only a bounded number of chunks are read ahead of the sink, so a slow sink holds back reading
+ * instead of letting parsed records pile up on the heap. Calls to the sink are never concurrent,
+ * so it doesn't need to be thread-safe.
+ * <p>
+ * Obtain one from {@link Nojankson#ndjson()}. Immutable and thread-safe.
+ */
+public final class NdjsonLoader {
+
+	/**
+	 * Receives each record. Blank lines are skipped, but still counted in line numbers.
+	 */
+	@FunctionalInterface
+	public interface Sink {
+		/**
+		 * @param line the 1-based line the record was on
+		 */
+		void accept(long line, JsonElement record);
+	}
+
+	/**
+	 * Told about lines that couldn't be parsed, instead of the whole load failing on them.
+	 */
+	@FunctionalInterface
+	public interface MalformedLineHandler {
+		void malformed(long line, SyntaxError error);
+	}
+
+	private final Nojankson nojankson;
+	private final ForkJoinPool pool;
+	private final boolean ordered;
+	private final int chunkSize;
+	private final int maxChunksInFlight;
+	private final MalformedLineHandler malformedLineHandler;
+
+	private NdjsonLoader(Builder builder) {
+		this.nojankson = builder.nojankson;
+		this.pool = builder.pool;
+		this.ordered = builder.ordered;
+		this.chunkSize = builder.chunkSize;
+		this.maxChunksInFlight = builder.maxChunksInFlight;
+		this.malformedLineHandler = builder.malformedLineHandler;
+	}
+
+	/**
+	 * Read every record in the file.
+	 * @see #load(InputStream, Sink)
+	 */
+	public long load(File f, Sink sink) throws IOException, SyntaxError, InterruptedException {
+		try (InputStream in = new FileInputStream(f)) {
+			return load(in, sink);
+		}
+	}
+
+	/**
+	 * Read every record in the stream, blocking until all of them have been handed to the sink. The
+	 * stream is not closed.
+	 * @return how many records were handed to the sink
+	 * @throws SyntaxError if a line is malformed and there's no {@link MalformedLineHandler}; every
+	 * 		record before it has been handed to the sink if loading in order
+	 */
+	public long load(InputStream in, Sink sink) throws IOException, SyntaxError, InterruptedException {
+		Load load = new Load(sink);
+		try {
+			byte[] buf = new byte[chunkSize];
+			int len = 0;
+			long seq = 0;
+			long line = 1;
+			while (load.failure == null) {
+				// Fill the buffer, or get as close as the stream allows
+				int r = 0;
+				while (len < buf.length && (r = in.read(buf, len, buf.length - len)) > 0) {
+					len += r;
+				}
+				boolean eof = r < 0;
+				if (eof) {
+					if (len > 0) load.submit(new Chunk(seq, line, buf, len));
+					break;
+				}
+				int cut = lastNewline(buf, len) + 1;
+				if (cut == 0) {
+					// One line is longer than the whole buffer
+					buf = Arrays.copyOf(buf, buf.length * 2);
+					continue;
+				}
+				byte[] next = new byte[Math.max(chunkSize, len - cut)];
+				System.arraycopy(buf, cut, next, 0, len - cut);
+				load.submit(new Chunk(seq++, line, buf, cut));
+				line += countNewlines(buf, cut);
+				len -= cut;
+				buf = next;
+			}
+		} finally {
+			load.awaitAll();
+		}
+		if (load.failure instanceof SyntaxError) throw (SyntaxError)load.failure;
+		if (load.failure instanceof RuntimeException) throw (RuntimeException)load.failure;
+		if (load.failure instanceof Error) throw (Error)load.failure;
+		return load.delivered;
+	}
+
+	private static int lastNewline(byte[] buf, int len) {
+		for (int i = len - 1; i >= 0; i--) {
+			if (buf[i] == '\n') return i;
+		}
+		return -1;
+	}
+
+	private static long countNewlines(byte[] buf, int len) {
+		long count = 0;
+		for (int i = 0; i < len; i++) {
+			if (buf[i] == '\n') count++;
+		}
+		return count;
+	}
+
+	private static boolean isBlank(byte[] buf, int start, int end) {
+		for (int i = start; i < end; i++) {
+			byte b = buf[i];
+			if (b != ' ' && b != '\t' && b != '\r') return false;
+		}
+		return true;
+	}
+
+	private static final class Chunk {
+		final long seq;
+		final long firstLine;
+		final byte[] data;
+		final int length;
+
+		// Filled in by the worker
+		JsonElement[] records;
+		long[] lines;
+		int count;
+		/** Lines that failed to parse, in order, when they're being skipped. */
+		SyntaxError[] errors;
+		long[] errorLines;
+		int errorCount;
+		/** Set instead of the above when the load should stop. */
+		Throwable failure;
+
+		Chunk(long seq, long firstLine, byte[] data, int length) {
+			this.seq = seq;
+			this.firstLine = firstLine;
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * State for one call to {@link #load(InputStream, Sink)}.
+	 */
+	private final class Load {
+		final Sink sink;
+		final Semaphore permits = new Semaphore(maxChunksInFlight);
+		final Object deliveryLock = new Object();
+		/** Finished chunks waiting for the ones before them, when loading in order. */
+		final Map<Long, Chunk> pending = Maps.newHashMap();
+		long nextSeq;
+		long delivered;
+		volatile Throwable failure;
+
+		Load(Sink sink) {
+			this.sink = sink;
+		}
+
+		void submit(Chunk chunk) throws InterruptedException {
+			permits.acquire();
+			try {
+				pool.execute(() -> {
+					parse(chunk);
+					complete(chunk);
+				});
+			} catch (RuntimeException e) {
+				permits.release();
+				throw e;
+			}
+		}
+
+		void parse(Chunk chunk) {
+			if (failure != null) return;
+			try {
+				byte[] data = chunk.data;
+				int start = 0;
+				long line = chunk.firstLine;
+				chunk.records = new JsonElement[16];
+				chunk.lines = new long[16];
+				for (int i = 0; i <= chunk.length; i++) {
+					if (i < chunk.length && data[i] != '\n') continue;
+					if (!isBlank(data, start, i)) {
+						try {
+							JsonElement record = nojankson.loadElement(data, start, i - start);
+							if (chunk.count == chunk.records.length) {
+								chunk.records = Arrays.copyOf(chunk.records, chunk.count * 2);
+								chunk.lines = Arrays.copyOf(chunk.lines, chunk.count * 2);
+							}
+							chunk.records[chunk.count] = record;
+							chunk.lines[chunk.count++] = line;
+						} catch (SyntaxError e) {
+							if (malformedLineHandler == null) {
+								SyntaxError lineError = new SyntaxError("Line " + line + ": " + e.getMessage());
+								lineError.initCause(e);
+								chunk.failure = lineError;
+								return;
+							}
+							if (chunk.errors == null) {
+								chunk.errors = new SyntaxError[4];
+								chunk.errorLines = new long[4];
+							} else if (chunk.errorCount == chunk.errors.length) {
+								chunk.errors = Arrays.copyOf(chunk.errors, chunk.errorCount * 2);
+								chunk.errorLines = Arrays.copyOf(chunk.errorLines, chunk.errorCount * 2);
+							}
+							chunk.errors[chunk.errorCount] = e;
+							chunk.errorLines[chunk.errorCount++] = line;
+						}
+					}
+					start = i + 1;
+					line++;
+				}
+			} catch (RuntimeException | Error e) {
+				chunk.failure = e;
+			}
+		}
+
+		void complete(Chunk chunk) {
+			synchronized (deliveryLock) {
+				if (!ordered) {
+					deliver(chunk);
+					permits.release();
+					return;
+				}
+				pending.put(chunk.seq, chunk);
+				Chunk next;
+				while ((next = pending.remove(nextSeq)) != null) {
+					deliver(next);
+					nextSeq++;
+					permits.release();
+				}
+			}
+		}
+
+		/** Only called with the delivery lock held. */
+		void deliver(Chunk chunk) {
+			if (failure != null) return;
+			try {
+				int e = 0;
+				for (int i = 0; i < chunk.count; i++) {
+					// Interleave skipped lines so the handler sees them in order, too
+					while (e < chunk.errorCount && chunk.errorLines[e] < chunk.lines[i]) {
+						malformedLineHandler.malformed(chunk.errorLines[e], chunk.errors[e]);
+						e++;
+					}
+					sink.accept(chunk.lines[i], chunk.records[i]);
+					delivered++;
+				}
+				for (; e < chunk.errorCount; e++) {
+					malformedLineHandler.malformed(chunk.errorLines[e], chunk.errors[e]);
+				}
+			} catch (RuntimeException | Error t) {
+				failure = t;
+				return;
+			}
+			if (chunk.failure != null) failure = chunk.failure;
+		}
+
+		/**
+		 * Wait for every submitted chunk to be delivered, so nothing touches the sink after
+		 * {@link #load(InputStream, Sink)} returns.
+		 */
+		void awaitAll() {
+			permits.acquireUninterruptibly(maxChunksInFlight);
+			permits.release(maxChunksInFlight);
+		}
+	}
+
+	public static final class Builder {
+		private final Nojankson nojankson;
+		private ForkJoinPool pool = ForkJoinPool.commonPool();
+		private boolean ordered = true;
+		private int chunkSize = 1024 * 1024;
+		private int maxChunksInFlight = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+		private MalformedLineHandler malformedLineHandler = null;
+
+		/*package*/ Builder(Nojankson nojankson) {
+			this.nojankson = nojankson;
+		}
+
+		/**
+		 * Parse on the given pool instead of the common one.
+		 */
+		public Builder pool(ForkJoinPool pool) {
+			this.pool = pool;
+			return this;
+		}
+
+		/**
+		 * If true, the default, records reach the sink in the order they appear in the input. If
+		 * false, each chunk's records are handed over as soon as that chunk is parsed, which keeps
+		 * the pool busier when chunks vary a lot in cost.
+		 */
+		public Builder ordered(boolean ordered) {
+			this.ordered = ordered;
+			return this;
+		}
+
+		/**
+		 * Roughly how many bytes of input each parsing task gets. Chunks are cut at the last newline
+		 * that fits, and grow to hold lines longer than this. Defaults to 1MB.
+		 */
+		public Builder chunkSize(int chunkSize) {
+			if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive");
+			this.chunkSize = chunkSize;
+			return this;
+		}
+
+		/**
+		 * How many chunks may be read, parsing or waiting for the sink at once before reading
+		 * stops to let the sink catch up. Defaults to twice the number of processors.
+		 */
+		public Builder maxChunksInFlight(int maxChunksInFlight) {
+			if (maxChunksInFlight < 1) throw new IllegalArgumentException("maxChunksInFlight must be positive");
+			this.maxChunksInFlight = maxChunksInFlight;
+			return this;
+		}
+
+		/**
+		 * Skip lines that fail to parse, telling the given handler about them, instead of stopping
+		 * the load at the first one. Null, the default, stops the load.
+		 */
+		public Builder onMalformedLine(@Nullable MalformedLineHandler handler) {
+			this.malformedLineHandler = handler;
+			return this;
+		}
+
+		public NdjsonLoader build() {
+			return new NdjsonLoader(this);
+		}
+	}
+
+}
@@ -16,24 +16,27 @@
 
 package social.ionch.api;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Reader;
-import java.io.StringReader;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
 import java.util.function.BiFunction;
 import java.util.function.Supplier;
 
 import javax.annotation.Nonnull;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
 import blue.endless.jankson.Jankson;
 import blue.endless.jankson.JsonArray;
 import blue.endless.jankson.JsonElement;
 import blue.endless.jankson.JsonGrammar;
+import blue.endless.jankson.JsonNull;
 import blue.endless.jankson.JsonObject;
 import blue.endless.jankson.JsonPrimitive;
 import blue.endless.jankson.api.DeserializationException;
@@ -48,9 +51,15 @@
  */
 public class Nojankson {
 	private final Jankson jank;
+	private final ImmutableMap<Class<?>, JsonBinder<?>> binders;
+	private final JsonVocabulary vocabulary;
+	private final JsonLimits limits;
 	
-	private Nojankson(Jankson jank) {
+	private Nojankson(Jankson jank, Map<Class<?>, JsonBinder<?>> binders, JsonVocabulary vocabulary, JsonLimits limits) {
 		this.jank = jank;
+		this.binders = ImmutableMap.copyOf(binders);
+		this.vocabulary = vocabulary;
+		this.limits = limits;
 	}
 	
 	/**
@@ -58,16 +67,18 @@ private Nojankson(Jankson jank) {
 	 */
 	@Nonnull
 	public JsonObject load(String s) throws SyntaxError {
-		return JsonParser.object().from(s);
+		return JsonParser.object(this).from(s);
 	}
 	
 	/**
+	 * The file is mapped into memory rather than read through a stream, so the only copy made of it
+	 * is into the tokenizer's own buffer, a window at a time.
 	 * @see Jankson#load(File)
 	 */
 	@Nonnull
 	public JsonObject load(File f) throws IOException, SyntaxError {
-		try(InputStream in = new FileInputStream(f)) {
-			return load(in);
+		try(FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			return JsonParser.object(this).from(channel);
 		}
 	}
 	
@@ -76,7 +87,44 @@ public JsonObject load(File f) throws IOException, SyntaxError {
 	 */
 	@Nonnull
 	public JsonObject load(InputStream in) throws IOException, SyntaxError {
-		return JsonParser.object().from(in);
+		return JsonParser.object(this).from(in);
+	}
+	
+	/**
+	 * Parse a JSON object from the stream, feeding every byte read to the given digest in the same
+	 * pass, such as to check a request body against its {@code Digest} header without buffering it
+	 * first. Once this returns, the digest has seen the whole stream.
+	 * @see #load(InputStream)
+	 */
+	@Nonnull
+	public JsonObject load(InputStream in, MessageDigest digest) throws IOException, SyntaxError {
+		return JsonParser.object(this).from(in, digest);
+	}
+	
+	/**
+	 * Parse a UTF-8 encoded JSON object directly out of the given array, without copying it.
+	 */
+	@Nonnull
+	public JsonObject load(byte[] bytes) throws SyntaxError {
+		return load(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Parse a UTF-8 encoded JSON object directly out of the given region of an array, without
+	 * copying it.
+	 */
+	@Nonnull
+	public JsonObject load(byte[] bytes, int off, int len) throws SyntaxError {
+		return JsonParser.object(this).from(bytes, off, len);
+	}
+	
+	/**
+	 * Parse a UTF-8 encoded JSON object from the remaining bytes in the given buffer. The buffer's
+	 * position is left alone.
+	 */
+	@Nonnull
+	public JsonObject load(ByteBuffer buf) throws SyntaxError {
+		return JsonParser.object(this).from(buf);
 	}
 	
 	/**
@@ -84,16 +132,17 @@ public JsonObject load(InputStream in) throws IOException, SyntaxError {
 	 */
 	@Nonnull
 	public JsonElement loadElement(String s) throws SyntaxError {
-		return JsonParser.any().from(s);
+		return JsonParser.any(this).from(s);
 	}
 	
 	/**
+	 * @see #load(File)
 	 * @see Jankson#loadElement(File)
 	 */
 	@Nonnull
 	public JsonElement loadElement(File f) throws IOException, SyntaxError {
-		try(InputStream in = new FileInputStream(f)) {
-			return loadElement(in);
+		try(FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			return JsonParser.any(this).from(channel);
 		}
 	}
 	
@@ -102,7 +151,231 @@ public JsonElement loadElement(File f) throws IOException, SyntaxError {
 	 */
 	@Nonnull
 	public JsonElement loadElement(InputStream in) throws IOException, SyntaxError {
-		return JsonParser.any().from(in);
+		return JsonParser.any(this).from(in);
+	}
+	
+	/**
+	 * @see #load(InputStream, MessageDigest)
+	 */
+	@Nonnull
+	public JsonElement loadElement(InputStream in, MessageDigest digest) throws IOException, SyntaxError {
+		return JsonParser.any(this).from(in, digest);
+	}
+	
+	/**
+	 * Parse a UTF-8 encoded JSON value directly out of the given array, without copying it.
+	 */
+	@Nonnull
+	public JsonElement loadElement(byte[] bytes) throws SyntaxError {
+		return loadElement(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Parse a UTF-8 encoded JSON value directly out of the given region of an array, without
+	 * copying it.
+	 */
+	@Nonnull
+	public JsonElement loadElement(byte[] bytes, int off, int len) throws SyntaxError {
+		return JsonParser.any(this).from(bytes, off, len);
+	}
+	
+	/**
+	 * Parse a UTF-8 encoded JSON value from the remaining bytes in the given buffer. The buffer's
+	 * position is left alone.
+	 */
+	@Nonnull
+	public JsonElement loadElement(ByteBuffer buf) throws SyntaxError {
+		return JsonParser.any(this).from(buf);
+	}
+	
+	/**
+	 * Parse a JSON object straight into the compact, read-only form meant for data that's held in
+	 * memory for a long time, without building a Jankson tree first.
+	 * @see FlatJsonObject
+	 */
+	@Nonnull
+	public FlatJsonObject loadFlat(String s) throws SyntaxError {
+		return flat(reader(s));
+	}
+	
+	/**
+	 * @see #loadFlat(String)
+	 */
+	@Nonnull
+	public FlatJsonObject loadFlat(byte[] bytes) throws SyntaxError {
+		return flat(reader(bytes));
+	}
+	
+	/**
+	 * @see #loadFlat(String)
+	 */
+	@Nonnull
+	public FlatJsonObject loadFlat(byte[] bytes, int off, int len) throws SyntaxError {
+		return flat(reader(bytes, off, len));
+	}
+	
+	/**
+	 * @see #loadFlat(String)
+	 */
+	@Nonnull
+	public FlatJsonObject loadFlat(ByteBuffer buf) throws SyntaxError {
+		return flat(reader(buf));
+	}
+	
+	/**
+	 * @see #loadFlat(String)
+	 */
+	@Nonnull
+	public FlatJsonObject loadFlat(InputStream in) throws SyntaxError {
+		return flat(reader(in));
+	}
+	
+	private static FlatJsonObject flat(JsonEventReader reader) throws SyntaxError {
+		// Same contract as load(): the root has to be an object, and nothing may follow it
+		try {
+			if (reader.next() != JsonEventReader.Event.START_OBJECT)
+				throw new SyntaxError("JSON did not contain the correct type, expected JsonObject.");
+			FlatJsonObject obj = FlatJsonObject.read(reader);
+			reader.next();
+			return obj;
+		} finally {
+			reader.release();
+		}
+	}
+	
+	/**
+	 * Open a pull-style reader over the given JSON, for walking it one event at a time instead of
+	 * building the whole tree.
+	 */
+	public JsonEventReader reader(String s) throws SyntaxError {
+		return new JsonEventReader(configure(JsonTokener.from(s)), null);
+	}
+	
+	/**
+	 * Open a pull-style reader over the given UTF-8 encoded JSON. Closing the reader closes the
+	 * stream.
+	 * @see #reader(String)
+	 */
+	public JsonEventReader reader(InputStream in) throws SyntaxError {
+		return new JsonEventReader(configure(JsonTokener.from(in)), in);
+	}
+	
+	/**
+	 * Open a pull-style reader over the given UTF-8 encoded JSON, feeding every byte read to the
+	 * given digest. The digest has only seen the whole stream once the reader has returned
+	 * {@link JsonEventReader.Event#END_DOCUMENT END_DOCUMENT}.
+	 * @see #reader(InputStream)
+	 */
+	public JsonEventReader reader(InputStream in, MessageDigest digest) throws SyntaxError {
+		return new JsonEventReader(configure(JsonTokener.from(in, digest)), in);
+	}
+	
+	/**
+	 * Open a pull-style reader over a UTF-8 encoded JSON file, mapped into memory a window at a time
+	 * so that even files of many gigabytes can be walked without reading them onto the heap. Closing
+	 * the reader closes the file.
+	 * @see #reader(String)
+	 */
+	public JsonEventReader reader(File f) throws IOException, SyntaxError {
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			return new JsonEventReader(configure(JsonTokener.from(channel)), channel);
+		} catch (IOException | SyntaxError | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Open a pull-style reader directly over the given UTF-8 encoded JSON, without copying it.
+	 * @see #reader(String)
+	 */
+	public JsonEventReader reader(byte[] bytes) throws SyntaxError {
+		return reader(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Open a pull-style reader directly over the given region of UTF-8 encoded JSON, without
+	 * copying it.
+	 * @see #reader(String)
+	 */
+	public JsonEventReader reader(byte[] bytes, int off, int len) throws SyntaxError {
+		return new JsonEventReader(configure(new JsonTokener(bytes, off, len)), null);
+	}
+	
+	/**
+	 * Open a pull-style reader over the remaining bytes of the given buffer. The buffer's position
+	 * is left alone.
+	 * @see #reader(String)
+	 */
+	public JsonEventReader reader(ByteBuffer buf) throws SyntaxError {
+		return new JsonEventReader(configure(JsonTokener.from(buf)), null);
+	}
+	
+	/**
+	 * Start collecting a document that arrives in chunks, such as a request body read with
+	 * non-blocking I/O, to be parsed by this Nojankson once it's all there.
+	 */
+	public JsonFeeder feeder() {
+		return new JsonFeeder(this);
+	}
+	
+	/**
+	 * Set up a bulk loader for newline-delimited JSON that parses with this Nojankson, limits and
+	 * all, on a fork-join pool.
+	 */
+	public NdjsonLoader.Builder ndjson() {
+		return new NdjsonLoader.Builder(this);
+	}
+	
+	/**
+	 * Pick just the values on the given projection's paths out of a JSON object, skipping over
+	 * everything else without building it.
+	 * @return an object mapping each path that was found to its value
+	 * @see JsonProjection#read(JsonEventReader)
+	 */
+	public JsonObject project(String s, JsonProjection projection) throws SyntaxError {
+		return project(reader(s), projection);
+	}
+	
+	/**
+	 * @see #project(String, JsonProjection)
+	 */
+	public JsonObject project(InputStream in, JsonProjection projection) throws SyntaxError {
+		return project(reader(in), projection);
+	}
+	
+	/**
+	 * @see #project(String, JsonProjection)
+	 */
+	public JsonObject project(byte[] bytes, JsonProjection projection) throws SyntaxError {
+		return project(reader(bytes), projection);
+	}
+	
+	/**
+	 * @see #project(String, JsonProjection)
+	 */
+	public JsonObject project(ByteBuffer buf, JsonProjection projection) throws SyntaxError {
+		return project(reader(buf), projection);
+	}
+	
+	private JsonTokener configure(JsonTokener tokener) throws SyntaxError {
+		tokener.vocabulary = vocabulary;
+		if (limits != JsonLimits.NONE) tokener.limit(limits);
+		return tokener;
+	}
+	
+	/*package*/ JsonLimits getLimits() {
+		return limits;
+	}
+	
+	private static JsonObject project(JsonEventReader reader, JsonProjection projection) throws SyntaxError {
+		// Projections usually stop before the end of the document, so the reader won't release itself
+		try {
+			return projection.read(reader);
+		} finally {
+			reader.release();
+		}
 	}
 	
 	/**
@@ -113,21 +386,93 @@ public <T> T fromJson(JsonObject obj, Class<T> clazz) {
 	}
 	
 	/**
+	 * If a {@link JsonBinder} was registered for the class, the object is filled in straight from
+	 * the text without building a tree for it.
 	 * @see Jankson#fromJson(String, Class)
 	 */
 	public <T> T fromJson(String json, Class<T> clazz) throws SyntaxError {
+		JsonBinder<T> binder = getBinder(clazz);
+		if (binder != null) {
+			try {
+				return bind(reader(json), binder, false);
+			} catch (DeserializationException e) {
+				throw new AssertionError(e);
+			}
+		}
 		JsonObject obj = load(json);
 		return fromJson(obj, clazz);
 	}
 	
 	/**
+	 * @see #fromJson(String, Class)
+	 */
+	public <T> T fromJson(byte[] json, Class<T> clazz) throws SyntaxError {
+		return fromJson(json, 0, json.length, clazz);
+	}
+	
+	/**
+	 * @see #fromJson(String, Class)
+	 */
+	public <T> T fromJson(byte[] json, int off, int len, Class<T> clazz) throws SyntaxError {
+		JsonBinder<T> binder = getBinder(clazz);
+		if (binder != null) {
+			try {
+				return bind(reader(json, off, len), binder, false);
+			} catch (DeserializationException e) {
+				throw new AssertionError(e);
+			}
+		}
+		JsonObject obj = load(json, off, len);
+		return fromJson(obj, clazz);
+	}
+	
+	/**
+	 * If a {@link JsonBinder} was registered for the class, the object is filled in straight from
+	 * the text without building a tree for it.
 	 * @see Jankson#fromJsonCarefully(String, Class)
 	 */
 	public <T> T fromJsonCarefully(String json, Class<T> clazz) throws SyntaxError, DeserializationException {
+		JsonBinder<T> binder = getBinder(clazz);
+		if (binder != null) return bind(reader(json), binder, true);
 		JsonObject obj = load(json);
 		return fromJsonCarefully(obj, clazz);
 	}
 	
+	/**
+	 * @see #fromJsonCarefully(String, Class)
+	 */
+	public <T> T fromJsonCarefully(byte[] json, Class<T> clazz) throws SyntaxError, DeserializationException {
+		return fromJsonCarefully(json, 0, json.length, clazz);
+	}
+	
+	/**
+	 * @see #fromJsonCarefully(String, Class)
+	 */
+	public <T> T fromJsonCarefully(byte[] json, int off, int len, Class<T> clazz) throws SyntaxError, DeserializationException {
+		JsonBinder<T> binder = getBinder(clazz);
+		if (binder != null) return bind(reader(json, off, len), binder, true);
+		JsonObject obj = load(json, off, len);
+		return fromJsonCarefully(obj, clazz);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private <T> JsonBinder<T> getBinder(Class<T> clazz) {
+		return (JsonBinder<T>)binders.get(clazz);
+	}
+	
+	private static <T> T bind(JsonEventReader reader, JsonBinder<T> binder, boolean careful) throws SyntaxError, DeserializationException {
+		// Same contract as load(): the root has to be an object, and nothing may follow it
+		try {
+			if (reader.next() != JsonEventReader.Event.START_OBJECT)
+				throw new SyntaxError("JSON did not contain the correct type, expected JsonObject.");
+			T t = careful ? binder.readCarefully(reader) : binder.read(reader);
+			reader.next();
+			return t;
+		} finally {
+			reader.release();
+		}
+	}
+	
 	/**
 	 * @see Jankson#fromJsonCarefully(JsonObject, Class)
 	 */
@@ -155,6 +500,9 @@ public static Builder builder() {
 	
 	public static class Builder {
 		private final Jankson.Builder jank = Jankson.builder();
+		private final Map<Class<?>, JsonBinder<?>> binders = Maps.newHashMap();
+		private JsonVocabulary vocabulary = null;
+		private JsonLimits limits = JsonLimits.NONE;
 		
 		/**
 		 * @see Jankson.Builder#registerSerializer
@@ -180,8 +528,38 @@ public <T> Builder registerTypeFactory(Class<T> clazz, Supplier<T> factory) {
 			return this;
 		}
 		
+		/**
+		 * Have {@link Nojankson#fromJson(String, Class)} and friends fill in the given class with a
+		 * binder instead of going through Jankson's tree and marshaller. Only exact class matches
+		 * use the binder.
+		 */
+		public <T> Builder registerBinder(Class<T> clazz, JsonBinder<T> binder) {
+			binders.put(clazz, binder);
+			return this;
+		}
+		
+		/**
+		 * Have parsed strings that match a word in the given vocabulary share the vocabulary's
+		 * instance instead of each getting their own copy. Null, the default, turns this off.
+		 * @see JsonVocabulary#ACTIVITY_STREAMS
+		 */
+		public Builder vocabulary(JsonVocabulary vocabulary) {
+			this.vocabulary = vocabulary;
+			return this;
+		}
+		
+		/**
+		 * Parse everything under the given limits, failing with a {@link JsonLimitException} as soon
+		 * as a document breaks one. Defaults to {@link JsonLimits#NONE}.
+		 * @see JsonLimits#FEDERATION
+		 */
+		public Builder limits(JsonLimits limits) {
+			this.limits = limits;
+			return this;
+		}
+		
 		public Nojankson build() {
-			return new Nojankson(jank.build());
+			return new Nojankson(jank.build(), binders, vocabulary, limits);
 		}
 	}
 	
@@ -212,21 +590,39 @@ private static final class JsonParser {
 
 		public static final class JsonParserContext<T> {
 			private final Class<T> clazz;
+			private final Nojankson owner;
 
-			JsonParserContext(Class<T> clazz) {
+			JsonParserContext(Class<T> clazz, Nojankson owner) {
 				this.clazz = clazz;
+				this.owner = owner;
 			}
 
 			public T from(String s) throws SyntaxError {
-				try {
-					return new JsonParser(new JsonTokener(new StringReader(s))).parse(clazz);
-				} catch (IOException e) {
-					throw new AssertionError(e);
-				}
+				return parse(JsonTokener.from(s));
 			}
 
 			public T from(InputStream stm) throws SyntaxError, IOException {
-				return new JsonParser(new JsonTokener(stm)).parse(clazz);
+				return parse(JsonTokener.from(stm));
+			}
+
+			public T from(InputStream stm, MessageDigest digest) throws SyntaxError, IOException {
+				return parse(JsonTokener.from(stm, digest));
+			}
+
+			public T from(byte[] bytes, int off, int len) throws SyntaxError {
+				return parse(new JsonTokener(bytes, off, len));
+			}
+
+			public T from(ByteBuffer buf) throws SyntaxError {
+				return parse(JsonTokener.from(buf));
+			}
+
+			public T from(FileChannel channel) throws SyntaxError, IOException {
+				return parse(JsonTokener.from(channel));
+			}
+
+			private T parse(JsonTokener tokener) throws SyntaxError {
+				return new JsonParser(owner.configure(tokener)).parse(clazz);
 			}
 		}
 
@@ -234,19 +630,24 @@ public T from(InputStream stm) throws SyntaxError, IOException {
 			this.tokener = tokener;
 		}
 
-		public static JsonParserContext<JsonObject> object() {
-			return new JsonParserContext<>(JsonObject.class);
+		public static JsonParserContext<JsonObject> object(Nojankson owner) {
+			return new JsonParserContext<>(JsonObject.class, owner);
 		}
 
-		public static JsonParserContext<JsonElement> any() {
-			return new JsonParserContext<>(JsonElement.class);
+		public static JsonParserContext<JsonElement> any(Nojankson owner) {
+			return new JsonParserContext<>(JsonElement.class, owner);
 		}
 
 		<T> T parse(Class<T> clazz) throws SyntaxError {
-			advanceToken();
-			Object parsed = currentValue();
-			if (advanceToken() != JsonTokener.TOKEN_EOF)
-				throw tokener.createParseException(null, "Expected end of input, got " + token, true);
+			Object parsed;
+			try {
+				advanceToken();
+				parsed = currentValue();
+				if (advanceToken() != JsonTokener.TOKEN_EOF)
+					throw tokener.createParseException(null, "Expected end of input, got " + token, true);
+			} finally {
+				tokener.release();
+			}
 			if (clazz != Object.class && (parsed == null || !clazz.isAssignableFrom(parsed.getClass())))
 				throw tokener.createParseException(null,
 						"JSON did not contain the correct type, expected " + clazz.getSimpleName() + ".",
@@ -255,6 +656,9 @@ <T> T parse(Class<T> clazz) throws SyntaxError {
 		}
 
 		private JsonElement currentValue() throws SyntaxError {
+			// Strings stay in the tokener's buffer until something actually asks for them
+			if (token == JsonTokener.TOKEN_STRING)
+				return new JsonPrimitive(tokener.stringValue());
 			// Only a value start token should appear when we're in the context of parsing a JSON value
 			if (token >= JsonTokener.TOKEN_VALUE_MIN && value instanceof JsonElement)
 				return value;
@@ -285,7 +689,7 @@ private int advanceToken() throws SyntaxError {
 					while (true) {
 						if (token != JsonTokener.TOKEN_STRING)
 							throw tokener.createParseException(null, "Expected STRING, got " + token, true);
-						String key = ((JsonPrimitive)value).asString();
+						String key = tokener.stringValue();
 						if (advanceToken() != JsonTokener.TOKEN_COLON)
 							throw tokener.createParseException(null, "Expected COLON, got " + token, true);
 						advanceToken();
@@ -307,650 +711,16 @@ private int advanceToken() throws SyntaxError {
 				value = JsonPrimitive.FALSE;
 				break;
 			case JsonTokener.TOKEN_NULL:
-				value = null;
-				break;
-			case JsonTokener.TOKEN_STRING:
-				value = new JsonPrimitive(tokener.reusableBuffer.toString());
+				value = JsonNull.INSTANCE;
 				break;
 			case JsonTokener.TOKEN_NUMBER:
-				value = new JsonPrimitive(parseNumber());
+				value = new JsonPrimitive(tokener.numberValue());
 				break;
 			default:
 			}
 
 			return token;
 		}
-
-		private Number parseNumber() throws SyntaxError {
-			String number = tokener.reusableBuffer.toString();
-
-			try {
-				if (tokener.isDouble)
-					return Double.parseDouble(number);
-
-				// Quick parse for single-digits
-				if (number.length() == 1) {
-					return number.charAt(0) - '0';
-				} else if (number.length() == 2 && number.charAt(0) == '-') {
-					return '0' - number.charAt(1);
-				}
-
-				// HACK: Attempt to parse using the approximate best type for this
-				boolean firstMinus = number.charAt(0) == '-';
-				int length = firstMinus ? number.length() - 1 : number.length();
-				// CHECKSTYLE_OFF: MagicNumber
-				if (length < 10 || (length == 10 && number.charAt(firstMinus ? 1 : 0) < '2')) // 2 147 483 647
-					return Integer.parseInt(number);
-				if (length < 19 || (length == 19 && number.charAt(firstMinus ? 1 : 0) < '9')) // 9 223 372 036 854 775 807
-					return Long.parseLong(number);
-				// CHECKSTYLE_ON: MagicNumber
-				return new BigInteger(number);
-			} catch (NumberFormatException e) {
-				throw tokener.createParseException(e, "Malformed number: " + number, true);
-			}
-		}
-		
-		private static final class JsonTokener {
-			// Used by tests
-			static final int BUFFER_SIZE = 32 * 1024;
-
-			static final int BUFFER_ROOM = 256;
-
-			private int linePos = 1, rowPos, charOffset, utf8adjust;
-			private int tokenCharPos, tokenCharOffset;
-
-			private boolean eof;
-			private int index;
-			private final Reader reader;
-			private final char[] buffer = new char[BUFFER_SIZE];
-			private int bufferLength;
-
-			private final boolean utf8;
-
-			protected StringBuilder reusableBuffer = new StringBuilder();
-			protected boolean isDouble;
-
-			static final char[] TRUE = { 'r', 'u', 'e' };
-			static final char[] FALSE = { 'a', 'l', 's', 'e' };
-			static final char[] NULL = { 'u', 'l', 'l' };
-
-			static final int TOKEN_EOF = 0;
-			static final int TOKEN_COMMA = 1;
-			static final int TOKEN_COLON = 2;
-			static final int TOKEN_OBJECT_END = 3;
-			static final int TOKEN_ARRAY_END = 4;
-			static final int TOKEN_NULL = 5;
-			static final int TOKEN_TRUE = 6;
-			static final int TOKEN_FALSE = 7;
-			static final int TOKEN_STRING = 8;
-			static final int TOKEN_NUMBER = 9;
-			static final int TOKEN_OBJECT_START = 10;
-			static final int TOKEN_ARRAY_START = 11;
-			static final int TOKEN_VALUE_MIN = TOKEN_NULL;
-
-			private static final class PseudoUtf8Reader extends Reader {
-				private final InputStream buffered;
-				private byte[] buf = new byte[BUFFER_SIZE];
-
-				PseudoUtf8Reader(InputStream buffered) {
-					this.buffered = buffered;
-				}
-
-				@Override
-				public int read(char[] cbuf, int off, int len) throws IOException {
-					int r = buffered.read(buf, off, len);
-					for (int i = off; i < off + r; i++)
-						cbuf[i] = (char)buf[i];
-					return r;
-				}
-
-				@Override
-				public void close() throws IOException {
-				}
-			}
-			
-			JsonTokener(Reader reader) throws SyntaxError, IOException {
-				this.reader = reader;
-				this.utf8 = false;
-				init();
-			}
-			
-			JsonTokener(InputStream stm) throws SyntaxError, IOException {
-				final InputStream buffered = (stm instanceof BufferedInputStream || stm instanceof ByteArrayInputStream)
-						? stm
-						: new BufferedInputStream(stm);
-				this.reader = new PseudoUtf8Reader(buffered);
-				this.utf8 = true;
-				init();
-			}
-
-			private void init() throws SyntaxError {
-				eof = refillBuffer();
-				consumeWhitespace();
-			}
-
-			void consumeKeyword(char first, char[] expected) throws SyntaxError {
-				if (ensureBuffer(expected.length) < expected.length) {
-					throw createHelpfulException(first, expected, 0);
-				}
-
-				for (int i = 0; i < expected.length; i++)
-					if (buffer[index++] != expected[i])
-						throw createHelpfulException(first, expected, i);
-
-				fixupAfterRawBufferRead();
-
-				// The token should end with something other than an ASCII letter
-				if (isAsciiLetter(peekChar()))
-					throw createHelpfulException(first, expected, expected.length);
-			}
-
-			void consumeTokenNumber(char savedChar) throws SyntaxError {
-				reusableBuffer.setLength(0);
-				reusableBuffer.append(savedChar);
-				isDouble = false;
-
-				// The JSON spec is way stricter about number formats than
-				// Double.parseDouble(). This is a hand-rolled pseudo-parser that
-				// verifies numbers we read.
-				int state;
-				if (savedChar == '-') {
-					state = 1;
-				} else if (savedChar == '0') {
-					state = 3;
-				} else {
-					state = 2;
-				}
-				
-				outer: while (true) {
-					int n = ensureBuffer(BUFFER_ROOM);
-					if (n == 0)
-						break outer;
-
-					for (int i = 0; i < n; i++) {
-						char nc = buffer[index];
-						if (!isDigitCharacter(nc))
-							break outer;
-
-						int ns = -1;
-						sw:
-						switch (state) {
-						case 1: // start leading negative
-							if (nc == '-' && state == 0) {
-								ns = 1; break sw;
-							}
-							if (nc == '0') {
-								ns = 3; break sw;
-							}
-							if (nc >= '0' && nc <= '9') {
-								ns = 2; break sw;
-							}
-							break;
-						case 2: // no leading zero
-						case 3: // leading zero
-							if ((nc >= '0' && nc <= '9') && state == 2) {
-								ns = 2; break sw;
-							}
-							if (nc == '.') {
-								isDouble = true;
-								ns = 4; break sw;
-							}
-							if (nc == 'e' || nc == 'E') {
-								isDouble = true;
-								ns = 6; break sw;
-							}
-							break;
-						case 4: // after period
-						case 5: // after period, one digit read
-							if (nc >= '0' && nc <= '9') {
-								ns = 5; break sw;
-							}
-							if ((nc == 'e' || nc == 'E') && state == 5) {
-								isDouble = true;
-								ns = 6; break sw;
-							}
-							break;
-						case 6: // after exponent
-						case 7: // after exponent and sign
-							if (nc == '+' || nc == '-' && state == 6) {
-								ns = 7; break sw;
-							}
-							if (nc >= '0' && nc <= '9') {
-								ns = 8; break sw;
-							}
-							break;
-						case 8: // after digits
-							if (nc >= '0' && nc <= '9') {
-								ns = 8; break sw;
-							}
-							break;
-						default:
-							assert false : "Impossible"; // will throw malformed number
-						}
-						reusableBuffer.append(nc);
-						index++;
-						if (ns == -1)
-							throw createParseException(null, "Malformed number: " + reusableBuffer, true);
-						state = ns;
-					}
-				}
-				
-				if (state != 2 && state != 3 && state != 5 && state != 8)
-					throw createParseException(null, "Malformed number: " + reusableBuffer, true);
-				
-				// Special case for -0
-				if (state == 3 && savedChar == '-')
-					isDouble = true;
-				
-				fixupAfterRawBufferRead();
-			}
-
-			void consumeTokenString() throws SyntaxError {
-				reusableBuffer.setLength(0);
-				
-				start:
-				while (true) {
-					int n = ensureBuffer(BUFFER_ROOM);
-					if (n == 0)
-						throw createParseException(null, "String was not terminated before end of input", true);
-					
-					for (int i = 0; i < n; i++) {
-						char c = stringChar();
-						if (c == '"') {
-							fixupAfterRawBufferRead();
-							reusableBuffer.append(buffer, index - i - 1, i);
-							return;
-						}
-						if (c == '\\' || (utf8 && (c & 0x80) != 0)) {
-							reusableBuffer.append(buffer, index - i - 1, i);
-							index--;
-							break start;
-						}
-					}
-					
-					reusableBuffer.append(buffer, index - n, n);
-				}
-				
-				outer: while (true) {
-					int n = ensureBuffer(BUFFER_ROOM);
-					if (n == 0)
-						throw createParseException(null, "String was not terminated before end of input", true);
-			
-					int end = index + n;
-					while (index < end) {
-						char c = stringChar();
-						
-						if (utf8 && (c & 0x80) != 0) {
-							// If it's a UTF-8 codepoint, we know it won't have special meaning
-							consumeTokenStringUtf8Char(c);
-							continue outer;
-						}
-			
-						switch (c) {
-						case '\"':
-							fixupAfterRawBufferRead();
-							return;
-						case '\\':
-							char escape = buffer[index++];
-							switch (escape) {
-							case 'b':
-								reusableBuffer.append('\b');
-								break;
-							case 'f':
-								reusableBuffer.append('\f');
-								break;
-							case 'n':
-								reusableBuffer.append('\n');
-								break;
-							case 'r':
-								reusableBuffer.append('\r');
-								break;
-							case 't':
-								reusableBuffer.append('\t');
-								break;
-							case '"':
-							case '/':
-							case '\\':
-								reusableBuffer.append(escape);
-								break;
-							case 'u':
-								int escaped = 0;
-			
-								for (int j = 0; j < 4; j++) {
-									escaped <<= 4;
-									int digit = buffer[index++];
-									if (digit >= '0' && digit <= '9') {
-										escaped |= (digit - '0');
-									} else if (digit >= 'A' && digit <= 'F') {
-										escaped |= (digit - 'A') + 10;
-									} else if (digit >= 'a' && digit <= 'f') {
-										escaped |= (digit - 'a') + 10;
-									} else {
-										throw createParseException(null, "Expected unicode hex escape character: " + (char)digit
-												+ " (" + digit + ")", false);
-									}
-								}
-			
-								reusableBuffer.append((char)escaped);
-								break;
-							default:
-								throw createParseException(null, "Invalid escape: \\" + escape, false);
-							}
-							break;
-						default:
-							reusableBuffer.append(c);
-						}
-					}
-					
-					if (index > bufferLength) {
-						index = bufferLength; // Reset index to last valid location
-						throw createParseException(null,
-								"EOF encountered in the middle of a string escape",
-								false);
-					}
-				}
-			}
-
-			@SuppressWarnings("fallthrough")
-			private void consumeTokenStringUtf8Char(char c) throws SyntaxError {
-				ensureBuffer(5);
-
-				// Hand-UTF8-decoding
-				switch (c & 0xf0) {
-				case 0x80:
-				case 0x90:
-				case 0xa0:
-				case 0xb0:
-					throw createParseException(null,
-							"Illegal UTF-8 continuation byte: 0x" + Integer.toHexString(c & 0xff), false);
-				case 0xc0:
-					// Check for illegal C0 and C1 bytes
-					if ((c & 0xe) == 0)
-						throw createParseException(null, "Illegal UTF-8 byte: 0x" + Integer.toHexString(c & 0xff),
-								false);
-					// fall-through
-				case 0xd0:
-					c = (char)((c & 0x1f) << 6 | (buffer[index++] & 0x3f));
-					reusableBuffer.append(c);
-					utf8adjust++;
-					break;
-				case 0xe0:
-					c = (char)((c & 0x0f) << 12 | (buffer[index++] & 0x3f) << 6 | (buffer[index++] & 0x3f));
-					utf8adjust += 2;
-					// Check for illegally-encoded surrogate - http://unicode.org/faq/utf_bom.html#utf8-4
-					if ((c >= '\ud800' && c <= '\udbff') || (c >= '\udc00' && c <= '\udfff'))
-						throw createParseException(null, "Illegal UTF-8 codepoint: 0x" + Integer.toHexString(c),
-								false);
-					reusableBuffer.append(c);
-					break;
-				case 0xf0:
-					if ((c & 0xf) >= 5)
-						throw createParseException(null, "Illegal UTF-8 byte: 0x" + Integer.toHexString(c & 0xff),
-								false);
-
-					// Extended char
-					switch ((c & 0xc) >> 2) {
-					case 0:
-					case 1:
-						reusableBuffer.appendCodePoint((c & 7) << 18 | (buffer[index++] & 0x3f) << 12
-								| (buffer[index++] & 0x3f) << 6 | (buffer[index++] & 0x3f));
-						utf8adjust += 3;
-						break;
-					case 2:
-						// TODO: \uFFFD (replacement char)
-						int codepoint = (c & 3) << 24 | (buffer[index++] & 0x3f) << 18 | (buffer[index++] & 0x3f) << 12
-								| (buffer[index++] & 0x3f) << 6 | (buffer[index++] & 0x3f);
-						throw createParseException(null,
-								"Unable to represent codepoint 0x" + Integer.toHexString(codepoint)
-										+ " in a Java string", false);
-					case 3:
-						codepoint = (c & 1) << 30 | (buffer[index++] & 0x3f) << 24 | (buffer[index++] & 0x3f) << 18
-								| (buffer[index++] & 0x3f) << 12 | (buffer[index++] & 0x3f) << 6
-								| (buffer[index++] & 0x3f);
-						throw createParseException(null,
-								"Unable to represent codepoint 0x" + Integer.toHexString(codepoint)
-										+ " in a Java string", false);
-					default:
-						assert false : "Impossible";
-					}
-					break;
-				default:
-					// Regular old byte
-					break;
-				}
-				if (index > bufferLength)
-					throw createParseException(null, "UTF-8 codepoint was truncated", false);
-			}
-
-			private char stringChar() throws SyntaxError {
-				char c = buffer[index++];
-				if (c < 32)
-					throwControlCharacterException(c);
-				return c;
-			}
-
-			private void throwControlCharacterException(char c) throws SyntaxError {
-				// Need to ensure that we position this at the correct location for the error
-				if (c == '\n') {
-					linePos++;
-					rowPos = index + 1 + charOffset;
-					utf8adjust = 0;
-				}
-				throw createParseException(null,
-						"Strings may not contain control characters: 0x" + Integer.toString(c, 16), false);
-			}
-
-			private boolean isDigitCharacter(int c) {
-				return (c >= '0' && c <= '9') || c == 'e' || c == 'E' || c == '.' || c == '+' || c == '-';
-			}
-
-			boolean isWhitespace(int c) {
-				return c == ' ' || c == '\n' || c == '\r' || c == '\t';
-			}
-
-			boolean isAsciiLetter(int c) {
-				return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
-			}
-
-			private boolean refillBuffer() throws SyntaxError {
-				try {
-					int r = reader.read(buffer, 0, buffer.length);
-					if (r <= 0) {
-						return true;
-					}
-					charOffset += bufferLength;
-					index = 0;
-					bufferLength = r;
-					return false;
-				} catch (IOException e) {
-					throw createParseException(e, "IOException", true);
-				}
-			}
-
-			private int peekChar() {
-				return eof ? -1 : buffer[index];
-			}
-
-			int ensureBuffer(int n) throws SyntaxError {
-				// We're good here
-				if (bufferLength - n >= index) {
-					return n;
-				}
-
-				// Nope, we need to read more, but we also have to retain whatever buffer we have
-				if (index > 0) {
-					charOffset += index;
-					bufferLength = bufferLength - index;
-					System.arraycopy(buffer, index, buffer, 0, bufferLength);
-					index = 0;
-				}
-				try {
-					while (buffer.length > bufferLength) {
-						int r = reader.read(buffer, bufferLength, buffer.length - bufferLength);
-						if (r <= 0) {
-							return bufferLength - index;
-						}
-						bufferLength += r;
-						if (bufferLength > n)
-							return bufferLength - index;
-					}
-
-					// Should be impossible
-					assert false : "Unexpected internal error";
-					throw new IOException("Unexpected internal error");
-				} catch (IOException e) {
-					throw createParseException(e, "IOException", true);
-				}
-			}
-
-			private int advanceChar() throws SyntaxError {
-				if (eof)
-					return -1;
-
-				int c = buffer[index];
-				if (c == '\n') {
-					linePos++;
-					rowPos = index + 1 + charOffset;
-					utf8adjust = 0;
-				}
-
-				index++;
-
-				// Prepare for next read
-				if (index >= bufferLength)
-					eof = refillBuffer();
-
-				return c;
-			}
-			
-			private void consumeWhitespace() throws SyntaxError {
-				int n;
-				do {
-					n = ensureBuffer(BUFFER_ROOM);
-					for (int i = 0; i < n; i++) {
-						char c = buffer[index];
-						if (!isWhitespace(c)) {
-							fixupAfterRawBufferRead();
-							return;
-						}
-						if (c == '\n') {
-							linePos++;
-							rowPos = index + 1 + charOffset;
-							utf8adjust = 0;
-						}
-						index++;
-					}
-				} while (n > 0);
-				eof = true;
-			}
-			
-			int advanceToToken() throws SyntaxError {
-				int c = advanceChar();
-				while (isWhitespace(c))
-					c = advanceChar();
-
-				tokenCharPos = index + charOffset - rowPos - utf8adjust;
-				tokenCharOffset = charOffset + index;
-				
-				int token;
-				switch (c) {
-				case -1:
-					return TOKEN_EOF;
-				case '[':
-					token = TOKEN_ARRAY_START;
-					break;
-				case ']':
-					token = TOKEN_ARRAY_END;
-					break;
-				case ',':
-					token = TOKEN_COMMA;
-					break;
-				case ':':
-					token = TOKEN_COLON;
-					break;
-				case '{':
-					token = TOKEN_OBJECT_START;
-					break;
-				case '}':
-					token = TOKEN_OBJECT_END;
-					break;
-				case 't':
-					consumeKeyword((char)c, JsonTokener.TRUE);
-					token = TOKEN_TRUE;
-					break;
-				case 'f':
-					consumeKeyword((char)c, JsonTokener.FALSE);
-					token = TOKEN_FALSE;
-					break;
-				case 'n':
-					consumeKeyword((char)c, JsonTokener.NULL);
-					token = TOKEN_NULL;
-					break;
-				case '\"':
-					consumeTokenString();
-					token = TOKEN_STRING;
-					break;
-				case '-':
-				case '0':
-				case '1':
-				case '2':
-				case '3':
-				case '4':
-				case '5':
-				case '6':
-				case '7':
-				case '8':
-				case '9':
-					consumeTokenNumber((char)c);
-					token = TOKEN_NUMBER;
-					break;
-				case '+':
-				case '.':
-					throw createParseException(null, "Numbers may not start with '" + (char)c + "'", true);
-				default:
-					if (isAsciiLetter(c))
-						throw createHelpfulException((char)c, null, 0);
-
-					throw createParseException(null, "Unexpected character: " + (char)c, true);
-				}
-				
-//				consumeWhitespace();
-				return token;
-			}
-
-			void fixupAfterRawBufferRead() throws SyntaxError {
-				if (index >= bufferLength)
-					eof = refillBuffer();
-			}
-
-			SyntaxError createHelpfulException(char first, char[] expected, int failurePosition)
-					throws SyntaxError {
-				// Build the first part of the token
-				StringBuilder errorToken = new StringBuilder(first
-						+ (expected == null ? "" : new String(expected, 0, failurePosition)));
-
-				// Consume the whole pseudo-token to make a better error message
-				while (isAsciiLetter(peekChar()) && errorToken.length() < 15)
-					errorToken.append((char)advanceChar());
-
-				return createParseException(null, "Unexpected token '" + errorToken + "'"
-						+ (expected == null ? "" : ". Did you mean '" + first + new String(expected) + "'?"), true);
-			}
-
-			SyntaxError createParseException(Exception e, String message, boolean tokenPos) {
-				if (tokenPos) {
-					SyntaxError se = new SyntaxError(message);
-					se.setStartParsing(linePos, tokenCharPos);
-					se.setEndParsing(linePos, tokenCharPos+tokenCharOffset);
-					return se;
-				} else {
-					int charPos = Math.max(1, index + charOffset - rowPos - utf8adjust);
-					SyntaxError se = new SyntaxError(message);
-					se.setEndParsing(linePos, charPos);
-					return se;
-				}
-			}
-		}
 	}
 	
 }
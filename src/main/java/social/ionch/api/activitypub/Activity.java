@@ -1,5 +1,327 @@
 package social.ionch.api.activitypub;
 
-public class Activity {
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
+import blue.endless.jankson.api.DeserializationException;
+import blue.endless.jankson.api.SyntaxError;
+import social.ionch.api.FlatJsonObject;
+import social.ionch.api.JsonBinder;
+import social.ionch.api.JsonEventReader;
+import social.ionch.api.JsonEventReader.Event;
+import social.ionch.api.JsonWriter;
+
+public class Activity {
+	public static final String PUBLIC = "https://www.w3.org/ns/activitystreams#Public";
+	
+	/**
+	 * Ids are shared between every activity that mentions them. The same few actors, followers
+	 * collections and objects turn up in activity after activity.
+	 */
+	private static final Interner<String> IDS = Interners.newWeakInterner();
+	private static final String[] NO_RECIPIENTS = new String[0];
+	
+	/** Reads an activity straight from the parser; references given as embedded objects are reduced to their ids, except for {@code object}. */
+	public static final JsonBinder<Activity> BINDER = JsonBinder.builder(Activity::new)
+			.field("id", (a, r) -> a.id = readId(r))
+			.field("type", Activity::readType)
+			.field("actor", (a, r) -> a.actor = readId(r))
+			.field("object", Activity::readObject)
+			.field("target", (a, r) -> a.target = readId(r))
+			.field("to", (a, r) -> a.to = readAudience(r))
+			.field("cc", (a, r) -> a.cc = readAudience(r))
+			.field("bto", (a, r) -> a.bto = readAudience(r))
+			.field("bcc", (a, r) -> a.bcc = readAudience(r))
+			.string("published", (a, v) -> a.published = v)
+			.build();
+	
+	protected String id;
+	
+	protected ActivityType type = ActivityType.OTHER;
+	/** The type as it appeared in the document, for {@link ActivityType#OTHER}. */
+	protected String typeName;
+	
+	protected String actor;
+	
+	/** Id of the object acted on. Set even if the object was embedded. */
+	protected String objectId;
+	/** The object acted on, if it was embedded rather than referenced. */
+	protected @Nullable FlatJsonObject object;
+	
+	protected String target;
+	
+	protected String[] to = NO_RECIPIENTS;
+	protected String[] cc = NO_RECIPIENTS;
+	protected String[] bto = NO_RECIPIENTS;
+	protected String[] bcc = NO_RECIPIENTS;
+	
+	/** As it appeared in the document, in ISO 8601 form. */
+	protected String published;
+	
+	protected Activity() {}
+	
+	public Activity(ActivityType type, String id, String actor) {
+		if (type == ActivityType.OTHER) throw new IllegalArgumentException("Activities of other types must be read from documents");
+		this.type = type;
+		this.typeName = type.getName();
+		this.id = intern(id);
+		this.actor = intern(actor);
+	}
+	
+	public String getId() {
+		return id;
+	}
+	
+	public ActivityType getType() {
+		return type;
+	}
+	
+	/**
+	 * @return the type's name as it appeared in the document, which is the only way to tell
+	 * 		{@link ActivityType#OTHER} activities apart
+	 */
+	public String getTypeName() {
+		return typeName;
+	}
+	
+	public String getActor() {
+		return actor;
+	}
+	
+	public String getObjectId() {
+		return objectId;
+	}
+	
+	/**
+	 * @return the object, if the document embedded it rather than just giving its id
+	 */
+	public @Nullable FlatJsonObject getObject() {
+		return object;
+	}
+	
+	public void setObject(String objectId) {
+		this.objectId = intern(objectId);
+		this.object = null;
+	}
+	
+	public void setObject(FlatJsonObject object) {
+		this.objectId = intern(object.getString("id"));
+		this.object = object;
+	}
+	
+	public String getTarget() {
+		return target;
+	}
+	
+	public void setTarget(String target) {
+		this.target = intern(target);
+	}
+	
+	public List<String> getTo() {
+		return Collections.unmodifiableList(Arrays.asList(to));
+	}
+	
+	public void setTo(String... to) {
+		this.to = internAll(to);
+	}
+	
+	public List<String> getCc() {
+		return Collections.unmodifiableList(Arrays.asList(cc));
+	}
+	
+	public void setCc(String... cc) {
+		this.cc = internAll(cc);
+	}
+	
+	public List<String> getBto() {
+		return Collections.unmodifiableList(Arrays.asList(bto));
+	}
+	
+	public List<String> getBcc() {
+		return Collections.unmodifiableList(Arrays.asList(bcc));
+	}
+	
+	public String getPublished() {
+		return published;
+	}
+	
+	public void setPublished(String published) {
+		this.published = published;
+	}
+	
+	/**
+	 * @return true if the activity is addressed to the public collection, in any of the spellings
+	 * 		servers use for it
+	 */
+	public boolean isPublic() {
+		return containsPublic(to) || containsPublic(cc);
+	}
+	
+	/**
+	 * @return true if the given id appears in any of the audience fields
+	 */
+	public boolean isAddressedTo(String recipient) {
+		return contains(to, recipient) || contains(cc, recipient) || contains(bto, recipient) || contains(bcc, recipient);
+	}
+	
+	/**
+	 * Visit every id in the audience fields, in to, cc, bto, bcc order. Duplicates are not removed.
+	 */
+	public void forEachRecipient(Consumer<String> consumer) {
+		for (String s : to) consumer.accept(s);
+		for (String s : cc) consumer.accept(s);
+		for (String s : bto) consumer.accept(s);
+		for (String s : bcc) consumer.accept(s);
+	}
+	
+	/**
+	 * Write this activity's members to the writer; the caller opens and closes the object, as for
+	 * {@link Person#writeTo(JsonWriter)}. {@code bto} and {@code bcc} are left out, since they must
+	 * never be delivered.
+	 */
+	public void writeTo(JsonWriter writer) {
+		writer.key("id").value(id);
+		writer.key("type").value(typeName);
+		writer.key("actor").value(actor);
+		if (object != null) {
+			writer.key("object");
+			object.writeTo(writer);
+		} else if (objectId != null) {
+			writer.key("object").value(objectId);
+		}
+		if (target != null) writer.key("target").value(target);
+		writeAudience(writer, "to", to);
+		writeAudience(writer, "cc", cc);
+		if (published != null) writer.key("published").value(published);
+	}
+	
+	private static void writeAudience(JsonWriter writer, String key, String[] audience) {
+		if (audience.length == 0) return;
+		writer.key(key).beginArray();
+		for (String s : audience) writer.value(s);
+		writer.endArray();
+	}
+	
+	private static boolean containsPublic(String[] audience) {
+		for (String s : audience) {
+			if (s.equals(PUBLIC) || s.equals("as:Public") || s.equals("Public")) return true;
+		}
+		return false;
+	}
+	
+	private static boolean contains(String[] audience, String recipient) {
+		for (String s : audience) {
+			if (s.equals(recipient)) return true;
+		}
+		return false;
+	}
+	
+	private static String intern(String s) {
+		return s == null ? null : IDS.intern(s);
+	}
+	
+	private static String[] internAll(String[] ids) {
+		if (ids.length == 0) return NO_RECIPIENTS;
+		String[] result = new String[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			result[i] = IDS.intern(ids[i]);
+		}
+		return result;
+	}
+	
+	private static void readType(Activity a, JsonEventReader r) throws SyntaxError, DeserializationException {
+		if (r.current() == Event.STRING) {
+			a.typeName = r.getString();
+			a.type = ActivityType.forName(a.typeName);
+		} else if (r.current() == Event.START_ARRAY) {
+			// Multiple types; go with the first one we know, if any
+			while (r.next() != Event.END_ARRAY) {
+				if (r.current() != Event.STRING) throw new DeserializationException("Expected a string, got "+r.current());
+				String name = r.getString();
+				ActivityType type = ActivityType.forName(name);
+				if (a.typeName == null || (a.type == ActivityType.OTHER && type != ActivityType.OTHER)) {
+					a.typeName = name;
+					a.type = type;
+				}
+			}
+		} else {
+			throw new DeserializationException("Expected a type name, got "+r.current());
+		}
+	}
+	
+	private static void readObject(Activity a, JsonEventReader r) throws SyntaxError, DeserializationException {
+		if (r.current() == Event.START_OBJECT) {
+			a.setObject(FlatJsonObject.read(r));
+		} else {
+			a.objectId = readId(r);
+			a.object = null;
+		}
+	}
+	
+	/**
+	 * Read a reference to another object: its id, or an embedded copy of it, or an array of
+	 * either, in which case the first one counts.
+	 */
+	private static String readId(JsonEventReader r) throws SyntaxError, DeserializationException {
+		switch (r.current()) {
+		case NULL:
+			return null;
+		case STRING:
+			return IDS.intern(r.getString());
+		case START_OBJECT: {
+			// Only the id is kept, so don't build anything for the rest
+			String id = null;
+			while (r.next() != Event.END_OBJECT) {
+				boolean isId = id == null && r.getString().equals("id");
+				r.next();
+				if (isId && r.current() == Event.STRING) {
+					id = r.getString();
+				} else {
+					r.skipValue();
+				}
+			}
+			return intern(id);
+		}
+		case START_ARRAY:
+			String first = null;
+			while (r.next() != Event.END_ARRAY) {
+				String id = readId(r);
+				if (first == null) first = id;
+			}
+			return first;
+		default:
+			throw new DeserializationException("Expected an id, got "+r.current());
+		}
+	}
+	
+	private static String[] readAudience(JsonEventReader r) throws SyntaxError, DeserializationException {
+		switch (r.current()) {
+		case NULL:
+			return NO_RECIPIENTS;
+		case STRING:
+			return new String[] { IDS.intern(r.getString()) };
+		case START_ARRAY:
+			String[] result = NO_RECIPIENTS;
+			int count = 0;
+			while (r.next() != Event.END_ARRAY) {
+				String id = readId(r);
+				if (id == null) continue;
+				if (count == result.length) result = Arrays.copyOf(result, Math.max(4, count * 2));
+				result[count++] = id;
+			}
+			return count == result.length ? result : Arrays.copyOf(result, count);
+		case START_OBJECT:
+			String id = readId(r);
+			return id == null ? NO_RECIPIENTS : new String[] { id };
+		default:
+			throw new DeserializationException("Expected an audience, got "+r.current());
+		}
+	}
 }
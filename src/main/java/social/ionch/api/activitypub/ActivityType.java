@@ -0,0 +1,89 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The ActivityStreams 2.0 activity types, for switching on instead of comparing strings.
+ */
+public enum ActivityType {
+	ACCEPT("Accept"),
+	ADD("Add"),
+	ANNOUNCE("Announce"),
+	ARRIVE("Arrive"),
+	BLOCK("Block"),
+	CREATE("Create"),
+	DELETE("Delete"),
+	DISLIKE("Dislike"),
+	FLAG("Flag"),
+	FOLLOW("Follow"),
+	IGNORE("Ignore"),
+	INVITE("Invite"),
+	JOIN("Join"),
+	LEAVE("Leave"),
+	LIKE("Like"),
+	LISTEN("Listen"),
+	MOVE("Move"),
+	OFFER("Offer"),
+	QUESTION("Question"),
+	READ("Read"),
+	REJECT("Reject"),
+	REMOVE("Remove"),
+	TENTATIVE_ACCEPT("TentativeAccept"),
+	TENTATIVE_REJECT("TentativeReject"),
+	TRAVEL("Travel"),
+	UNDO("Undo"),
+	UPDATE("Update"),
+	VIEW("View"),
+	/** Anything else, such as an extension type; the name is kept on the {@link Activity}. */
+	OTHER(null),
+	;
+
+	private static final ImmutableMap<String, ActivityType> BY_NAME;
+	static {
+		ImmutableMap.Builder<String, ActivityType> builder = ImmutableMap.builder();
+		for (ActivityType type : values()) {
+			if (type.name != null) builder.put(type.name, type);
+		}
+		BY_NAME = builder.build();
+	}
+
+	private final String name;
+
+	ActivityType(@Nullable String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return the name used for this type in documents, or null for {@link #OTHER}
+	 */
+	public @Nullable String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the type with the given name, or {@link #OTHER}
+	 */
+	public static ActivityType forName(@Nullable String name) {
+		if (name == null) return OTHER;
+		ActivityType type = BY_NAME.get(name);
+		return type == null ? OTHER : type;
+	}
+}
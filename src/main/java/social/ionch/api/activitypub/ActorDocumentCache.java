@@ -0,0 +1,178 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import social.ionch.api.JsonWriter;
+
+/**
+ * Keeps the serialized actor document of each local {@link Person}, so that serving one of the
+ * most-fetched resources on the server is a buffer write instead of building and serializing a
+ * tree every time.
+ * <p>
+ * Documents are kept by actor id, along with the {@link Person#getRevision() revision} they were
+ * built from. The revision is the profile's update time, which is saved with it, so copies of a
+ * Person loaded from storage all hit the same document, and a copy changed through its setters, or
+ * loaded after such a change was saved, misses until its own document is built.
+ * <p>
+ * Thread-safe.
+ */
+public final class ActorDocumentCache {
+	private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults();
+
+	/**
+	 * A serialized actor document and its entity tag. Immutable.
+	 */
+	public static final class Document {
+		private final long revision;
+		private final byte[] bytes;
+		private final String etag;
+
+		private Document(long revision, byte[] bytes, String etag) {
+			this.revision = revision;
+			this.bytes = bytes;
+			this.etag = etag;
+		}
+
+		/**
+		 * @return a read-only view of the UTF-8 encoded document
+		 */
+		public ByteBuffer getBytes() {
+			return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		}
+
+		public int getLength() {
+			return bytes.length;
+		}
+
+		/**
+		 * @return a strong entity tag for the document, quoted, ready for an {@code ETag} header
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		/**
+		 * @param ifNoneMatch the request's {@code If-None-Match} header, or null
+		 * @return true if the client already has this version, and can be sent a 304
+		 */
+		public boolean matches(@Nullable String ifNoneMatch) {
+			if (ifNoneMatch == null) return false;
+			for (String tag : COMMA_SPLITTER.split(ifNoneMatch)) {
+				// If-None-Match uses weak comparison, so a W/ prefix doesn't matter
+				if (tag.startsWith("W/")) tag = tag.substring(2);
+				if (tag.equals("*") || tag.equals(etag)) return true;
+			}
+			return false;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(bytes);
+		}
+	}
+
+	private final Cache<String, Document> documents;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param maximumSize how many actors' documents to keep
+	 */
+	public ActorDocumentCache(long maximumSize) {
+		this.documents = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.build();
+	}
+
+	/**
+	 * @return the serialized document for the Person, from the cache if it's still current
+	 */
+	public Document get(Person person) {
+		Document doc = documents.getIfPresent(person.getId());
+		long revision = person.getRevision();
+		if (doc != null && doc.revision == revision) {
+			hits.increment();
+			return doc;
+		}
+		misses.increment();
+		doc = serialize(person, revision);
+		// If it was changed while being written out, the document may not match the revision
+		if (person.getRevision() == revision) documents.put(person.getId(), doc);
+		return doc;
+	}
+
+	/**
+	 * Forget the document for the actor with the given id, such as when they're deleted.
+	 */
+	public void invalidate(String id) {
+		documents.invalidate(id);
+	}
+
+	public void invalidateAll() {
+		documents.invalidateAll();
+	}
+
+	/**
+	 * @return how many times {@link #get(Person)} found a current document
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return how many times {@link #get(Person)} had to serialize the actor
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long size() {
+		return documents.size();
+	}
+
+	private static Document serialize(Person person, long revision) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+		JsonWriter writer = new JsonWriter(out);
+		writer.beginObject();
+		writer.key("@context").beginArray();
+		for (String url : LdContextCache.CANONICAL) {
+			writer.value(url);
+		}
+		writer.endArray();
+		person.writeTo(writer);
+		writer.endObject();
+		writer.flush();
+		byte[] bytes = out.toByteArray();
+		// Strong tags have to change with every byte, so derive it from the content itself
+		byte[] hash = HttpDigest.sha256().digest(bytes);
+		String etag = "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(hash).substring(0, 22) + "\"";
+		return new Document(revision, bytes, etag);
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import javax.annotation.Nullable;
+
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Where a {@link RemoteActorCache} keeps the actor documents it's fetched, so that a restart
+ * doesn't start with an empty cache.
+ */
+public interface ActorStore {
+	/**
+	 * Keeps nothing.
+	 */
+	ActorStore NONE = new ActorStore() {
+		@Override
+		public @Nullable Stored load(String id) {
+			return null;
+		}
+		@Override
+		public void save(String id, @Nullable byte[] document, long fetchedMillis) {}
+		@Override
+		public void remove(String id) {}
+	};
+	
+	/**
+	 * What was last saved for an actor.
+	 */
+	final class Stored {
+		private final @Nullable byte[] document;
+		private final long fetchedMillis;
+		
+		public Stored(@Nullable byte[] document, long fetchedMillis) {
+			this.document = document;
+			this.fetchedMillis = fetchedMillis;
+		}
+		
+		/**
+		 * @return the actor document, or null if the actor was gone when last fetched
+		 */
+		public @Nullable byte[] getDocument() {
+			return document;
+		}
+		
+		public long getFetchedMillis() {
+			return fetchedMillis;
+		}
+	}
+	
+	/**
+	 * @return what was last saved for the actor, or null if nothing was
+	 */
+	@Nullable Stored load(String id) throws DatabaseException;
+	
+	/**
+	 * @param document the actor document, or null to remember that the actor is gone
+	 */
+	void save(String id, @Nullable byte[] document, long fetchedMillis) throws DatabaseException;
+	
+	void remove(String id) throws DatabaseException;
+}
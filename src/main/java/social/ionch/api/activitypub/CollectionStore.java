@@ -0,0 +1,142 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Where local actors' outboxes and follow relationships are kept, in the order they were added,
+ * for serving as {@link OrderedCollections}. Every item has a sequence number that grows with
+ * time, and pages are read by sequence number rather than by position, so that reading any page
+ * costs the same however deep into the collection it is.
+ */
+public interface CollectionStore {
+
+	enum Kind {
+		OUTBOX("outbox"),
+		FOLLOWERS("followers"),
+		FOLLOWING("following"),
+		;
+
+		private final String path;
+
+		Kind(String path) {
+			this.path = path;
+		}
+
+		/**
+		 * @return the last path segment of the collection's URL, after its owner's id
+		 */
+		public String getPath() {
+			return path;
+		}
+	}
+
+	/**
+	 * One item of a collection.
+	 */
+	final class Item {
+		private final long seq;
+		private final String id;
+		private final @Nullable byte[] document;
+
+		/**
+		 * @param id the id of the item; an actor for follows, an activity for outboxes
+		 * @param document the serialized item to embed instead of its id, or null to use the id
+		 */
+		public Item(long seq, String id, @Nullable byte[] document) {
+			this.seq = seq;
+			this.id = id;
+			this.document = document;
+		}
+
+		public long getSeq() {
+			return seq;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * @return the serialized item to embed instead of its id, or null to use the id; not
+		 * 		copied, so don't modify it
+		 */
+		public @Nullable byte[] getDocument() {
+			return document;
+		}
+	}
+
+	/**
+	 * A page of a collection, read into memory, so that whoever serves it can write it out after
+	 * the store is done with its connection.
+	 */
+	final class Page {
+		private final ImmutableList<Item> items;
+		private final long next;
+
+		public Page(List<Item> items, long next) {
+			this.items = ImmutableList.copyOf(items);
+			this.next = next;
+		}
+
+		/**
+		 * @return the items, highest sequence number first
+		 */
+		public ImmutableList<Item> getItems() {
+			return items;
+		}
+
+		/**
+		 * @return the sequence number to read the next page before, or -1 if there are no more
+		 * 		items
+		 */
+		public long getNext() {
+			return next;
+		}
+	}
+
+	/**
+	 * @return how many items are in the collection
+	 */
+	long count(String owner, Kind kind) throws DatabaseException;
+
+	/**
+	 * Read up to {@code limit} items with sequence numbers lower than {@code beforeSeq}, highest
+	 * first.
+	 */
+	Page page(String owner, Kind kind, long beforeSeq, int limit) throws DatabaseException;
+
+	/**
+	 * Record that one actor follows another. Does nothing if they already do.
+	 */
+	void follow(String follower, String followee) throws DatabaseException;
+
+	void unfollow(String follower, String followee) throws DatabaseException;
+
+	/**
+	 * Add an activity to the end of a local actor's outbox.
+	 * @param document the serialized activity, or null to serve only its id
+	 */
+	void addToOutbox(String owner, String activityId, @Nullable byte[] document) throws DatabaseException;
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.net.URI;
+
+import javax.annotation.Nullable;
+
+/**
+ * One activity on its way to one inbox. Immutable.
+ */
+public final class Delivery {
+	private final long id;
+	private final URI target;
+	private final byte[] body;
+	private final @Nullable String keyId;
+	private final int attempts;
+	private final long nextAttemptMillis;
+	private @Nullable String digestHeader;
+
+	/**
+	 * @param id the id the {@link DeliveryStore} knows this delivery by
+	 * @param body the serialized activity; not copied, and usually shared by every delivery of it
+	 * @param keyId the id of the local key to sign the request with, or null to send it unsigned
+	 * @param attempts how many times sending it has failed so far
+	 * @param nextAttemptMillis wall-clock time of the next attempt
+	 */
+	public Delivery(long id, URI target, byte[] body, @Nullable String keyId, int attempts, long nextAttemptMillis) {
+		this(id, target, body, keyId, attempts, nextAttemptMillis, null);
+	}
+
+	/*package*/ Delivery(long id, URI target, byte[] body, @Nullable String keyId, int attempts, long nextAttemptMillis, @Nullable String digestHeader) {
+		this.id = id;
+		this.target = target;
+		this.body = body;
+		this.keyId = keyId;
+		this.attempts = attempts;
+		this.nextAttemptMillis = nextAttemptMillis;
+		this.digestHeader = digestHeader;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public URI getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return the serialized activity; not copied, so don't modify it
+	 */
+	public byte[] getBody() {
+		return body;
+	}
+
+	/**
+	 * @return the id of the sender's key the request is signed with, or null if it isn't signed
+	 */
+	public @Nullable String getKeyId() {
+		return keyId;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public long getNextAttemptMillis() {
+		return nextAttemptMillis;
+	}
+
+	/**
+	 * @return a copy of this delivery with one more failed attempt, to be tried again at the given time
+	 */
+	public Delivery retryAt(long nextAttemptMillis) {
+		return new Delivery(id, target, body, keyId, attempts + 1, nextAttemptMillis, digestHeader);
+	}
+
+	/**
+	 * @return the {@code Digest} header for the body, worked out the first time it's asked for
+	 */
+	public String getDigestHeader() {
+		String header = digestHeader;
+		if (header == null) {
+			digestHeader = header = HttpDigest.header(HttpDigest.sha256().digest(body));
+		}
+		return header;
+	}
+
+	/**
+	 * @return the host and port deliveries are queued by
+	 */
+	public String getAuthority() {
+		return target.getRawAuthority();
+	}
+
+}
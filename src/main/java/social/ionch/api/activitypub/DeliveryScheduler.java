@@ -0,0 +1,520 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Sends activities to remote inboxes in the background, and keeps retrying the ones that fail.
+ * <p>
+ * Recipients are collapsed onto their servers' shared inboxes before anything is sent, so an
+ * activity going to a thousand followers on one server is one request, not a thousand. Each remote
+ * host gets its own queue with a cap on how many requests may be in flight to it at once, so one
+ * slow or dead server can't hold up deliveries to everyone else, and no server gets flooded. All
+ * requests share one {@link HttpClient}, which keeps connections open between them. Each
+ * delivery is signed with the key of the local actor that sent it, found through the
+ * {@link Builder#signers(SignerResolver) SignerResolver} when it's sent.
+ * <p>
+ * Failed deliveries are retried with exponential backoff and jitter, so that a server coming
+ * back up isn't hit by every retry at the same moment, until {@link Builder#maxAttempts(int)} is
+ * reached. Servers that answer with a 4xx other than 408 or 429 won't ever take the activity, and
+ * aren't retried. Every pending delivery is kept in a {@link DeliveryStore}, and picked back up by
+ * {@link #start()} after a restart.
+ * <p>
+ * Thread-safe.
+ */
+public final class DeliveryScheduler {
+	private static final Logger log = LoggerFactory.getLogger(DeliveryScheduler.class);
+
+	/**
+	 * Finds the inboxes of an actor being delivered to.
+	 */
+	public interface RecipientResolver {
+		/**
+		 * @return where to deliver to the given actor, or null if they can't be delivered to, such as
+		 * 		because they're local or gone
+		 */
+		@Nullable InboxEndpoints resolve(String actorId);
+	}
+
+	/**
+	 * Adds headers to each request before it's sent, such as a signature.
+	 */
+	public interface RequestSigner {
+		RequestSigner NONE = (request, delivery) -> {};
+		
+		void sign(HttpRequest.Builder request, Delivery delivery);
+	}
+
+	/**
+	 * Finds the signer for the key a delivery is to be signed with, since different deliveries
+	 * are sent by different local actors.
+	 */
+	public interface SignerResolver {
+		/**
+		 * @return a signer for the key, or null if there's no such key, such as because its actor
+		 * 		was deleted
+		 */
+		@Nullable RequestSigner resolve(String keyId);
+	}
+
+	private static final String CONTENT_TYPE = "application/activity+json";
+
+	private final DeliveryStore store;
+	private final HttpClient client;
+	private final SignerResolver signers;
+	private final int maxConcurrencyPerHost;
+	private final int maxAttempts;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final Duration requestTimeout;
+	private final ScheduledExecutorService timer;
+
+	private final ConcurrentMap<String, HostQueue> hosts = Maps.newConcurrentMap();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile boolean accepting;
+
+	private final LongAdder queued = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder retried = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+
+	private DeliveryScheduler(Builder builder) {
+		this.store = builder.store;
+		this.client = builder.client != null ? builder.client : HttpClient.newBuilder()
+				.connectTimeout(builder.requestTimeout)
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.build();
+		this.signers = builder.signers;
+		this.maxConcurrencyPerHost = builder.maxConcurrencyPerHost;
+		this.maxAttempts = builder.maxAttempts;
+		this.baseDelayMillis = builder.baseDelayMillis;
+		this.maxDelayMillis = builder.maxDelayMillis;
+		this.requestTimeout = builder.requestTimeout;
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+				.setNameFormat("delivery-timer")
+				.setDaemon(true)
+				.build());
+		timer.setRemoveOnCancelPolicy(true);
+		timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.timer = timer;
+	}
+
+	public static Builder builder(DeliveryStore store) {
+		return new Builder(store);
+	}
+
+	/**
+	 * Begin accepting deliveries, and pick up the ones left pending by a previous run.
+	 */
+	public void start() throws DatabaseException {
+		if (timer.isShutdown()) throw new IllegalStateException("Already shut down");
+		accepting = true;
+		List<Delivery> pending = store.loadPending();
+		long now = System.currentTimeMillis();
+		for (Delivery d : pending) {
+			schedule(d, d.getNextAttemptMillis() - now);
+		}
+		if (!pending.isEmpty()) log.info("Resuming {} pending deliveries", pending.size());
+	}
+
+	/**
+	 * Collapse recipients onto the fewest inboxes that reach all of them.
+	 * @return the distinct inboxes to deliver to, in the order they were first seen
+	 */
+	public static Set<URI> coalesce(Collection<InboxEndpoints> recipients) {
+		Set<URI> out = Sets.newLinkedHashSetWithExpectedSize(recipients.size());
+		for (InboxEndpoints r : recipients) {
+			out.add(r.getPreferred());
+		}
+		return out;
+	}
+
+	/**
+	 * Deliver an activity to each of the given actors, collapsed onto shared inboxes. Returns once
+	 * the deliveries are stored, without waiting for them to be sent.
+	 * @param body the serialized activity; must not be modified afterwards
+	 * @param keyId the id of the sender's key to sign the requests with, or null to send them
+	 * 		unsigned
+	 * @param recipients actor ids; ones the resolver can't find are skipped
+	 * @return how many requests will be made
+	 */
+	public int deliver(byte[] body, @Nullable String keyId, Collection<String> recipients, RecipientResolver resolver) throws DatabaseException {
+		ImmutableList.Builder<InboxEndpoints> found = ImmutableList.builderWithExpectedSize(recipients.size());
+		for (String id : recipients) {
+			InboxEndpoints e = resolver.resolve(id);
+			if (e != null) found.add(e);
+		}
+		return deliver(body, keyId, coalesce(found.build()));
+	}
+
+	/**
+	 * Deliver an activity to each of the given inboxes. Returns once the deliveries are stored,
+	 * without waiting for them to be sent.
+	 * @param body the serialized activity; must not be modified afterwards
+	 * @param keyId the id of the sender's key to sign the requests with, or null to send them
+	 * 		unsigned
+	 * @return how many requests will be made
+	 */
+	public int deliver(byte[] body, @Nullable String keyId, Collection<URI> inboxes) throws DatabaseException {
+		if (!accepting) throw new IllegalStateException("Not running");
+		if (inboxes.isEmpty()) return 0;
+		List<URI> targets = ImmutableList.copyOf(inboxes);
+		long[] ids = store.add(body, keyId, targets);
+		String digest = HttpDigest.header(HttpDigest.sha256().digest(body));
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < ids.length; i++) {
+			enqueue(new Delivery(ids[i], targets.get(i), body, keyId, 0, now, digest));
+		}
+		return ids.length;
+	}
+
+	/**
+	 * Stop accepting deliveries, and wait for the requests in flight to finish. Deliveries that
+	 * haven't been sent yet stay in the store for next time.
+	 * @return true if everything in flight finished in time
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		accepting = false;
+		timer.shutdownNow();
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (inFlight.get() > 0) {
+			if (System.nanoTime() >= deadline) return false;
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	private void schedule(Delivery d, long delayMillis) {
+		if (delayMillis <= 0) {
+			enqueue(d);
+		} else {
+			try {
+				timer.schedule(() -> enqueue(d), delayMillis, TimeUnit.MILLISECONDS);
+			} catch (RuntimeException e) {
+				// Shutting down; it's still in the store
+			}
+		}
+	}
+
+	private void enqueue(Delivery d) {
+		if (!accepting) return;
+		HostQueue host = hosts.computeIfAbsent(d.getAuthority(), k -> new HostQueue());
+		synchronized (host) {
+			host.pending.add(d);
+		}
+		queued.increment();
+		drain(host);
+	}
+
+	/**
+	 * Send as much of the host's queue as its limit allows. Only one thread drains a host at a
+	 * time; a call made while another is draining, including one from a request that finished or
+	 * failed on the spot, returns at once and leaves the work to the loop that's already running,
+	 * so that a run of such requests doesn't recurse once per delivery.
+	 */
+	private void drain(HostQueue host) {
+		synchronized (host) {
+			if (host.draining) return;
+			host.draining = true;
+		}
+		boolean done = false;
+		try {
+			while (true) {
+				Delivery d;
+				synchronized (host) {
+					if (!accepting || host.active >= maxConcurrencyPerHost || (d = host.pending.poll()) == null) {
+						// Decided under the same lock as new work checks the flag, so nothing is missed
+						host.draining = false;
+						done = true;
+						return;
+					}
+					host.active++;
+				}
+				queued.decrement();
+				inFlight.incrementAndGet();
+				try {
+					send(host, d);
+				} catch (RuntimeException e) {
+					complete(host, d, null, e);
+				}
+			}
+		} finally {
+			if (!done) {
+				synchronized (host) {
+					host.draining = false;
+				}
+			}
+		}
+	}
+
+	private void send(HostQueue host, Delivery d) {
+		RequestSigner signer = d.getKeyId() == null ? RequestSigner.NONE : signers.resolve(d.getKeyId());
+		if (signer == null) {
+			complete(host, d, null, new UnknownKeyException(d.getKeyId()));
+			return;
+		}
+		HttpRequest.Builder request = HttpRequest.newBuilder(d.getTarget())
+				.timeout(requestTimeout)
+				.header("Content-Type", CONTENT_TYPE)
+				.header("Date", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)))
+				.header("Digest", d.getDigestHeader())
+				.POST(HttpRequest.BodyPublishers.ofByteArray(d.getBody()));
+		signer.sign(request, d);
+		client.sendAsync(request.build(), HttpResponse.BodyHandlers.discarding())
+				.whenComplete((response, err) -> complete(host, d, response, err));
+	}
+
+	private void complete(HostQueue host, Delivery d, @Nullable HttpResponse<?> response, @Nullable Throwable err) {
+		try {
+			if (response != null && response.statusCode() / 100 == 2) {
+				delivered.increment();
+				store.remove(d);
+			} else if (err instanceof UnknownKeyException) {
+				// Whoever sent it is gone, so it can never be signed
+				failed.increment();
+				log.info("Dropping delivery {} to {}: {}", d.getId(), d.getTarget(), err.getMessage());
+				store.remove(d);
+			} else if (response != null && isPermanent(response.statusCode())) {
+				failed.increment();
+				log.info("{} refused delivery {} with {}", d.getAuthority(), d.getId(), response.statusCode());
+				store.remove(d);
+			} else {
+				retry(d, response);
+			}
+		} catch (RuntimeException e) {
+			log.warn("Failed to record outcome of delivery {} to {}", d.getId(), d.getTarget(), e);
+		} finally {
+			synchronized (host) {
+				host.active--;
+			}
+			inFlight.decrementAndGet();
+			drain(host);
+		}
+	}
+
+	private void retry(Delivery d, @Nullable HttpResponse<?> response) {
+		if (d.getAttempts() + 1 >= maxAttempts) {
+			failed.increment();
+			log.info("Giving up on delivery {} to {} after {} attempts", d.getId(), d.getTarget(), maxAttempts);
+			store.remove(d);
+			return;
+		}
+		long delay = backoff(d.getAttempts());
+		if (response != null) {
+			delay = Math.max(delay, retryAfterMillis(response));
+		}
+		Delivery next = d.retryAt(System.currentTimeMillis() + delay);
+		retried.increment();
+		store.reschedule(next);
+		schedule(next, delay);
+	}
+
+	/**
+	 * @return a delay of between half and all of the base delay doubled for each failed attempt,
+	 * 		capped at the maximum delay
+	 */
+	/*package*/ long backoff(int attempts) {
+		long ceiling = baseDelayMillis << Math.min(attempts, 30);
+		if (ceiling < 0 || ceiling > maxDelayMillis) ceiling = maxDelayMillis;
+		long half = ceiling / 2;
+		return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+	}
+
+	private long retryAfterMillis(HttpResponse<?> response) {
+		String header = response.headers().firstValue("Retry-After").orElse(null);
+		if (header == null) return 0;
+		try {
+			return Math.min(maxDelayMillis, TimeUnit.SECONDS.toMillis(Long.parseLong(header.trim())));
+		} catch (NumberFormatException e) {
+			// HTTP dates aren't worth the trouble; the backoff will do
+			return 0;
+		}
+	}
+
+	private static boolean isPermanent(int status) {
+		return status / 100 == 4 && status != 408 && status != 429;
+	}
+
+	/**
+	 * @return how many deliveries are waiting for a free slot on their host, not counting ones
+	 * 		waiting to be retried
+	 */
+	public long getQueuedCount() {
+		return queued.sum();
+	}
+
+	/**
+	 * @return how many requests are being made right now
+	 */
+	public int getInFlightCount() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return how many hosts have been delivered to since startup
+	 */
+	public int getHostCount() {
+		return hosts.size();
+	}
+
+	public long getDeliveredCount() {
+		return delivered.sum();
+	}
+
+	/**
+	 * @return how many failed attempts have been scheduled to be retried
+	 */
+	public long getRetriedCount() {
+		return retried.sum();
+	}
+
+	/**
+	 * @return how many deliveries were refused outright or given up on
+	 */
+	public long getFailedCount() {
+		return failed.sum();
+	}
+
+	private static final class UnknownKeyException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		UnknownKeyException(String keyId) {
+			super("No signing key "+keyId, null, false, false);
+		}
+	}
+
+	private static final class HostQueue {
+		private final ArrayDeque<Delivery> pending = new ArrayDeque<>();
+		private int active;
+		private boolean draining;
+	}
+
+	public static final class Builder {
+		private final DeliveryStore store;
+		private @Nullable HttpClient client;
+		private SignerResolver signers = keyId -> null;
+		private int maxConcurrencyPerHost = 4;
+		private int maxAttempts = 12;
+		private long baseDelayMillis = TimeUnit.SECONDS.toMillis(30);
+		private long maxDelayMillis = TimeUnit.HOURS.toMillis(6);
+		private Duration requestTimeout = Duration.ofSeconds(30);
+
+		private Builder(DeliveryStore store) {
+			this.store = store;
+		}
+
+		/**
+		 * The client to send requests with. Defaults to one that doesn't follow redirects and uses
+		 * the request timeout to connect.
+		 */
+		public Builder client(HttpClient client) {
+			this.client = client;
+			return this;
+		}
+
+		/**
+		 * Where to find the signer for each delivery's key. Defaults to one that knows no keys, so
+		 * only unsigned deliveries can be sent.
+		 */
+		public Builder signers(SignerResolver signers) {
+			this.signers = signers;
+			return this;
+		}
+
+		/**
+		 * How many requests may be in flight to one host at once. Defaults to 4.
+		 */
+		public Builder maxConcurrencyPerHost(int maxConcurrencyPerHost) {
+			if (maxConcurrencyPerHost < 1) throw new IllegalArgumentException("maxConcurrencyPerHost must be positive");
+			this.maxConcurrencyPerHost = maxConcurrencyPerHost;
+			return this;
+		}
+
+		/**
+		 * How many times to try a delivery before giving up on it. Defaults to 12, which with the
+		 * default delays keeps trying for a few days.
+		 */
+		public Builder maxAttempts(int maxAttempts) {
+			if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be positive");
+			this.maxAttempts = maxAttempts;
+			return this;
+		}
+
+		/**
+		 * The shortest wait before a retry, which doubles with each failure. Defaults to 30 seconds.
+		 */
+		public Builder baseDelay(long delay, TimeUnit unit) {
+			if (delay < 0) throw new IllegalArgumentException("delay must not be negative");
+			this.baseDelayMillis = unit.toMillis(delay);
+			return this;
+		}
+
+		/**
+		 * The longest wait before a retry, including one asked for with {@code Retry-After}.
+		 * Defaults to 6 hours.
+		 */
+		public Builder maxDelay(long delay, TimeUnit unit) {
+			if (delay < 0) throw new IllegalArgumentException("delay must not be negative");
+			this.maxDelayMillis = unit.toMillis(delay);
+			return this;
+		}
+
+		/**
+		 * How long to wait for a remote server to answer. Defaults to 30 seconds.
+		 */
+		public Builder requestTimeout(Duration requestTimeout) {
+			this.requestTimeout = requestTimeout;
+			return this;
+		}
+
+		public DeliveryScheduler build() {
+			return new DeliveryScheduler(this);
+		}
+	}
+
+}
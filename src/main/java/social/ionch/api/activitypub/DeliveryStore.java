@@ -0,0 +1,72 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Where a {@link DeliveryScheduler} keeps deliveries that haven't succeeded yet, so that they
+ * survive a restart.
+ */
+public interface DeliveryStore {
+	/**
+	 * Keeps nothing; pending deliveries are lost on restart. For tests, and servers that don't
+	 * care.
+	 */
+	DeliveryStore NONE = new DeliveryStore() {
+		@Override
+		public long[] add(byte[] body, @Nullable String keyId, List<URI> targets) {
+			return new long[targets.size()];
+		}
+		@Override
+		public void reschedule(Delivery delivery) {}
+		@Override
+		public void remove(Delivery delivery) {}
+		@Override
+		public List<Delivery> loadPending() {
+			return Collections.emptyList();
+		}
+	};
+	
+	/**
+	 * Save one body to be sent to each of the given inboxes, due immediately, in one transaction.
+	 * @param keyId the id of the local key to sign the requests with, or null to send them unsigned
+	 * @return an id for each target, in the same order
+	 */
+	long[] add(byte[] body, @Nullable String keyId, List<URI> targets) throws DatabaseException;
+	
+	/**
+	 * Save the new attempt count and time of a delivery that failed and is going to be retried.
+	 */
+	void reschedule(Delivery delivery) throws DatabaseException;
+	
+	/**
+	 * Forget a delivery that succeeded or was given up on.
+	 */
+	void remove(Delivery delivery) throws DatabaseException;
+	
+	/**
+	 * @return every delivery still pending, such as at startup
+	 */
+	List<Delivery> loadPending() throws DatabaseException;
+}
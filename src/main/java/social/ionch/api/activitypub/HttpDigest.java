@@ -0,0 +1,84 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Splitter;
+
+/**
+ * The HTTP {@code Digest} header (RFC 3230) as ActivityPub servers use it on signed inbox POSTs:
+ * {@code SHA-256=} followed by the base64 of the body's hash.
+ * <p>
+ * Pair with {@link social.ionch.api.JsonFeeder#digest(MessageDigest) JsonFeeder.digest} or
+ * {@link social.ionch.api.Nojankson#load(java.io.InputStream, MessageDigest) Nojankson.load} to hash
+ * the body in the same pass that parses it.
+ */
+public final class HttpDigest {
+	public static final String SHA_256 = "SHA-256";
+
+	private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+	private HttpDigest() {}
+
+	/**
+	 * @return a fresh SHA-256 digest
+	 */
+	public static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance(SHA_256);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to have it
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * @return the header value for a body with the given SHA-256 hash
+	 */
+	public static String header(byte[] sha256) {
+		return SHA_256 + "=" + Base64.getEncoder().encodeToString(sha256);
+	}
+
+	/**
+	 * Check a received {@code Digest} header against the body's hash. Instance digests other than
+	 * SHA-256 are ignored, and the comparison takes the same time whether or not it matches.
+	 * @param header the header value, or null if there wasn't one
+	 * @param sha256 the hash of the body as received
+	 * @return true if the header has a SHA-256 digest, and it matches
+	 */
+	public static boolean matches(@Nullable String header, byte[] sha256) {
+		if (header == null) return false;
+		for (String part : COMMA_SPLITTER.split(header)) {
+			int eq = part.indexOf('=');
+			if (eq < 0 || !part.substring(0, eq).trim().equalsIgnoreCase(SHA_256)) continue;
+			byte[] expected;
+			try {
+				expected = Base64.getDecoder().decode(part.substring(eq + 1).trim());
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+			return MessageDigest.isEqual(expected, sha256);
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,260 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A parsed {@code Signature} header, as described by the HTTP Signatures draft that ActivityPub
+ * servers sign their requests with. Immutable.
+ * 
+ * @see SignatureVerifier
+ * @see HttpSigner
+ */
+public final class HttpSignature {
+	/** The pseudo-header for the request's method and path. */
+	public static final String REQUEST_TARGET = "(request-target)";
+	/** The pseudo-header for the {@code created} parameter. */
+	public static final String CREATED = "(created)";
+	/** The pseudo-header for the {@code expires} parameter. */
+	public static final String EXPIRES = "(expires)";
+	
+	/** What {@code Signature.getInstance} wants for the only algorithm the fediverse uses. */
+	/*package*/ static final String JCA_ALGORITHM = "SHA256withRSA";
+
+	private static final Splitter SPACE_SPLITTER = Splitter.on(' ').omitEmptyStrings();
+	private static final CharMatcher PEM_WHITESPACE = CharMatcher.whitespace();
+
+	/**
+	 * Looks up the value of a request header by its lower-case name. Headers sent more than once
+	 * should come back joined with {@code ", "}.
+	 */
+	public interface Headers {
+		@Nullable String get(String name);
+	}
+
+	private final String keyId;
+	private final @Nullable String algorithm;
+	private final ImmutableList<String> headers;
+	private final byte[] signature;
+	private final long created;
+	private final long expires;
+
+	private HttpSignature(String keyId, @Nullable String algorithm, ImmutableList<String> headers, byte[] signature, long created, long expires) {
+		this.keyId = keyId;
+		this.algorithm = algorithm;
+		this.headers = headers;
+		this.signature = signature;
+		this.created = created;
+		this.expires = expires;
+	}
+
+	/**
+	 * Parse a {@code Signature} header, or an {@code Authorization} header using the
+	 * {@code Signature} scheme.
+	 * @return the signature, or null if the header is malformed or uses an algorithm other than
+	 * 		RSA with SHA-256
+	 */
+	public static @Nullable HttpSignature parse(String header) {
+		String keyId = null;
+		String algorithm = null;
+		String headers = null;
+		String signature = null;
+		long created = -1;
+		long expires = -1;
+		
+		int i = 0;
+		int len = header.length();
+		if (header.regionMatches(true, 0, "Signature ", 0, 10)) i = 10;
+		while (i < len) {
+			while (i < len && (header.charAt(i) == ' ' || header.charAt(i) == ',')) i++;
+			if (i >= len) break;
+			int eq = header.indexOf('=', i);
+			if (eq < 0) return null;
+			String name = header.substring(i, eq).trim();
+			String value;
+			i = eq + 1;
+			if (i < len && header.charAt(i) == '"') {
+				int close = header.indexOf('"', i + 1);
+				if (close < 0) return null;
+				value = header.substring(i + 1, close);
+				i = close + 1;
+			} else {
+				int comma = header.indexOf(',', i);
+				if (comma < 0) comma = len;
+				value = header.substring(i, comma).trim();
+				i = comma;
+			}
+			try {
+				switch (name) {
+				case "keyId": keyId = value; break;
+				case "algorithm": algorithm = value; break;
+				case "headers": headers = value; break;
+				case "signature": signature = value; break;
+				case "created": created = Long.parseLong(value); break;
+				case "expires": expires = Long.parseLong(value); break;
+				default: break; // Unknown parameters are ignored, as the draft asks
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		
+		if (keyId == null || keyId.isEmpty() || signature == null) return null;
+		if (algorithm != null && !algorithm.equalsIgnoreCase("rsa-sha256") && !algorithm.equalsIgnoreCase("hs2019")) return null;
+		byte[] sig;
+		try {
+			sig = Base64.getDecoder().decode(signature);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		// With no headers parameter, only the creation time is signed
+		ImmutableList<String> headerList = headers == null
+				? ImmutableList.of(CREATED)
+				: ImmutableList.copyOf(SPACE_SPLITTER.split(headers.toLowerCase(Locale.ROOT)));
+		if (headerList.isEmpty()) return null;
+		return new HttpSignature(keyId, algorithm, headerList, sig, created, expires);
+	}
+
+	/**
+	 * Write a {@code Signature} header.
+	 * @param headers the lower-case names of the signed headers, in the order they were signed
+	 */
+	public static String format(String keyId, List<String> headers, byte[] signature) {
+		return "keyId=\"" + keyId + "\",algorithm=\"rsa-sha256\",headers=\"" + String.join(" ", headers)
+				+ "\",signature=\"" + Base64.getEncoder().encodeToString(signature) + "\"";
+	}
+
+	/**
+	 * Put together the text that was signed, from the request as received.
+	 * @param method the request method, in any case
+	 * @param requestTarget the path and query of the request, as sent
+	 * @return the signing string, or null if a signed header is missing from the request
+	 */
+	public @Nullable String signingString(String method, String requestTarget, Headers request) {
+		StringBuilder sb = new StringBuilder(256);
+		for (String name : headers) {
+			if (sb.length() > 0) sb.append('\n');
+			sb.append(name).append(": ");
+			switch (name) {
+			case REQUEST_TARGET:
+				sb.append(method.toLowerCase(Locale.ROOT)).append(' ').append(requestTarget);
+				break;
+			case CREATED:
+				if (created < 0) return null;
+				sb.append(created);
+				break;
+			case EXPIRES:
+				if (expires < 0) return null;
+				sb.append(expires);
+				break;
+			default:
+				String value = request.get(name);
+				if (value == null) return null;
+				sb.append(value.trim());
+			}
+		}
+		return sb.toString();
+	}
+
+	public String getKeyId() {
+		return keyId;
+	}
+
+	/**
+	 * @return the algorithm the sender named, or null if they left it out
+	 */
+	public @Nullable String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return the lower-case names of the signed headers, in the order they were signed
+	 */
+	public List<String> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * @return the signature itself; not copied, so don't modify it
+	 */
+	public byte[] getSignature() {
+		return signature;
+	}
+
+	/**
+	 * @return the {@code created} parameter in seconds since the epoch, or -1 if there wasn't one
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return the {@code expires} parameter in seconds since the epoch, or -1 if there wasn't one
+	 */
+	public long getExpires() {
+		return expires;
+	}
+
+	/**
+	 * @return the actor the key belongs to, going by the fediverse convention of naming keys by
+	 * 		their actor's id with a fragment on the end
+	 */
+	public String getKeyOwnerGuess() {
+		int hash = keyId.indexOf('#');
+		return hash < 0 ? keyId : keyId.substring(0, hash);
+	}
+
+	/**
+	 * Read an RSA public key in the PEM form actors publish them in.
+	 */
+	public static PublicKey parsePublicKeyPem(String pem) throws GeneralSecurityException {
+		int start = pem.indexOf("-----BEGIN PUBLIC KEY-----");
+		int end = pem.indexOf("-----END PUBLIC KEY-----");
+		if (start < 0 || end < start) throw new GeneralSecurityException("Not a PEM public key");
+		String base64 = PEM_WHITESPACE.removeFrom(pem.substring(start + 26, end));
+		byte[] der;
+		try {
+			der = Base64.getDecoder().decode(base64);
+		} catch (IllegalArgumentException e) {
+			throw new GeneralSecurityException("Malformed PEM", e);
+		}
+		return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(der));
+	}
+
+	/**
+	 * Write a public key in the PEM form actors publish them in.
+	 */
+	public static String toPem(PublicKey key) {
+		return "-----BEGIN PUBLIC KEY-----\n"
+				+ Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(key.getEncoded())
+				+ "\n-----END PUBLIC KEY-----\n";
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Signs outbound deliveries with a local actor's key.
+ * <p>
+ * Each thread keeps a {@link Signature} already initialized with the key, which it goes back to
+ * after every use, so the key is only set up once per thread instead of once per request.
+ * <p>
+ * Thread-safe.
+ */
+public final class HttpSigner implements DeliveryScheduler.RequestSigner {
+	private static final ImmutableList<String> HEADERS = ImmutableList.of(HttpSignature.REQUEST_TARGET, "host", "date", "digest");
+
+	private final String keyId;
+	private final ThreadLocal<Signature> signatures;
+
+	/**
+	 * @param keyId the id the key is published under, such as {@link Person#getKeyId()}
+	 */
+	public HttpSigner(String keyId, PrivateKey key) {
+		this.keyId = keyId;
+		this.signatures = ThreadLocal.withInitial(() -> {
+			try {
+				Signature sig = Signature.getInstance(HttpSignature.JCA_ALGORITHM);
+				sig.initSign(key);
+				return sig;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalArgumentException("Can't sign with "+keyId, e);
+			}
+		});
+		// Find out about an unusable key now, rather than on every delivery
+		signatures.get();
+	}
+
+	public String getKeyId() {
+		return keyId;
+	}
+
+	/**
+	 * @return a resolver that signs each delivery with its sender's key from the store. Signers
+	 * 		are kept for ten minutes after their key is loaded, and so are misses, so a key that's
+	 * 		saved or removed may take that long to be noticed.
+	 */
+	public static DeliveryScheduler.SignerResolver resolver(SigningKeyStore keys) {
+		LoadingCache<String, Optional<HttpSigner>> signers = CacheBuilder.newBuilder()
+				.maximumSize(1024)
+				.expireAfterWrite(10, TimeUnit.MINUTES)
+				.build(CacheLoader.from(keyId -> {
+					PrivateKey key = keys.load(keyId);
+					return key == null ? Optional.empty() : Optional.of(new HttpSigner(keyId, key));
+				}));
+		// A failed load isn't cached, and surfaces as an exception, so the delivery is retried
+		return keyId -> signers.getUnchecked(keyId).orElse(null);
+	}
+
+	@Override
+	public void sign(HttpRequest.Builder request, Delivery delivery) {
+		URI target = delivery.getTarget();
+		String path = target.getRawPath();
+		if (path == null || path.isEmpty()) path = "/";
+		if (target.getRawQuery() != null) path = path + "?" + target.getRawQuery();
+		String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+		String digest = delivery.getDigestHeader();
+		
+		String signingString = HttpSignature.REQUEST_TARGET + ": post " + path
+				+ "\nhost: " + target.getRawAuthority()
+				+ "\ndate: " + date
+				+ "\ndigest: " + digest;
+		request.setHeader("Date", date);
+		request.setHeader("Digest", digest);
+		request.setHeader("Signature", HttpSignature.format(keyId, HEADERS, sign(signingString)));
+	}
+
+	private byte[] sign(String signingString) {
+		Signature sig = signatures.get();
+		try {
+			sig.update(signingString.getBytes(Charsets.UTF_8));
+			return sig.sign();
+		} catch (GeneralSecurityException e) {
+			// The key was good when the Signature was set up, so this can't happen
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.net.URI;
+
+import javax.annotation.Nullable;
+
+/**
+ * Where to deliver activities for an actor: their own inbox, and the shared inbox of their server
+ * if it has one. Immutable.
+ */
+public final class InboxEndpoints {
+	private final URI inbox;
+	private final @Nullable URI sharedInbox;
+
+	public InboxEndpoints(URI inbox, @Nullable URI sharedInbox) {
+		this.inbox = inbox;
+		this.sharedInbox = sharedInbox;
+	}
+
+	public URI getInbox() {
+		return inbox;
+	}
+
+	public @Nullable URI getSharedInbox() {
+		return sharedInbox;
+	}
+
+	/**
+	 * @return the shared inbox if there is one, since one delivery there reaches every recipient on
+	 * 		that server; otherwise the actor's own inbox
+	 */
+	public URI getPreferred() {
+		return sharedInbox != null ? sharedInbox : inbox;
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import javax.annotation.Nullable;
+
+/**
+ * An activity delivered to an inbox, waiting in an {@link InboxPipeline} to be processed.
+ * Immutable, apart from the entry id and audience its processor may give it.
+ */
+public final class InboxItem {
+	private final Activity activity;
+	private final @Nullable String recipient;
+	private final @Nullable byte[] document;
+	private final long receivedNanos;
+	private volatile long entryId = -1;
+	private volatile Collection<String> audience = Collections.emptyList();
+
+	/**
+	 * @param recipient the local actor whose inbox it was delivered to, or null for the shared inbox
+	 * @param document the activity as received, or null if it isn't needed
+	 */
+	public InboxItem(Activity activity, @Nullable String recipient, @Nullable byte[] document) {
+		this.activity = activity;
+		this.recipient = recipient;
+		this.document = document;
+		this.receivedNanos = System.nanoTime();
+	}
+
+	public Activity getActivity() {
+		return activity;
+	}
+
+	public @Nullable String getRecipient() {
+		return recipient;
+	}
+
+	/**
+	 * @return the activity as it was received; not copied, so don't modify it
+	 */
+	public @Nullable byte[] getDocument() {
+		return document;
+	}
+
+	/**
+	 * @return when the item was received, by {@link System#nanoTime()}
+	 */
+	public long getReceivedNanos() {
+		return receivedNanos;
+	}
+
+	/**
+	 * @return the id the processor stored the item under, or -1 if it hasn't said
+	 */
+	public long getEntryId() {
+		return entryId;
+	}
+
+	/**
+	 * Record the id the item was stored under, for {@link InboxProcessor#committed} to use once the
+	 * batch is committed.
+	 */
+	public void setEntryId(long entryId) {
+		this.entryId = entryId;
+	}
+
+	/**
+	 * @return the local actors the processor found the item is for, or an empty list if it hasn't
+	 * 		said
+	 */
+	public Collection<String> getAudience() {
+		return audience;
+	}
+
+	/**
+	 * Record the local actors the item is for, such as the followers of its actor, for
+	 * {@link InboxProcessor#committed} to use once the batch is committed.
+	 */
+	public void setAudience(Collection<String> audience) {
+		this.audience = audience;
+	}
+
+}
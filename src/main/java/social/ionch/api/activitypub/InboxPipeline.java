@@ -0,0 +1,383 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import social.ionch.api.db.Database;
+
+/**
+ * Takes in activities delivered to inboxes and processes them in the background, so that the
+ * sender can be answered as soon as an activity is queued.
+ * <p>
+ * Activities wait in a bounded queue. A pool of workers takes them off in batches, and handles
+ * each batch in one database transaction, grouped by the object acted on so that a burst of likes
+ * or replies to one post are handled together. When the queue is full, new activities are turned
+ * away with a 429 and a {@code Retry-After}, and the sender tries again later. That keeps latency
+ * bounded instead of letting the backlog grow until the server falls over.
+ * <p>
+ * If a batch fails, it's retried one object at a time, then one activity at a time, so that one
+ * bad activity only takes itself down.
+ * <p>
+ * With a {@link SeenActivityIndex}, copies of an activity that's already arrived at the same inbox
+ * are acknowledged and dropped as they're submitted, without being queued.
+ * <p>
+ * Thread-safe.
+ */
+public final class InboxPipeline {
+	private static final Logger log = LoggerFactory.getLogger(InboxPipeline.class);
+
+	/**
+	 * What became of an activity handed to {@link InboxPipeline#submit(InboxItem)}, and how to
+	 * answer the sender.
+	 */
+	public enum Admission {
+		/** Queued for processing. */
+		ACCEPTED(202),
+		/** Already seen, and dropped; the sender need not know. */
+		DUPLICATE(202),
+		/** The queue is full; send a {@code Retry-After} of {@link InboxPipeline#getRetryAfterSeconds()}. */
+		OVERLOADED(429),
+		/** The pipeline is shutting down. */
+		CLOSED(503),
+		;
+
+		private final int status;
+
+		Admission(int status) {
+			this.status = status;
+		}
+
+		/**
+		 * @return the HTTP status to answer with
+		 */
+		public int getStatus() {
+			return status;
+		}
+	}
+
+	private final Database database;
+	private final InboxProcessor processor;
+	private final @Nullable SeenActivityIndex seen;
+	private final BlockingQueue<InboxItem> queue;
+	private final int queueCapacity;
+	private final int workers;
+	private final int maxBatchSize;
+	private final int retryAfterSeconds;
+	private final ExecutorService executor;
+
+	private volatile boolean accepting;
+
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder duplicates = new LongAdder();
+	private final LongAdder processed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder totalLatencyNanos = new LongAdder();
+	private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+	private InboxPipeline(Builder builder) {
+		this.database = builder.database;
+		this.processor = builder.processor;
+		this.seen = builder.seen;
+		this.queueCapacity = builder.queueCapacity;
+		this.queue = new ArrayBlockingQueue<>(builder.queueCapacity);
+		this.workers = builder.workers;
+		this.maxBatchSize = builder.maxBatchSize;
+		this.retryAfterSeconds = builder.retryAfterSeconds;
+		this.executor = Executors.newFixedThreadPool(workers, new ThreadFactoryBuilder()
+				.setNameFormat("inbox-worker-%d")
+				.build());
+	}
+
+	public static Builder builder(Database database, InboxProcessor processor) {
+		return new Builder(database, processor);
+	}
+
+	/**
+	 * Start the workers and begin accepting activities.
+	 */
+	public void start() {
+		if (executor.isShutdown()) throw new IllegalStateException("Already shut down");
+		accepting = true;
+		for (int i = 0; i < workers; i++) {
+			executor.execute(this::work);
+		}
+	}
+
+	/**
+	 * Queue an activity for processing, without waiting.
+	 */
+	public Admission submit(InboxItem item) {
+		if (!accepting) return Admission.CLOSED;
+		String id = item.getActivity().getId();
+		if (seen != null && id != null && !seen.markSeen(id, item.getRecipient())) {
+			duplicates.increment();
+			return Admission.DUPLICATE;
+		}
+		if (!queue.offer(item)) {
+			// Let the sender's retry through
+			if (seen != null && id != null) seen.forget(id, item.getRecipient());
+			rejected.increment();
+			return Admission.OVERLOADED;
+		}
+		// If shutdown began while we were queueing, it may already have drained the queue for the
+		// last time. Take the item back if it's still there; if it isn't, it's being processed.
+		if (!accepting && queue.remove(item)) {
+			if (seen != null && id != null) seen.forget(id, item.getRecipient());
+			return Admission.CLOSED;
+		}
+		accepted.increment();
+		return Admission.ACCEPTED;
+	}
+
+	/**
+	 * Stop accepting activities, and wait for the ones already queued to be processed.
+	 * @return true if everything was processed in time
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		accepting = false;
+		executor.shutdown();
+		if (!executor.awaitTermination(timeout, unit)) return false;
+		// Workers stop once they find the queue empty, and an activity submitted just as shutdown
+		// began can land after that; process any stragglers here
+		List<InboxItem> rest = Lists.newArrayList();
+		while (queue.drainTo(rest, maxBatchSize) > 0) {
+			batches.increment();
+			process(rest);
+			rest.clear();
+		}
+		return true;
+	}
+
+	private void work() {
+		List<InboxItem> batch = Lists.newArrayListWithCapacity(maxBatchSize);
+		try {
+			while (true) {
+				InboxItem first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					if (!accepting) return;
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, maxBatchSize - 1);
+				batches.increment();
+				process(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Throwable t) {
+			log.error("Inbox worker died", t);
+		}
+	}
+
+	private void process(List<InboxItem> items) {
+		Map<String, List<InboxItem>> byObject = Maps.newLinkedHashMap();
+		for (InboxItem item : items) {
+			byObject.computeIfAbsent(item.getActivity().getObjectId(), k -> Lists.newArrayList()).add(item);
+		}
+		try {
+			database.inTransaction(conn -> {
+				for (Map.Entry<String, List<InboxItem>> entry : byObject.entrySet()) {
+					processor.process(conn, entry.getKey(), entry.getValue());
+				}
+				return null;
+			});
+		} catch (RuntimeException e) {
+			if (items.size() == 1) {
+				failed.increment();
+				String id = items.get(0).getActivity().getId();
+				if (seen != null && id != null) seen.forget(id, items.get(0).getRecipient());
+				log.warn("Failed to process activity {} from {}", items.get(0).getActivity().getId(), items.get(0).getActivity().getActor(), e);
+			} else if (byObject.size() > 1) {
+				for (List<InboxItem> group : byObject.values()) {
+					process(group);
+				}
+			} else {
+				for (InboxItem item : items) {
+					process(Collections.singletonList(item));
+				}
+			}
+			return;
+		}
+		try {
+			processor.committed(items);
+		} catch (RuntimeException e) {
+			log.warn("Failed to finish a committed batch of {} activities", items.size(), e);
+		}
+		long now = System.nanoTime();
+		for (InboxItem item : items) {
+			long latency = now - item.getReceivedNanos();
+			totalLatencyNanos.add(latency);
+			maxLatencyNanos.accumulate(latency);
+		}
+		processed.add(items.size());
+	}
+
+	/**
+	 * @return how many activities are waiting to be processed
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @return how long senders turned away with {@link Admission#OVERLOADED} should wait
+	 */
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	public long getAcceptedCount() {
+		return accepted.sum();
+	}
+
+	/**
+	 * @return how many activities were turned away because the queue was full
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	/**
+	 * @return how many activities were dropped as copies of ones already seen
+	 */
+	public long getDuplicateCount() {
+		return duplicates.sum();
+	}
+
+	public long getProcessedCount() {
+		return processed.sum();
+	}
+
+	/**
+	 * @return how many activities were dropped because processing them failed
+	 */
+	public long getFailedCount() {
+		return failed.sum();
+	}
+
+	public long getBatchCount() {
+		return batches.sum();
+	}
+
+	/**
+	 * @return the mean time from an activity being received to its batch being committed
+	 */
+	public long getMeanLatency(TimeUnit unit) {
+		long count = processed.sum();
+		return count == 0 ? 0 : unit.convert(totalLatencyNanos.sum() / count, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the longest time from an activity being received to its batch being committed
+	 */
+	public long getMaxLatency(TimeUnit unit) {
+		return unit.convert(maxLatencyNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	public static final class Builder {
+		private final Database database;
+		private final InboxProcessor processor;
+		private @Nullable SeenActivityIndex seen;
+		private int queueCapacity = 10_000;
+		private int workers = Math.max(2, Runtime.getRuntime().availableProcessors());
+		private int maxBatchSize = 128;
+		private int retryAfterSeconds = 10;
+
+		private Builder(Database database, InboxProcessor processor) {
+			this.database = database;
+			this.processor = processor;
+		}
+
+		/**
+		 * How many activities may wait to be processed before new ones are turned away. Defaults
+		 * to 10000.
+		 */
+		public Builder queueCapacity(int queueCapacity) {
+			if (queueCapacity < 1) throw new IllegalArgumentException("queueCapacity must be positive");
+			this.queueCapacity = queueCapacity;
+			return this;
+		}
+
+		/**
+		 * How many batches may be processed at once. Defaults to the number of processors, but at
+		 * least two.
+		 */
+		public Builder workers(int workers) {
+			if (workers < 1) throw new IllegalArgumentException("workers must be positive");
+			this.workers = workers;
+			return this;
+		}
+
+		/**
+		 * The most activities to handle in one transaction. Defaults to 128.
+		 */
+		public Builder maxBatchSize(int maxBatchSize) {
+			if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be positive");
+			this.maxBatchSize = maxBatchSize;
+			return this;
+		}
+
+		/**
+		 * What to tell senders turned away because the queue is full. Defaults to 10 seconds.
+		 */
+		public Builder retryAfterSeconds(int retryAfterSeconds) {
+			if (retryAfterSeconds < 0) throw new IllegalArgumentException("retryAfterSeconds must not be negative");
+			this.retryAfterSeconds = retryAfterSeconds;
+			return this;
+		}
+
+		/**
+		 * Drop activities whose ids have already been seen, before they're queued. The processor is
+		 * then expected to record the ids it processes in the index's store. Defaults to none.
+		 */
+		public Builder dedup(SeenActivityIndex seen) {
+			this.seen = seen;
+			return this;
+		}
+
+		public InboxPipeline build() {
+			return new InboxPipeline(this);
+		}
+	}
+
+}
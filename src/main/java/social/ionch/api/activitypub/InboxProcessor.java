@@ -0,0 +1,46 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Does the actual work of handling inbound activities for an {@link InboxPipeline}.
+ */
+@FunctionalInterface
+public interface InboxProcessor {
+	/**
+	 * Handle activities that all act on the same object. Called once per object in a batch, all
+	 * within the batch's transaction; if this throws, the batch is retried in smaller pieces to
+	 * find the item at fault.
+	 * @param conn the batch's connection. Don't commit, roll back or close it.
+	 * @param objectId the id of the object acted on, or null for activities without one
+	 * @param items the activities, in the order they were received
+	 */
+	void process(Connection conn, @Nullable String objectId, List<InboxItem> items) throws SQLException;
+	
+	/**
+	 * Called after a batch is committed, outside the transaction, for work that mustn't happen
+	 * unless the batch was stored, such as updating in-memory timelines. Does nothing by default.
+	 * @param items every activity in the batch
+	 */
+	default void committed(List<InboxItem> items) {}
+}
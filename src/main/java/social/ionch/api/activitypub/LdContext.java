@@ -0,0 +1,226 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import blue.endless.jankson.JsonArray;
+import blue.endless.jankson.JsonElement;
+import blue.endless.jankson.JsonNull;
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.JsonPrimitive;
+
+/**
+ * A JSON-LD {@code @context}, compiled down to the term mapping needed to tell what a document's
+ * keys and values mean: each term's IRI, whether its values are IRIs, and the default vocabulary.
+ * Only the parts of JSON-LD context processing that ActivityPub documents actually use are
+ * supported; language maps, type coercion to literals and {@code @reverse} are not tracked.
+ * <p>
+ * Obtain these from an {@link LdContextCache}, which compiles each distinct context only once.
+ * Immutable and thread-safe.
+ */
+public final class LdContext {
+	/** An empty context, as at the start of processing a document. */
+	public static final LdContext EMPTY = new LdContext(ImmutableMap.of(), null);
+
+	/** Past this many, keys that turn up are expanded every time instead of being remembered. */
+	private static final int MAX_MEMO_SIZE = 4096;
+
+	/*package*/ static final class Term {
+		final String iri;
+		final boolean idValued;
+
+		Term(String iri, boolean idValued) {
+			this.iri = iri;
+			this.idValued = idValued;
+		}
+	}
+
+	private final ImmutableMap<String, Term> terms;
+	private final @Nullable String vocab;
+
+	/**
+	 * Keys seen in documents under this context, mapped to their IRIs. Documents using one context
+	 * use the same few dozen keys over and over, so this turns expansion into a single lookup.
+	 */
+	private final ConcurrentMap<String, String> expandedKeys = new ConcurrentHashMap<>();
+
+	private LdContext(ImmutableMap<String, Term> terms, @Nullable String vocab) {
+		this.terms = terms;
+		this.vocab = vocab;
+	}
+
+	/**
+	 * Process a local context on top of this one, as a document or nested object declaring
+	 * {@code @context} does.
+	 * @param remote resolves context URLs to already-compiled contexts, or null; URLs it doesn't
+	 * 		know are skipped, never fetched
+	 */
+	/*package*/ LdContext extend(JsonElement local, Function<String, LdContext> remote) {
+		Map<String, Term> terms = Maps.newLinkedHashMap(this.terms);
+		String[] vocab = { this.vocab };
+		apply(local, terms, vocab, remote);
+		return new LdContext(ImmutableMap.copyOf(terms), vocab[0]);
+	}
+
+	private static void apply(JsonElement local, Map<String, Term> terms, String[] vocab, Function<String, LdContext> remote) {
+		if (local == null || local instanceof JsonNull) {
+			terms.clear();
+			vocab[0] = null;
+		} else if (local instanceof JsonArray) {
+			for (JsonElement ele : (JsonArray)local) {
+				apply(ele, terms, vocab, remote);
+			}
+		} else if (local instanceof JsonPrimitive) {
+			LdContext resolved = remote.apply(((JsonPrimitive)local).asString());
+			if (resolved != null) {
+				terms.putAll(resolved.terms);
+				if (resolved.vocab != null) vocab[0] = resolved.vocab;
+			}
+		} else if (local instanceof JsonObject) {
+			define((JsonObject)local, terms, vocab);
+		}
+	}
+
+	private static void define(JsonObject local, Map<String, Term> terms, String[] vocab) {
+		JsonElement vocabElement = local.get("@vocab");
+		if (vocabElement instanceof JsonNull) {
+			vocab[0] = null;
+		} else if (vocabElement instanceof JsonPrimitive) {
+			vocab[0] = ((JsonPrimitive)vocabElement).asString();
+		}
+		// Definitions may use prefixes defined later in the same object, which a second pass picks
+		// up, and a third for prefixes of prefixes
+		Map<String, JsonElement> pending = Maps.newLinkedHashMap();
+		for (Map.Entry<String, JsonElement> entry : local.entrySet()) {
+			if (entry.getKey().startsWith("@")) continue;
+			if (entry.getValue() instanceof JsonNull) {
+				terms.remove(entry.getKey());
+			} else {
+				pending.put(entry.getKey(), entry.getValue());
+			}
+		}
+		for (int pass = 0; pass < 3; pass++) {
+			for (Map.Entry<String, JsonElement> entry : pending.entrySet()) {
+				Term term = defineTerm(entry.getKey(), entry.getValue(), terms, vocab[0]);
+				if (term != null) terms.put(entry.getKey(), term);
+			}
+		}
+	}
+
+	private static @Nullable Term defineTerm(String name, JsonElement definition, Map<String, Term> terms, @Nullable String vocab) {
+		String id;
+		boolean idValued = false;
+		if (definition instanceof JsonPrimitive) {
+			id = ((JsonPrimitive)definition).asString();
+		} else if (definition instanceof JsonObject) {
+			JsonObject obj = (JsonObject)definition;
+			JsonElement idElement = obj.get("@id");
+			id = idElement instanceof JsonPrimitive ? ((JsonPrimitive)idElement).asString() : name;
+			JsonElement typeElement = obj.get("@type");
+			idValued = typeElement instanceof JsonPrimitive && "@id".equals(((JsonPrimitive)typeElement).asString());
+		} else {
+			return null;
+		}
+		if (id.startsWith("@")) return new Term(id, false);
+		String iri = expandIri(id, terms);
+		if (iri == null && vocab != null) iri = vocab + id;
+		return iri == null ? null : new Term(iri, idValued);
+	}
+
+	/**
+	 * @return the IRI for an absolute IRI, a term, or a compact IRI whose prefix is defined, or
+	 * 		null if it's none of those
+	 */
+	private static @Nullable String expandIri(String value, Map<String, Term> terms) {
+		Term term = terms.get(value);
+		if (term != null) return term.iri;
+		int colon = value.indexOf(':');
+		if (colon < 0) return null;
+		String prefix = value.substring(0, colon);
+		// Absolute IRIs and blank nodes stand for themselves
+		if (prefix.equals("_") || value.startsWith("//", colon + 1)) return value;
+		Term prefixTerm = terms.get(prefix);
+		return prefixTerm == null ? value : prefixTerm.iri + value.substring(colon + 1);
+	}
+
+	/**
+	 * @return the IRI or keyword a key in a document means under this context, or the key itself if
+	 * 		it doesn't expand to anything
+	 */
+	public String expandKey(String key) {
+		String iri = expandedKeys.get(key);
+		if (iri != null) return iri;
+		if (key.startsWith("@")) {
+			iri = key;
+		} else {
+			iri = expandIri(key, terms);
+			if (iri == null) iri = vocab == null ? key : vocab + key;
+		}
+		if (expandedKeys.size() < MAX_MEMO_SIZE) expandedKeys.put(key, iri);
+		return iri;
+	}
+
+	/**
+	 * @return the IRI a {@code type} value means under this context. Type values are resolved
+	 * 		against the vocabulary, the same way keys are.
+	 */
+	public String expandType(String type) {
+		return expandKey(type);
+	}
+
+	/**
+	 * Expand an IRI-valued string, such as the value of {@code to} or {@code actor}, that may be a
+	 * compact IRI like {@code as:Public}. Terms are not substituted here, as for any value that's a
+	 * reference to a node rather than a vocabulary word.
+	 */
+	public String expandValue(String value) {
+		int colon = value.indexOf(':');
+		if (colon < 0) return value;
+		Term prefixTerm = terms.get(value.substring(0, colon));
+		if (prefixTerm == null || value.startsWith("//", colon + 1)) return value;
+		return prefixTerm.iri + value.substring(colon + 1);
+	}
+
+	/**
+	 * @return the term defined by this context with the given name, or null
+	 */
+	/*package*/ @Nullable Term getTerm(String name) {
+		return terms.get(name);
+	}
+
+	/*package*/ ImmutableMap<String, Term> getTerms() {
+		return terms;
+	}
+
+	/**
+	 * @return true if the term is defined and its values are IRIs
+	 */
+	public boolean isIdValued(String term) {
+		Term t = terms.get(term);
+		return t != null && t.idValued;
+	}
+
+}
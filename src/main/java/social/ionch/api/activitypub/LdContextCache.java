@@ -0,0 +1,286 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import blue.endless.jankson.JsonArray;
+import blue.endless.jankson.JsonElement;
+import blue.endless.jankson.JsonNull;
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.JsonPrimitive;
+import blue.endless.jankson.api.SyntaxError;
+import social.ionch.api.Nojankson;
+
+/**
+ * Compiles JSON-LD contexts for {@link LdNormalizer}, remembering the result for each distinct
+ * {@code @context} value so that the thousandth activity from a given server costs a map lookup
+ * instead of another round of context processing.
+ * <p>
+ * Context URLs are only ever resolved against contexts bundled ahead of time: the ActivityStreams
+ * and security vocabularies ship as resources, and more can be added through the {@link Builder}.
+ * Nothing is fetched over the network, so a document naming an unknown context simply gets no
+ * terms from it.
+ * <p>
+ * Thread-safe.
+ */
+public final class LdContextCache {
+	public static final String ACTIVITY_STREAMS = "https://www.w3.org/ns/activitystreams";
+	public static final String SECURITY_V1 = "https://w3id.org/security/v1";
+
+	/** What our own documents declare, and what {@link LdNormalizer} rewrites documents into. */
+	public static final ImmutableList<String> CANONICAL = ImmutableList.of(ACTIVITY_STREAMS, SECURITY_V1);
+
+	private static final class DefaultHolder {
+		static final LdContextCache INSTANCE = builder().build();
+	}
+
+	private final ImmutableMap<String, LdContext> bundled;
+	private final Cache<ContextKey, LdContext> compiled;
+	private final LdContext canonical;
+
+	private LdContextCache(Builder builder) {
+		// Bundled contexts may refer to ones bundled before them
+		Map<String, LdContext> bundled = Maps.newLinkedHashMap();
+		for (Map.Entry<String, JsonElement> entry : builder.documents.entrySet()) {
+			bundled.put(entry.getKey(), LdContext.EMPTY.extend(entry.getValue(), bundled::get));
+		}
+		for (Map.Entry<String, String> entry : builder.aliases.entrySet()) {
+			LdContext context = bundled.get(entry.getValue());
+			if (context == null) throw new IllegalArgumentException("Alias "+entry.getKey()+" is for "+entry.getValue()+", which isn't bundled");
+			bundled.put(entry.getKey(), context);
+		}
+		this.bundled = ImmutableMap.copyOf(bundled);
+		this.compiled = CacheBuilder.newBuilder()
+				.maximumSize(builder.maximumSize)
+				.recordStats()
+				.build();
+		JsonArray canonicalContext = new JsonArray();
+		for (String url : CANONICAL) {
+			canonicalContext.add(JsonPrimitive.of(url));
+		}
+		this.canonical = resolve(canonicalContext);
+	}
+
+	/**
+	 * @return a shared cache with just the contexts that ship with ionChannel
+	 */
+	public static LdContextCache getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+
+	/**
+	 * @return the active context for a document declaring the given {@code @context}
+	 */
+	public LdContext resolve(JsonElement context) {
+		return resolve(LdContext.EMPTY, context);
+	}
+
+	/**
+	 * @return the active context inside a node that declares the given {@code @context}, nested in
+	 * 		one whose active context is {@code active}
+	 */
+	public LdContext resolve(LdContext active, @Nullable JsonElement local) {
+		if (local == null) local = JsonNull.INSTANCE;
+		// Look up by the document's own tree; only a miss pays for a copy to keep as the key
+		int hash = 31 * System.identityHashCode(active) + hash(local);
+		LdContext context = compiled.getIfPresent(new ContextKey(active, local, hash));
+		if (context == null) {
+			// Two threads may both compile a new context; the result is the same either way
+			context = active.extend(local, bundled::get);
+			compiled.put(new ContextKey(active, local.clone(), hash), context);
+		}
+		return context;
+	}
+
+	/**
+	 * @return the context {@link #CANONICAL} declares
+	 */
+	public LdContext getCanonical() {
+		return canonical;
+	}
+
+	/**
+	 * @return the compiled bundled context for the URL, or null if it isn't bundled
+	 */
+	public @Nullable LdContext getBundled(String url) {
+		return bundled.get(url);
+	}
+
+	/**
+	 * @return hit and miss counts for compiled contexts
+	 */
+	public CacheStats stats() {
+		return compiled.stats();
+	}
+
+	private static int hash(JsonElement ele) {
+		if (ele instanceof JsonPrimitive) return Objects.hashCode(((JsonPrimitive)ele).getValue());
+		int h;
+		if (ele instanceof JsonObject) {
+			h = 1;
+			for (Map.Entry<String, JsonElement> entry : ((JsonObject)ele).entrySet()) {
+				h = 31 * h + (entry.getKey().hashCode() ^ hash(entry.getValue()));
+			}
+		} else if (ele instanceof JsonArray) {
+			h = 2;
+			for (JsonElement child : (JsonArray)ele) {
+				h = 31 * h + hash(child);
+			}
+		} else {
+			h = 0;
+		}
+		return h;
+	}
+
+	/**
+	 * Compare two contexts by structure. Order matters in objects as well as arrays, since
+	 * reordering terms can change what a context means.
+	 */
+	private static boolean same(JsonElement a, JsonElement b) {
+		if (a == b) return true;
+		if (a instanceof JsonPrimitive) {
+			return b instanceof JsonPrimitive && Objects.equals(((JsonPrimitive)a).getValue(), ((JsonPrimitive)b).getValue());
+		} else if (a instanceof JsonObject) {
+			if (!(b instanceof JsonObject) || ((JsonObject)a).size() != ((JsonObject)b).size()) return false;
+			Iterator<Map.Entry<String, JsonElement>> other = ((JsonObject)b).entrySet().iterator();
+			for (Map.Entry<String, JsonElement> entry : ((JsonObject)a).entrySet()) {
+				Map.Entry<String, JsonElement> otherEntry = other.next();
+				if (!entry.getKey().equals(otherEntry.getKey()) || !same(entry.getValue(), otherEntry.getValue())) return false;
+			}
+			return true;
+		} else if (a instanceof JsonArray) {
+			if (!(b instanceof JsonArray) || ((JsonArray)a).size() != ((JsonArray)b).size()) return false;
+			Iterator<JsonElement> other = ((JsonArray)b).iterator();
+			for (JsonElement child : (JsonArray)a) {
+				if (!same(child, other.next())) return false;
+			}
+			return true;
+		}
+		return a.getClass() == b.getClass();
+	}
+
+	/**
+	 * What a compiled context was compiled from: the context it extends, and the local context on
+	 * top. Local contexts are hashed and compared in place, so the common case of a document
+	 * declaring a context that's been seen before costs a walk over it and nothing else.
+	 */
+	private static final class ContextKey {
+		final LdContext active;
+		final JsonElement local;
+		final int hash;
+
+		ContextKey(LdContext active, JsonElement local, int hash) {
+			this.active = active;
+			this.local = local;
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ContextKey)) return false;
+			ContextKey that = (ContextKey)obj;
+			return hash == that.hash && active == that.active && same(local, that.local);
+		}
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static final class Builder {
+		private final Map<String, JsonElement> documents = Maps.newLinkedHashMap();
+		private final Map<String, String> aliases = Maps.newLinkedHashMap();
+		private long maximumSize = 1024;
+
+		private Builder() {
+			bundleResource(ACTIVITY_STREAMS, "/jsonld/activitystreams.jsonld");
+			bundleResource(SECURITY_V1, "/jsonld/security-v1.jsonld");
+			alias("http://www.w3.org/ns/activitystreams", ACTIVITY_STREAMS);
+			alias("https://www.w3.org/ns/activitystreams.jsonld", ACTIVITY_STREAMS);
+			alias("https://w3id.org/security/v1.jsonld", SECURITY_V1);
+		}
+
+		/**
+		 * Make a context available under the given URL.
+		 * @param document a JSON-LD context document, with the definitions under {@code @context}
+		 */
+		public Builder bundle(String url, JsonObject document) {
+			JsonElement context = document.get("@context");
+			if (context == null) throw new IllegalArgumentException("Context document for "+url+" has no @context");
+			documents.put(url, context);
+			return this;
+		}
+
+		/**
+		 * Make a context available under the given URL, read from a classpath resource.
+		 * @see #bundle(String, JsonObject)
+		 */
+		public Builder bundleResource(String url, String resource) {
+			try (InputStream in = LdContextCache.class.getResourceAsStream(resource)) {
+				if (in == null) throw new IllegalArgumentException("No such resource: "+resource);
+				return bundle(url, Nojankson.builder().build().load(in));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} catch (SyntaxError e) {
+				throw new IllegalArgumentException("Malformed context document "+resource, e);
+			}
+		}
+
+		/**
+		 * Resolve another URL to an already-bundled context, for the variants servers spell the
+		 * same context with.
+		 */
+		public Builder alias(String url, String bundledUrl) {
+			aliases.put(url, bundledUrl);
+			return this;
+		}
+
+		/**
+		 * How many distinct compiled contexts to keep. Defaults to 1024; federated servers in
+		 * practice send a few dozen.
+		 */
+		public Builder maximumSize(long maximumSize) {
+			this.maximumSize = maximumSize;
+			return this;
+		}
+
+		public LdContextCache build() {
+			return new LdContextCache(this);
+		}
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import blue.endless.jankson.JsonArray;
+import blue.endless.jankson.JsonElement;
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.JsonPrimitive;
+
+/**
+ * Rewrites inbound ActivityPub documents into one predictable shape: the terms of the
+ * {@link LdContextCache#CANONICAL canonical} ActivityStreams and security contexts, whatever
+ * {@code @context} the sender used. Keys spelled as compact or absolute IRIs ({@code as:actor}),
+ * or aliased by a custom context, come out as the plain term ({@code actor}); {@code type} values
+ * come out as plain class names where there is one; and IRI-valued properties have compact IRIs
+ * such as {@code as:Public} expanded. Nested {@code @context} declarations are honored.
+ * <p>
+ * This is JSON-LD compaction against a fixed target, cut down to what federation needs. Keys that
+ * have no canonical term are left as they were, rather than dropped, so that extensions still
+ * reach code that knows about them.
+ * <p>
+ * Immutable and thread-safe.
+ */
+public final class LdNormalizer {
+	private final LdContextCache contexts;
+	private final LdContext canonical;
+	/** The canonical term for each IRI, including keyword aliases such as {@code @id} to {@code id}. */
+	private final ImmutableMap<String, String> termsByIri;
+
+	public LdNormalizer(LdContextCache contexts) {
+		this.contexts = contexts;
+		this.canonical = contexts.getCanonical();
+		Map<String, String> termsByIri = Maps.newHashMap();
+		for (Map.Entry<String, LdContext.Term> entry : canonical.getTerms().entrySet()) {
+			// First definition wins, so items beats orderedItems, which shares its IRI
+			termsByIri.putIfAbsent(entry.getValue().iri, entry.getKey());
+		}
+		this.termsByIri = ImmutableMap.copyOf(termsByIri);
+	}
+
+	/**
+	 * @return a normalized copy of the document, declaring the canonical context. The document
+	 * 		itself is left alone.
+	 */
+	public JsonObject normalize(JsonObject document) {
+		JsonObject result = normalize(document, LdContext.EMPTY);
+		JsonArray context = new JsonArray();
+		for (String url : LdContextCache.CANONICAL) {
+			context.add(JsonPrimitive.of(url));
+		}
+		// Put the context first, as people reading the output expect
+		JsonObject withContext = new JsonObject();
+		withContext.put("@context", context);
+		withContext.putAll(result);
+		return withContext;
+	}
+
+	private JsonObject normalize(JsonObject obj, LdContext active) {
+		JsonElement local = obj.get("@context");
+		if (local != null) active = contexts.resolve(active, local);
+		JsonObject result = new JsonObject();
+		for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
+			String key = entry.getKey();
+			if (key.equals("@context")) continue;
+			String iri = active.expandKey(key);
+			String term = compactKey(key, iri);
+			JsonElement value = entry.getValue();
+			if (iri.equals("@type")) {
+				value = compactTypes(value, active);
+			} else if (iri.equals("@id") || canonical.isIdValued(term) || active.isIdValued(key)) {
+				value = expandIds(value, active);
+			} else {
+				value = normalizeValue(value, active);
+			}
+			result.put(term, value);
+		}
+		return result;
+	}
+
+	private String compactKey(String key, String iri) {
+		// Already the canonical term for the right thing, which is almost always the case
+		LdContext.Term same = canonical.getTerm(key);
+		if (same != null && same.iri.equals(iri)) return key;
+		String term = termsByIri.get(iri);
+		return term == null ? key : term;
+	}
+
+	private JsonElement normalizeValue(JsonElement value, LdContext active) {
+		if (value instanceof JsonObject) return normalize((JsonObject)value, active);
+		if (value instanceof JsonArray) {
+			JsonArray result = new JsonArray();
+			for (JsonElement ele : (JsonArray)value) {
+				result.add(normalizeValue(ele, active));
+			}
+			return result;
+		}
+		return value;
+	}
+
+	private JsonElement compactTypes(JsonElement value, LdContext active) {
+		if (value instanceof JsonArray) {
+			JsonArray result = new JsonArray();
+			for (JsonElement ele : (JsonArray)value) {
+				result.add(compactTypes(ele, active));
+			}
+			return result;
+		}
+		String type = asString(value);
+		if (type == null) return value;
+		// Types are vocabulary-relative, so a bare class name means the same as the term for it
+		String iri = active.expandType(type);
+		String term = termsByIri.get(iri);
+		if (term != null) return term.equals(type) ? value : JsonPrimitive.of(term);
+		return iri.startsWith("_:") ? value : JsonPrimitive.of(iri);
+	}
+
+	private JsonElement expandIds(JsonElement value, LdContext active) {
+		if (value instanceof JsonArray) {
+			JsonArray result = new JsonArray();
+			for (JsonElement ele : (JsonArray)value) {
+				result.add(expandIds(ele, active));
+			}
+			return result;
+		}
+		String id = asString(value);
+		if (id == null) return normalizeValue(value, active);
+		String iri = active.expandValue(id);
+		return iri.equals(id) ? value : JsonPrimitive.of(iri);
+	}
+
+	private static @Nullable String asString(JsonElement value) {
+		if (value instanceof JsonPrimitive && ((JsonPrimitive)value).getValue() instanceof String) {
+			return (String)((JsonPrimitive)value).getValue();
+		}
+		return null;
+	}
+
+}
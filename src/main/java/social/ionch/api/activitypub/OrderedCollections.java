@@ -0,0 +1,138 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.io.OutputStream;
+
+import javax.annotation.Nullable;
+
+import social.ionch.api.JsonWriter;
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Serves local actors' outboxes, followers and following as {@code OrderedCollection}s, split into
+ * {@code OrderedCollectionPage}s.
+ * <p>
+ * Pages are addressed by a cursor, the {@code max_id} query parameter, rather than by number: each
+ * page links to the next by the sequence number of its last item. Reading any page is then one
+ * index range scan of a page's worth of rows, so crawling a collection of any size costs time in
+ * proportion to its size, instead of rescanning everything before each page the way an offset
+ * would. A page is read into memory and the store's connection released before any of it is
+ * written, so that a slow client doesn't hold a connection for as long as it takes to read.
+ */
+public final class OrderedCollections {
+	private static final String PAGE_PARAM = "page=true";
+	private static final String CURSOR_PARAM = "max_id=";
+
+	private final CollectionStore store;
+	private final int pageSize;
+
+	/**
+	 * @param pageSize how many items to put in each page
+	 */
+	public OrderedCollections(CollectionStore store, int pageSize) {
+		if (pageSize < 1) throw new IllegalArgumentException("pageSize must be positive");
+		this.store = store;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @return the URL of the given collection of a local actor
+	 */
+	public static String collectionId(String ownerId, CollectionStore.Kind kind) {
+		return ownerId + "/" + kind.getPath();
+	}
+
+	/**
+	 * @param beforeSeq the cursor, or {@link Long#MAX_VALUE} for the first page
+	 * @return the URL of a page of a collection
+	 */
+	public static String pageId(String collectionId, long beforeSeq) {
+		return beforeSeq == Long.MAX_VALUE
+				? collectionId + "?" + PAGE_PARAM
+				: collectionId + "?" + PAGE_PARAM + "&" + CURSOR_PARAM + beforeSeq;
+	}
+
+	/**
+	 * Read the cursor out of the {@code max_id} parameter of a page request.
+	 * @param maxId the parameter's value, or null if there wasn't one
+	 * @return the cursor to pass to {@link #writePage}
+	 * @throws IllegalArgumentException if the parameter isn't a valid cursor
+	 */
+	public static long parseCursor(@Nullable String maxId) {
+		if (maxId == null || maxId.isEmpty()) return Long.MAX_VALUE;
+		long cursor;
+		try {
+			cursor = Long.parseLong(maxId);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad cursor "+maxId, e);
+		}
+		if (cursor < 0) throw new IllegalArgumentException("Bad cursor "+maxId);
+		return cursor;
+	}
+
+	/**
+	 * Write a collection itself, which gives its size and links to its first page.
+	 */
+	public void writeCollection(OutputStream out, String ownerId, CollectionStore.Kind kind) throws DatabaseException {
+		String id = collectionId(ownerId, kind);
+		long count = store.count(ownerId, kind);
+		JsonWriter writer = new JsonWriter(out);
+		writer.beginObject();
+		writer.key("@context").value(LdContextCache.ACTIVITY_STREAMS);
+		writer.key("id").value(id);
+		writer.key("type").value("OrderedCollection");
+		writer.key("totalItems").value(count);
+		writer.key("first").value(pageId(id, Long.MAX_VALUE));
+		writer.endObject();
+		writer.flush();
+	}
+
+	/**
+	 * Write a page of a collection.
+	 * @param beforeSeq the cursor from {@link #parseCursor}
+	 */
+	public void writePage(OutputStream out, String ownerId, CollectionStore.Kind kind, long beforeSeq) throws DatabaseException {
+		String id = collectionId(ownerId, kind);
+		CollectionStore.Page page = store.page(ownerId, kind, beforeSeq, pageSize);
+		JsonWriter writer = new JsonWriter(out);
+		writer.beginObject();
+		writer.key("@context").value(LdContextCache.ACTIVITY_STREAMS);
+		writer.key("id").value(pageId(id, beforeSeq));
+		writer.key("type").value("OrderedCollectionPage");
+		writer.key("partOf").value(id);
+		writer.key("orderedItems").beginArray();
+		for (CollectionStore.Item item : page.getItems()) {
+			if (item.getDocument() != null) {
+				writer.rawValue(item.getDocument());
+			} else {
+				writer.value(item.getId());
+			}
+		}
+		writer.endArray();
+		if (page.getNext() >= 0) {
+			writer.key("next").value(pageId(id, page.getNext()));
+		}
+		writer.endObject();
+		writer.flush();
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+}
@@ -1,14 +1,36 @@
 package social.ionch.api.activitypub;
 
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import blue.endless.jankson.JsonArray;
+import blue.endless.jankson.JsonElement;
 import blue.endless.jankson.JsonObject;
 import blue.endless.jankson.JsonPrimitive;
 import blue.endless.jankson.annotation.SerializedName;
 import blue.endless.jankson.annotation.Serializer;
+import social.ionch.api.JsonBinder;
+import social.ionch.api.JsonWriter;
 
 public class Person {
+	/** The last update time handed out, so that no two changes in this process get the same one. */
+	private static final AtomicLong LAST_UPDATED = new AtomicLong();
+	
+	/** Reads the same keys Jankson's marshaller would, without reflection or an intermediate tree. */
+	public static final JsonBinder<Person> BINDER = JsonBinder.builder(Person::new)
+			.string("databaseId", (p, v) -> p.databaseId = v)
+			.string("id", (p, v) -> p.id = v)
+			.string("preferredUsername", (p, v) -> p.preferredUsername = v)
+			.stringList("usernames", (p, v) -> p.usernames = v)
+			.string("name", (p, v) -> p.name = v)
+			.string("summary", (p, v) -> p.bio = v)
+			.object("publicKey", KeyHolder.BINDER, (p, v) -> p.publicKeyPem = v == null ? null : v.publicKeyPem)
+			.string("updated", (p, v) -> p.updated = parseUpdated(v))
+			.build();
+	
 	/** Database-assigned id for this Object */
 	protected String databaseId;
 	
@@ -26,7 +48,106 @@ public class Person {
 	@SerializedName("summary")
 	protected String bio;
 	
-	//TODO: Pubkey
+	/** RSA public key other servers check this actor's signatures with, in PEM form */
+	protected String publicKeyPem;
+	
+	/**
+	 * When this actor was last changed through a setter, in epoch milliseconds, or 0 if never. Saved
+	 * and loaded with the rest of the profile, so that cached copies of this actor's document can
+	 * tell they're stale.
+	 */
+	protected volatile long updated;
+	
+	public String getId() {
+		return id;
+	}
+	
+	public String getPreferredUsername() {
+		return preferredUsername;
+	}
+	
+	public void setPreferredUsername(String preferredUsername) {
+		this.preferredUsername = preferredUsername;
+		changed();
+	}
+	
+	public List<String> getUsernames() {
+		return usernames;
+	}
+	
+	public void setUsernames(List<String> usernames) {
+		this.usernames = usernames;
+		changed();
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public void setName(String name) {
+		this.name = name;
+		changed();
+	}
+	
+	public String getBio() {
+		return bio;
+	}
+	
+	public void setBio(String bio) {
+		this.bio = bio;
+		changed();
+	}
+	
+	public String getPublicKeyPem() {
+		return publicKeyPem;
+	}
+	
+	public void setPublicKeyPem(String publicKeyPem) {
+		this.publicKeyPem = publicKeyPem;
+		changed();
+	}
+	
+	public String getOutbox() {
+		return OrderedCollections.collectionId(id, CollectionStore.Kind.OUTBOX);
+	}
+	
+	public String getFollowers() {
+		return OrderedCollections.collectionId(id, CollectionStore.Kind.FOLLOWERS);
+	}
+	
+	public String getFollowing() {
+		return OrderedCollections.collectionId(id, CollectionStore.Kind.FOLLOWING);
+	}
+	
+	/**
+	 * @return the id this actor's public key is published under, and signatures name it by
+	 */
+	public String getKeyId() {
+		return id + "#main-key";
+	}
+	
+	/**
+	 * @return when this Person was last changed, in epoch milliseconds, as loaded with it and moved
+	 * 		forward by every change made through its setters; 0 if it never has been. No two changes
+	 * 		made in this process get the same one.
+	 * @see ActorDocumentCache
+	 */
+	public long getRevision() {
+		return updated;
+	}
+	
+	private void changed() {
+		updated = LAST_UPDATED.accumulateAndGet(System.currentTimeMillis(), (last, now) -> Math.max(last + 1, now));
+	}
+	
+	private static long parseUpdated(String value) {
+		if (value == null) return 0;
+		try {
+			return Instant.parse(value).toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return 0;
+		}
+	}
 	
 	@Serializer
 	public JsonObject toJson() {
@@ -35,21 +156,30 @@ public JsonObject toJson() {
 		result.put("id", JsonPrimitive.of(id));
 		result.put("type", JsonPrimitive.of("Person"));
 		
-		//These are URLs that depend on the base server installation
-		//result.put("following", JsonPrimitive.of("TODO"));
-		//result.put("followers", JsonPrimitive.of("TODO"));
+		result.put("following", JsonPrimitive.of(getFollowing()));
+		result.put("followers", JsonPrimitive.of(getFollowers()));
+		//This is a URL that depends on the base server installation
 		//result.put("inbox",     JsonPrimitive.of("TODO"));
-		//result.put("outbox",    JsonPrimitive.of("TODO"));
+		result.put("outbox",    JsonPrimitive.of(getOutbox()));
 		
 		result.put("preferredUsername", JsonPrimitive.of(preferredUsername));
 		result.put("name",    JsonPrimitive.of(name));
 		result.put("summary", JsonPrimitive.of(bio));
 		result.put("url",     JsonPrimitive.of(id));
+		if (updated > 0) result.put("updated", JsonPrimitive.of(Instant.ofEpochMilli(updated).toString()));
 		
 		JsonArray attachments = new JsonArray();
 		result.put("attachment", attachments);
 		//TODO: stuff human-readable fields/properties into `attachments`
 		
+		if (publicKeyPem != null) {
+			JsonObject publicKey = new JsonObject();
+			publicKey.put("id", JsonPrimitive.of(getKeyId()));
+			publicKey.put("owner", JsonPrimitive.of(id));
+			publicKey.put("publicKeyPem", JsonPrimitive.of(publicKeyPem));
+			result.put("publicKey", publicKey);
+		}
+		
 		JsonObject endpoints = new JsonObject();
 		endpoints.put("sharedInbox", JsonPrimitive.of("TODO"));
 		result.put("endpoints", endpoints);
@@ -62,4 +192,24 @@ public JsonObject toJson() {
 		
 		return result;
 	}
+	
+	/**
+	 * Write the members {@link #toJson()} produces to the writer. The caller opens and closes the
+	 * object, so that it can add members of its own, such as {@code @context}. Serving the same actor
+	 * over and over should go through an {@link ActorDocumentCache} instead.
+	 */
+	public void writeTo(JsonWriter writer) {
+		for (Map.Entry<String, JsonElement> entry : toJson().entrySet()) {
+			writer.key(entry.getKey()).value(entry.getValue());
+		}
+	}
+	
+	/** Just the part of a {@code publicKey} object that's kept. */
+	private static final class KeyHolder {
+		private static final JsonBinder<KeyHolder> BINDER = JsonBinder.builder(KeyHolder::new)
+				.string("publicKeyPem", (k, v) -> k.publicKeyPem = v)
+				.build();
+		
+		private String publicKeyPem;
+	}
 }
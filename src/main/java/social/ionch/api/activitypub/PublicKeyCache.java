@@ -0,0 +1,366 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import social.ionch.api.FlatJsonArray;
+import social.ionch.api.FlatJsonObject;
+import social.ionch.api.JsonLimits;
+import social.ionch.api.Nojankson;
+
+/**
+ * Remote actors' public keys by key id, so that checking a signature doesn't mean fetching the
+ * sender's actor document every time.
+ * <p>
+ * Keys are kept for {@link Builder#ttl a while} after being fetched. Key ids that couldn't be
+ * fetched are remembered too, for a {@link Builder#negativeTtl shorter while}, so that a flood of
+ * requests signed with a dead key doesn't turn into a flood of requests of our own. When several
+ * threads ask for the same key that isn't cached, only one fetch is made, and they all wait on it.
+ * A key that seems to have been rotated can be {@link #refetch refetched} before its time is up,
+ * but only once per {@link Builder#minRefetchInterval interval}.
+ * <p>
+ * Thread-safe.
+ */
+public final class PublicKeyCache {
+	private static final Logger log = LoggerFactory.getLogger(PublicKeyCache.class);
+
+	/**
+	 * Fetches a key that isn't cached. Runs on the cache's fetch executor, so it may block.
+	 */
+	public interface KeyFetcher {
+		/**
+		 * @return the key, or null if it doesn't exist
+		 * @throws Exception if the key couldn't be fetched; treated the same as it not existing
+		 */
+		@Nullable PublicKey fetch(String keyId) throws Exception;
+
+		/**
+		 * Fetch a key again, skipping anything the fetcher itself has cached, since the key it
+		 * gave before seems to be out of date. Defaults to {@link #fetch(String)}.
+		 * @return the key, or null if it doesn't exist
+		 * @throws Exception if the key couldn't be fetched
+		 */
+		default @Nullable PublicKey refetch(String keyId) throws Exception {
+			return fetch(keyId);
+		}
+	}
+
+	private final KeyFetcher fetcher;
+	private final Executor fetchExecutor;
+	/** The fetch threads, if the cache started its own rather than being given an executor */
+	private final @Nullable ExecutorService ownExecutor;
+	private final Cache<String, CompletableFuture<Optional<PublicKey>>> keys;
+	private final ConcurrentMap<String, CompletableFuture<Optional<PublicKey>>> keyMap;
+	private final Cache<String, Boolean> missing;
+	/** The latest fetch of each key, kept for the minimum refetch interval */
+	private final ConcurrentMap<String, CompletableFuture<Optional<PublicKey>>> recentFetches;
+
+	private final LongAdder fetches = new LongAdder();
+	private final LongAdder fetchFailures = new LongAdder();
+
+	private PublicKeyCache(Builder builder) {
+		this.fetcher = builder.fetcher;
+		this.ownExecutor = builder.fetchExecutor != null ? null : Executors.newFixedThreadPool(4, new ThreadFactoryBuilder()
+				.setNameFormat("key-fetch-%d")
+				.setDaemon(true)
+				.build());
+		this.fetchExecutor = ownExecutor != null ? ownExecutor : builder.fetchExecutor;
+		this.keys = CacheBuilder.newBuilder()
+				.maximumSize(builder.maximumSize)
+				.expireAfterWrite(builder.ttlMillis, TimeUnit.MILLISECONDS)
+				.recordStats()
+				.build();
+		this.keyMap = keys.asMap();
+		this.missing = CacheBuilder.newBuilder()
+				.maximumSize(builder.maximumSize)
+				.expireAfterWrite(builder.negativeTtlMillis, TimeUnit.MILLISECONDS)
+				.build();
+		this.recentFetches = CacheBuilder.newBuilder()
+				.maximumSize(builder.maximumSize)
+				.expireAfterWrite(builder.minRefetchIntervalMillis, TimeUnit.MILLISECONDS)
+				.<String, CompletableFuture<Optional<PublicKey>>>build()
+				.asMap();
+	}
+
+	public static Builder builder(KeyFetcher fetcher) {
+		return new Builder(fetcher);
+	}
+
+	/**
+	 * Stop the fetch threads the cache started for itself, if it wasn't given an executor.
+	 * Fetches already queued are finished first.
+	 */
+	public void shutdown() {
+		if (ownExecutor != null) ownExecutor.shutdown();
+	}
+
+	/**
+	 * Look up a key, fetching it if it isn't cached.
+	 * @return a future for the key, or for empty if it doesn't exist or couldn't be fetched
+	 */
+	public CompletableFuture<Optional<PublicKey>> get(String keyId) {
+		CompletableFuture<Optional<PublicKey>> existing = keys.getIfPresent(keyId);
+		if (existing != null) return existing;
+		if (missing.getIfPresent(keyId) != null) return CompletableFuture.completedFuture(Optional.empty());
+		
+		CompletableFuture<Optional<PublicKey>> created = new CompletableFuture<>();
+		existing = keyMap.putIfAbsent(keyId, created);
+		if (existing != null) return existing;
+		recentFetches.put(keyId, created);
+		
+		fetches.increment();
+		try {
+			fetchExecutor.execute(() -> {
+				PublicKey key = null;
+				try {
+					key = fetcher.fetch(keyId);
+				} catch (Exception e) {
+					fetchFailures.increment();
+					log.debug("Failed to fetch key {}", keyId, e);
+				}
+				if (key == null) {
+					missing.put(keyId, Boolean.TRUE);
+					keyMap.remove(keyId, created);
+				}
+				created.complete(Optional.ofNullable(key));
+			});
+		} catch (RejectedExecutionException e) {
+			keyMap.remove(keyId, created);
+			created.complete(Optional.empty());
+		}
+		return created;
+	}
+
+	/**
+	 * Fetch a key again before its time is up, such as because a signature didn't match it and
+	 * the key may have been rotated. If the key was fetched within the
+	 * {@link Builder#minRefetchInterval minimum interval}, the result of that fetch is returned
+	 * instead, so that requests signed with a bad signature can't make us fetch over and over. The
+	 * cached key is kept if the fetch fails, and only replaced once it succeeds.
+	 * @return a future for the key, or for empty if it doesn't exist or couldn't be fetched
+	 */
+	public CompletableFuture<Optional<PublicKey>> refetch(String keyId) {
+		CompletableFuture<Optional<PublicKey>> created = new CompletableFuture<>();
+		CompletableFuture<Optional<PublicKey>> existing = recentFetches.putIfAbsent(keyId, created);
+		if (existing != null) return existing;
+		
+		fetches.increment();
+		try {
+			fetchExecutor.execute(() -> {
+				PublicKey key = null;
+				try {
+					key = fetcher.refetch(keyId);
+					if (key == null) {
+						invalidate(keyId);
+						missing.put(keyId, Boolean.TRUE);
+					} else {
+						put(keyId, key);
+					}
+				} catch (Exception e) {
+					fetchFailures.increment();
+					log.debug("Failed to refetch key {}", keyId, e);
+				}
+				created.complete(Optional.ofNullable(key));
+			});
+		} catch (RejectedExecutionException e) {
+			recentFetches.remove(keyId, created);
+			created.complete(Optional.empty());
+		}
+		return created;
+	}
+
+	/**
+	 * @return the key if it's cached and has been fetched, without fetching it
+	 */
+	public @Nullable PublicKey getIfPresent(String keyId) {
+		CompletableFuture<Optional<PublicKey>> future = keyMap.get(keyId);
+		if (future == null || !future.isDone()) return null;
+		return future.getNow(Optional.empty()).orElse(null);
+	}
+
+	/**
+	 * Cache a key that's known some other way, such as from an {@code Update} of its actor.
+	 */
+	public void put(String keyId, PublicKey key) {
+		missing.invalidate(keyId);
+		keys.put(keyId, CompletableFuture.completedFuture(Optional.of(key)));
+	}
+
+	/**
+	 * Forget a key, whether or not it could be fetched, so that the next lookup fetches it again.
+	 */
+	public void invalidate(String keyId) {
+		keys.invalidate(keyId);
+		missing.invalidate(keyId);
+	}
+
+	public long size() {
+		return keys.size();
+	}
+
+	/**
+	 * @return hit and miss counts for keys that could be fetched
+	 */
+	public CacheStats stats() {
+		return keys.stats();
+	}
+
+	/**
+	 * @return how many keys have been fetched, successfully or not
+	 */
+	public long getFetchCount() {
+		return fetches.sum();
+	}
+
+	/**
+	 * @return how many fetches failed with an exception
+	 */
+	public long getFetchFailureCount() {
+		return fetchFailures.sum();
+	}
+
+	/**
+	 * A fetcher that asks for the document the key id points at, and finds the key in the actor's
+	 * {@code publicKey}, or takes the document itself as the key.
+	 */
+	public static KeyFetcher httpFetcher(HttpClient client, Duration timeout) {
+		Nojankson jankson = Nojankson.builder().limits(JsonLimits.FEDERATION).build();
+		return keyId -> {
+			URI uri = URI.create(keyId);
+			URI document = new URI(uri.getScheme(), uri.getSchemeSpecificPart(), null);
+			HttpRequest request = HttpRequest.newBuilder(document)
+					.timeout(timeout)
+					.header("Accept", "application/activity+json, application/ld+json")
+					.GET()
+					.build();
+			HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+			try (InputStream in = response.body()) {
+				if (response.statusCode() != 200) return null;
+				String pem = findPem(jankson.loadFlat(in), keyId);
+				return pem == null ? null : HttpSignature.parsePublicKeyPem(pem);
+			}
+		};
+	}
+
+	private static @Nullable String findPem(FlatJsonObject doc, String keyId) {
+		if (keyId.equals(doc.getString("id")) && doc.getString("publicKeyPem") != null) {
+			return doc.getString("publicKeyPem");
+		}
+		FlatJsonObject key = doc.getObject("publicKey");
+		if (key != null) {
+			return keyId.equals(key.getString("id")) ? key.getString("publicKeyPem") : null;
+		}
+		FlatJsonArray array = doc.getArray("publicKey");
+		if (array != null) {
+			for (int i = 0; i < array.size(); i++) {
+				key = array.getObject(i);
+				if (key != null && keyId.equals(key.getString("id"))) return key.getString("publicKeyPem");
+			}
+		}
+		return null;
+	}
+
+	public static final class Builder {
+		private final KeyFetcher fetcher;
+		private @Nullable Executor fetchExecutor;
+		private long maximumSize = 10_000;
+		private long ttlMillis = TimeUnit.HOURS.toMillis(24);
+		private long negativeTtlMillis = TimeUnit.MINUTES.toMillis(10);
+		private long minRefetchIntervalMillis = TimeUnit.MINUTES.toMillis(1);
+
+		private Builder(KeyFetcher fetcher) {
+			this.fetcher = fetcher;
+		}
+
+		/**
+		 * Where to run fetches. Defaults to a pool of four daemon threads.
+		 */
+		public Builder fetchExecutor(Executor fetchExecutor) {
+			this.fetchExecutor = fetchExecutor;
+			return this;
+		}
+
+		/**
+		 * How many keys to keep. Defaults to 10000.
+		 */
+		public Builder maximumSize(long maximumSize) {
+			if (maximumSize < 0) throw new IllegalArgumentException("maximumSize must not be negative");
+			this.maximumSize = maximumSize;
+			return this;
+		}
+
+		/**
+		 * How long to keep a key before fetching it again, in case it's been rotated. Defaults to a
+		 * day.
+		 */
+		public Builder ttl(long ttl, TimeUnit unit) {
+			if (ttl < 0) throw new IllegalArgumentException("ttl must not be negative");
+			this.ttlMillis = unit.toMillis(ttl);
+			return this;
+		}
+
+		/**
+		 * How long to remember that a key couldn't be fetched. Defaults to 10 minutes.
+		 */
+		public Builder negativeTtl(long ttl, TimeUnit unit) {
+			if (ttl < 0) throw new IllegalArgumentException("ttl must not be negative");
+			this.negativeTtlMillis = unit.toMillis(ttl);
+			return this;
+		}
+
+		/**
+		 * How long after a key is fetched it may be {@link PublicKeyCache#refetch refetched}.
+		 * Defaults to a minute.
+		 */
+		public Builder minRefetchInterval(long interval, TimeUnit unit) {
+			if (interval < 0) throw new IllegalArgumentException("interval must not be negative");
+			this.minRefetchIntervalMillis = unit.toMillis(interval);
+			return this;
+		}
+
+		public PublicKeyCache build() {
+			return new PublicKeyCache(this);
+		}
+	}
+
+}
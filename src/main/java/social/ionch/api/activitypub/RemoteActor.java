@@ -0,0 +1,166 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.net.URI;
+
+import javax.annotation.Nullable;
+
+import blue.endless.jankson.api.SyntaxError;
+import social.ionch.api.FlatJsonArray;
+import social.ionch.api.FlatJsonObject;
+import social.ionch.api.JsonLimits;
+import social.ionch.api.Nojankson;
+
+/**
+ * An actor on another server, as their server last described them. Immutable.
+ * 
+ * @see RemoteActorCache
+ */
+public final class RemoteActor {
+	private static final Nojankson JANKSON = Nojankson.builder().limits(JsonLimits.FEDERATION).build();
+
+	private final String id;
+	private final FlatJsonObject document;
+	private final byte[] raw;
+	private final long fetchedMillis;
+
+	private RemoteActor(String id, FlatJsonObject document, byte[] raw, long fetchedMillis) {
+		this.id = id;
+		this.document = document;
+		this.raw = raw;
+		this.fetchedMillis = fetchedMillis;
+	}
+
+	/**
+	 * @param raw the actor document as fetched; not copied, so don't modify it afterwards
+	 * @throws SyntaxError if the document isn't JSON, or isn't an object
+	 * @throws IllegalArgumentException if the document doesn't say it's the expected actor, since
+	 * 		a server has no business describing actors on another one
+	 */
+	public static RemoteActor parse(String expectedId, byte[] raw, long fetchedMillis) throws SyntaxError {
+		FlatJsonObject document = JANKSON.loadFlat(raw);
+		String id = document.getString("id");
+		if (!expectedId.equals(id)) throw new IllegalArgumentException("Expected actor "+expectedId+", got "+id);
+		return new RemoteActor(id, document, raw, fetchedMillis);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the actor's type, such as {@code Person} or {@code Service}
+	 */
+	public @Nullable String getType() {
+		return document.getString("type");
+	}
+
+	public @Nullable String getPreferredUsername() {
+		return document.getString("preferredUsername");
+	}
+
+	public @Nullable String getName() {
+		return document.getString("name");
+	}
+
+	public @Nullable String getInbox() {
+		return document.getString("inbox");
+	}
+
+	public @Nullable String getSharedInbox() {
+		FlatJsonObject endpoints = document.getObject("endpoints");
+		return endpoints == null ? null : endpoints.getString("sharedInbox");
+	}
+
+	public @Nullable String getOutbox() {
+		return document.getString("outbox");
+	}
+
+	public @Nullable String getFollowers() {
+		return document.getString("followers");
+	}
+
+	public @Nullable String getFollowing() {
+		return document.getString("following");
+	}
+
+	/**
+	 * @return where to deliver to this actor, or null if they have no usable inbox
+	 */
+	public @Nullable InboxEndpoints getInboxEndpoints() {
+		URI inbox = toUri(getInbox());
+		if (inbox == null) return null;
+		return new InboxEndpoints(inbox, toUri(getSharedInbox()));
+	}
+
+	private static @Nullable URI toUri(@Nullable String s) {
+		if (s == null) return null;
+		try {
+			URI uri = URI.create(s);
+			return "https".equals(uri.getScheme()) || "http".equals(uri.getScheme()) ? uri : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the PEM-encoded public key with the given id, or null if this actor doesn't publish
+	 * 		one by that id
+	 */
+	public @Nullable String getPublicKeyPem(String keyId) {
+		FlatJsonObject key = document.getObject("publicKey");
+		if (key != null) {
+			return keyId.equals(key.getString("id")) ? key.getString("publicKeyPem") : null;
+		}
+		FlatJsonArray keys = document.getArray("publicKey");
+		if (keys != null) {
+			for (int i = 0; i < keys.size(); i++) {
+				key = keys.getObject(i);
+				if (key != null && keyId.equals(key.getString("id"))) return key.getString("publicKeyPem");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the whole actor document
+	 */
+	public FlatJsonObject getDocument() {
+		return document;
+	}
+
+	/**
+	 * @return the actor document as fetched; not copied, so don't modify it
+	 */
+	public byte[] getRaw() {
+		return raw;
+	}
+
+	/**
+	 * @return when the document was fetched, in milliseconds since the epoch
+	 */
+	public long getFetchedMillis() {
+		return fetchedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "RemoteActor["+id+"]";
+	}
+
+}
@@ -0,0 +1,369 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import blue.endless.jankson.api.SyntaxError;
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Remote actors by id, so that every mention, follow and delivery doesn't mean fetching the
+ * actor's document again.
+ * <p>
+ * The cache is bounded by the total size of the documents it holds, and evicts the least recently
+ * used first. Actors are {@link Builder#refreshAfter refreshed} in the background once they've been
+ * held for a while, and the old document is served until the new one arrives, or kept if it can't
+ * be fetched. Actors held for {@link Builder#expireAfter much longer} without a successful refresh
+ * are dropped. Actors whose server says they're gone are remembered as gone, and refreshed like
+ * any other. When several threads ask for the same actor that isn't cached, only one fetch is
+ * made, and they all wait on it.
+ * <p>
+ * Documents are saved to an {@link ActorStore} as they're fetched, and a miss looks there before
+ * going to the network, so a restart doesn't mean refetching everyone.
+ * <p>
+ * Thread-safe.
+ */
+public final class RemoteActorCache implements DeliveryScheduler.RecipientResolver {
+	private static final Logger log = LoggerFactory.getLogger(RemoteActorCache.class);
+
+	/**
+	 * Fetches an actor document that isn't cached.
+	 */
+	public interface ActorFetcher {
+		/**
+		 * @return the actor document, or null if the actor doesn't exist or is gone
+		 * @throws IOException if the actor couldn't be fetched for any other reason
+		 */
+		@Nullable byte[] fetch(String id) throws IOException, InterruptedException;
+	}
+
+	private final ActorFetcher fetcher;
+	private final ActorStore store;
+	private final long refreshAfterMillis;
+	private final long expireAfterMillis;
+	private final LoadingCache<String, Optional<RemoteActor>> actors;
+	/** The refresh threads, if the cache started its own rather than being given an executor */
+	private final @Nullable ExecutorService ownExecutor;
+
+	private RemoteActorCache(Builder builder) {
+		this.fetcher = builder.fetcher;
+		this.store = builder.store;
+		this.refreshAfterMillis = builder.refreshAfterMillis;
+		this.expireAfterMillis = builder.expireAfterMillis;
+		this.ownExecutor = builder.executor != null ? null : Executors.newFixedThreadPool(4, new ThreadFactoryBuilder()
+				.setNameFormat("actor-refresh-%d")
+				.setDaemon(true)
+				.build());
+		Executor executor = ownExecutor != null ? ownExecutor : builder.executor;
+		this.actors = CacheBuilder.newBuilder()
+				.maximumWeight(builder.maximumWeight)
+				// Gone actors still cost an entry
+				.<String, Optional<RemoteActor>>weigher((id, actor) -> id.length() + actor.map(a -> a.getRaw().length).orElse(0))
+				.refreshAfterWrite(refreshAfterMillis, TimeUnit.MILLISECONDS)
+				.expireAfterWrite(expireAfterMillis, TimeUnit.MILLISECONDS)
+				.recordStats()
+				.build(CacheLoader.asyncReloading(new CacheLoader<String, Optional<RemoteActor>>() {
+					@Override
+					public Optional<RemoteActor> load(String id) throws Exception {
+						return RemoteActorCache.this.load(id);
+					}
+					// Refreshes always go to the network; the store is no newer than what's cached
+					@Override
+					public ListenableFuture<Optional<RemoteActor>> reload(String id, Optional<RemoteActor> old) throws Exception {
+						return Futures.immediateFuture(fetch(id));
+					}
+				}, executor));
+	}
+
+	public static Builder builder(ActorFetcher fetcher) {
+		return new Builder(fetcher);
+	}
+
+	/**
+	 * Stop the refresh threads the cache started for itself, if it wasn't given an executor.
+	 * Refreshes already queued are finished first; lookups after this that need a refresh fail.
+	 */
+	public void shutdown() {
+		if (ownExecutor != null) ownExecutor.shutdown();
+	}
+
+	private Optional<RemoteActor> load(String id) throws IOException, InterruptedException, SyntaxError {
+		ActorStore.Stored stored = null;
+		try {
+			stored = store.load(id);
+		} catch (DatabaseException e) {
+			log.warn("Failed to load stored actor {}", id, e);
+		}
+		long age = stored == null ? Long.MAX_VALUE : System.currentTimeMillis() - stored.getFetchedMillis();
+		if (age < refreshAfterMillis) {
+			Optional<RemoteActor> actor = fromStore(id, stored);
+			if (actor != null) return actor;
+		}
+		try {
+			return fetch(id);
+		} catch (IOException e) {
+			// Better stale than nothing, while the actor's server is down
+			Optional<RemoteActor> actor = age < expireAfterMillis ? fromStore(id, stored) : null;
+			if (actor != null) return actor;
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the stored actor, or null if what's stored can't be used
+	 */
+	private static @Nullable Optional<RemoteActor> fromStore(String id, ActorStore.Stored stored) {
+		byte[] doc = stored.getDocument();
+		if (doc == null) return Optional.empty();
+		try {
+			return Optional.of(RemoteActor.parse(id, doc, stored.getFetchedMillis()));
+		} catch (SyntaxError | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private Optional<RemoteActor> fetch(String id) throws IOException, InterruptedException, SyntaxError {
+		byte[] doc = fetcher.fetch(id);
+		long now = System.currentTimeMillis();
+		RemoteActor actor = doc == null ? null : RemoteActor.parse(id, doc, now);
+		try {
+			store.save(id, doc, now);
+		} catch (DatabaseException e) {
+			log.warn("Failed to store actor {}", id, e);
+		}
+		return Optional.ofNullable(actor);
+	}
+
+	/**
+	 * Look up an actor, fetching it if it isn't cached. May block for as long as the fetch takes.
+	 * @return the actor, or null if they don't exist or are gone
+	 * @throws IOException if the actor isn't cached, and couldn't be fetched
+	 */
+	public @Nullable RemoteActor get(String id) throws IOException {
+		try {
+			return actors.get(id).orElse(null);
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new IOException("Failed to fetch actor "+id, cause);
+		}
+	}
+
+	/**
+	 * @return the actor if they're cached, without fetching them; null if they aren't, or are gone
+	 */
+	public @Nullable RemoteActor getIfPresent(String id) {
+		Optional<RemoteActor> actor = actors.getIfPresent(id);
+		return actor == null ? null : actor.orElse(null);
+	}
+
+	/**
+	 * Cache an actor that was received some other way, such as in an {@code Update}.
+	 */
+	public void put(RemoteActor actor) {
+		actors.put(actor.getId(), Optional.of(actor));
+		try {
+			store.save(actor.getId(), actor.getRaw(), actor.getFetchedMillis());
+		} catch (DatabaseException e) {
+			log.warn("Failed to store actor {}", actor.getId(), e);
+		}
+	}
+
+	/**
+	 * Forget an actor, such as after their {@code Delete}.
+	 */
+	public void invalidate(String id) {
+		actors.invalidate(id);
+		try {
+			store.remove(id);
+		} catch (DatabaseException e) {
+			log.warn("Failed to remove stored actor {}", id, e);
+		}
+	}
+
+	/**
+	 * Find where to deliver to an actor, fetching them if needed.
+	 */
+	@Override
+	public @Nullable InboxEndpoints resolve(String actorId) {
+		try {
+			RemoteActor actor = get(actorId);
+			return actor == null ? null : actor.getInboxEndpoints();
+		} catch (IOException e) {
+			log.debug("Can't resolve {} for delivery", actorId, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return a key fetcher for a {@link PublicKeyCache} that finds keys in the actors they
+	 * 		belong to, going through this cache, so that checking a signature from an actor that's
+	 * 		already cached fetches nothing
+	 */
+	public PublicKeyCache.KeyFetcher keyFetcher() {
+		return new PublicKeyCache.KeyFetcher() {
+			@Override
+			public @Nullable PublicKey fetch(String keyId) throws Exception {
+				RemoteActor actor = get(ownerOf(keyId));
+				String pem = actor == null ? null : actor.getPublicKeyPem(keyId);
+				if (pem == null && actor != null && actor.getFetchedMillis() < System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1)) {
+					// The key may have been rotated since we last saw the actor
+					return refetch(keyId);
+				}
+				return pem == null ? null : HttpSignature.parsePublicKeyPem(pem);
+			}
+			
+			// The cached actor has the old key, so go to the network
+			@Override
+			public @Nullable PublicKey refetch(String keyId) throws Exception {
+				String owner = ownerOf(keyId);
+				Optional<RemoteActor> fresh = RemoteActorCache.this.fetch(owner);
+				actors.put(owner, fresh);
+				String pem = fresh.map(a -> a.getPublicKeyPem(keyId)).orElse(null);
+				return pem == null ? null : HttpSignature.parsePublicKeyPem(pem);
+			}
+		};
+	}
+	
+	private static String ownerOf(String keyId) {
+		int hash = keyId.indexOf('#');
+		return hash < 0 ? keyId : keyId.substring(0, hash);
+	}
+
+	public long size() {
+		return actors.size();
+	}
+
+	public CacheStats stats() {
+		return actors.stats();
+	}
+
+	/**
+	 * A fetcher that asks for the actor's document over HTTP. 404 and 410 count as the actor not
+	 * existing; anything else that isn't a 200 is an error.
+	 * @param maxLength the largest document to accept
+	 */
+	public static ActorFetcher httpFetcher(HttpClient client, Duration timeout, int maxLength) {
+		return id -> {
+			HttpRequest request = HttpRequest.newBuilder(URI.create(id))
+					.timeout(timeout)
+					.header("Accept", "application/activity+json, application/ld+json")
+					.GET()
+					.build();
+			HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+			try (InputStream in = response.body()) {
+				int status = response.statusCode();
+				if (status == 404 || status == 410) return null;
+				if (status != 200) throw new IOException("Got "+status+" fetching "+id);
+				byte[] doc = ByteStreams.toByteArray(ByteStreams.limit(in, maxLength + 1L));
+				if (doc.length > maxLength) throw new IOException("Actor document for "+id+" is too large");
+				return doc;
+			}
+		};
+	}
+
+	public static final class Builder {
+		private final ActorFetcher fetcher;
+		private ActorStore store = ActorStore.NONE;
+		private @Nullable Executor executor;
+		private long maximumWeight = 64L * 1024 * 1024;
+		private long refreshAfterMillis = TimeUnit.HOURS.toMillis(12);
+		private long expireAfterMillis = TimeUnit.DAYS.toMillis(7);
+
+		private Builder(ActorFetcher fetcher) {
+			this.fetcher = fetcher;
+		}
+
+		/**
+		 * Where to save fetched actors for next time. Defaults to {@link ActorStore#NONE}.
+		 */
+		public Builder store(ActorStore store) {
+			this.store = store;
+			return this;
+		}
+
+		/**
+		 * Where to run background refreshes. Defaults to a pool of four daemon threads.
+		 */
+		public Builder executor(Executor executor) {
+			this.executor = executor;
+			return this;
+		}
+
+		/**
+		 * Roughly how many bytes of actor documents to hold. Defaults to 64 MiB.
+		 */
+		public Builder maximumWeight(long maximumWeight) {
+			if (maximumWeight < 0) throw new IllegalArgumentException("maximumWeight must not be negative");
+			this.maximumWeight = maximumWeight;
+			return this;
+		}
+
+		/**
+		 * How long an actor is served before being refreshed in the background. Defaults to 12
+		 * hours.
+		 */
+		public Builder refreshAfter(long duration, TimeUnit unit) {
+			if (duration <= 0) throw new IllegalArgumentException("duration must be positive");
+			this.refreshAfterMillis = unit.toMillis(duration);
+			return this;
+		}
+
+		/**
+		 * How long an actor is held at most, if refreshing them keeps failing. Defaults to 7 days.
+		 */
+		public Builder expireAfter(long duration, TimeUnit unit) {
+			if (duration <= 0) throw new IllegalArgumentException("duration must be positive");
+			this.expireAfterMillis = unit.toMillis(duration);
+			return this;
+		}
+
+		public RemoteActorCache build() {
+			return new RemoteActorCache(this);
+		}
+	}
+
+}
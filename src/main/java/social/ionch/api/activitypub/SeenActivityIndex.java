@@ -0,0 +1,306 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Remembers which activity ids have already arrived, so that the copies relays and other shared
+ * inboxes send of the same activity can be acknowledged and dropped before they're processed.
+ * <p>
+ * An id is remembered together with the inbox it arrived at, since a sender delivering to several
+ * local actors' personal inboxes sends each of them a copy with the same id, and each has to be
+ * kept for its own recipient. Copies sent to the shared inbox have no recipient.
+ * <p>
+ * Ids are checked first against an exact set of the most recent ones, which catches the usual
+ * burst of copies arriving close together without any further work. Ids not in it are checked
+ * against three generations of Bloom filters covering the last {@link Builder#window window}. A
+ * miss there means the id is definitely new. A hit may be a false positive, so it's confirmed
+ * against the {@link SeenActivityStore} before the activity is dropped. Every half window, the
+ * oldest filter is dropped and a new one started, so the filters always cover at least the whole
+ * window, and at most one and a half; ids older than that are forgotten, and processed again if
+ * they come back. A filter that fills up is rotated early, which shortens what's covered.
+ * <p>
+ * Each rotation also prunes the store of ids older than the window, on a background thread, so
+ * that the request that happens to rotate the filters doesn't wait on it.
+ * <p>
+ * Ids are hashed to 128 bits, which is what the filters and the store hold.
+ * <p>
+ * Thread-safe.
+ */
+public final class SeenActivityIndex {
+	private static final Logger log = LoggerFactory.getLogger(SeenActivityIndex.class);
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final SeenActivityStore store;
+	private final int expectedInsertions;
+	private final double falsePositiveRate;
+	private final long windowMillis;
+	private final ConcurrentMap<String, Boolean> recent;
+	private final Executor pruneExecutor;
+
+	/** Guarded by this. */
+	private BloomFilter<byte[]> current;
+	/** Guarded by this. */
+	private BloomFilter<byte[]> previous;
+	/** Guarded by this. */
+	private BloomFilter<byte[]> oldest;
+	/** Guarded by this. */
+	private long rotatedAt;
+
+	private final LongAdder checked = new LongAdder();
+	private final LongAdder duplicates = new LongAdder();
+	private final LongAdder confirmed = new LongAdder();
+	private final LongAdder falsePositives = new LongAdder();
+
+	private SeenActivityIndex(Builder builder) {
+		this.store = builder.store;
+		this.expectedInsertions = builder.expectedInsertions;
+		this.falsePositiveRate = builder.falsePositiveRate;
+		this.windowMillis = builder.windowMillis;
+		this.recent = CacheBuilder.newBuilder()
+				.maximumSize(builder.recentSize)
+				.expireAfterWrite(windowMillis, TimeUnit.MILLISECONDS)
+				.<String, Boolean>build()
+				.asMap();
+		// The thread goes away between prunes, so an index that's dropped doesn't leave one behind
+		this.pruneExecutor = builder.pruneExecutor != null ? builder.pruneExecutor : new ThreadPoolExecutor(0, 1,
+				1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(),
+				new ThreadFactoryBuilder()
+						.setNameFormat("seen-activity-prune-%d")
+						.setDaemon(true)
+						.build());
+		this.current = newFilter();
+		this.previous = newFilter();
+		this.oldest = newFilter();
+		this.rotatedAt = System.currentTimeMillis();
+	}
+
+	public static Builder builder(SeenActivityStore store) {
+		return new Builder(store);
+	}
+
+	/**
+	 * @return the hash the index and its store know an activity id by, as received at the given
+	 * 		recipient's inbox, or at the shared inbox if null
+	 */
+	public static byte[] hash(String activityId, @Nullable String recipient) {
+		return HASH.hashString(key(activityId, recipient), Charsets.UTF_8).asBytes();
+	}
+
+	private static String key(String activityId, @Nullable String recipient) {
+		// Neither can contain a line break, so the two can't run together
+		return recipient == null ? activityId : activityId+"\n"+recipient;
+	}
+
+	private BloomFilter<byte[]> newFilter() {
+		return BloomFilter.create(Funnels.byteArrayFunnel(), expectedInsertions, falsePositiveRate);
+	}
+
+	/**
+	 * Fill the filters with what the store saw during the last window, so that a restart doesn't
+	 * let a round of copies through.
+	 */
+	public void warm() throws DatabaseException {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			store.forEachSince(now - windowMillis, current::put);
+			rotatedAt = now;
+		}
+	}
+
+	/**
+	 * Check an activity id and remember it.
+	 * @param recipient the local actor whose inbox the activity arrived at, or null for the shared
+	 * 		inbox
+	 * @return true if the id hasn't been seen before at this inbox, and the activity should be
+	 * 		processed
+	 */
+	public boolean markSeen(String activityId, @Nullable String recipient) {
+		checked.increment();
+		String key = key(activityId, recipient);
+		if (recent.putIfAbsent(key, Boolean.TRUE) != null) {
+			duplicates.increment();
+			return false;
+		}
+		byte[] hash = HASH.hashString(key, Charsets.UTF_8).asBytes();
+		boolean maybeSeen;
+		boolean rotated = false;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (now - rotatedAt >= windowMillis / 2 || current.approximateElementCount() >= expectedInsertions) {
+				oldest = previous;
+				previous = current;
+				current = newFilter();
+				rotatedAt = now;
+				rotated = true;
+			}
+			maybeSeen = current.mightContain(hash) || previous.mightContain(hash) || oldest.mightContain(hash);
+			current.put(hash);
+		}
+		if (rotated) {
+			try {
+				pruneExecutor.execute(this::prune);
+			} catch (RejectedExecutionException e) {
+				// The next rotation will get it
+			}
+		}
+		if (!maybeSeen) return true;
+		
+		confirmed.increment();
+		boolean stored;
+		try {
+			stored = store.contains(hash);
+		} catch (DatabaseException e) {
+			// Processing it twice is better than not at all
+			log.warn("Failed to check whether {} was seen", activityId, e);
+			stored = false;
+		}
+		if (stored) {
+			duplicates.increment();
+			return false;
+		}
+		falsePositives.increment();
+		return true;
+	}
+
+	/**
+	 * Forget an id that was marked seen but couldn't be processed, so that another copy of it will
+	 * be. The filters can't forget, but the store is checked before trusting them.
+	 */
+	public void forget(String activityId, @Nullable String recipient) {
+		recent.remove(key(activityId, recipient));
+	}
+
+	private void prune() {
+		try {
+			store.prune(System.currentTimeMillis() - windowMillis);
+		} catch (DatabaseException e) {
+			log.warn("Failed to prune seen activities", e);
+		}
+	}
+
+	public long getCheckedCount() {
+		return checked.sum();
+	}
+
+	public long getDuplicateCount() {
+		return duplicates.sum();
+	}
+
+	/**
+	 * @return how many ids the filters thought were seen, and had to be confirmed with the store
+	 */
+	public long getConfirmedCount() {
+		return confirmed.sum();
+	}
+
+	/**
+	 * @return how many ids the filters thought were seen, but weren't
+	 */
+	public long getFalsePositiveCount() {
+		return falsePositives.sum();
+	}
+
+	public static final class Builder {
+		private final SeenActivityStore store;
+		private int expectedInsertions = 1_000_000;
+		private double falsePositiveRate = 0.001;
+		private long recentSize = 50_000;
+		private long windowMillis = TimeUnit.HOURS.toMillis(24);
+		private @Nullable Executor pruneExecutor;
+
+		private Builder(SeenActivityStore store) {
+			this.store = store;
+		}
+
+		/**
+		 * How many ids each filter is sized for; the filters are rotated early if the newest gets
+		 * this many. Defaults to a million, which takes a little under 2 MiB per filter, of which
+		 * there are three, at the default false positive rate.
+		 */
+		public Builder expectedInsertions(int expectedInsertions) {
+			if (expectedInsertions < 1) throw new IllegalArgumentException("expectedInsertions must be positive");
+			this.expectedInsertions = expectedInsertions;
+			return this;
+		}
+
+		/**
+		 * How often a new id may be mistaken for a seen one and have to be checked with the store.
+		 * Defaults to one in a thousand.
+		 */
+		public Builder falsePositiveRate(double falsePositiveRate) {
+			if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+			this.falsePositiveRate = falsePositiveRate;
+			return this;
+		}
+
+		/**
+		 * How many of the most recent ids to keep exactly. Defaults to 50000.
+		 */
+		public Builder recentSize(long recentSize) {
+			if (recentSize < 0) throw new IllegalArgumentException("recentSize must not be negative");
+			this.recentSize = recentSize;
+			return this;
+		}
+
+		/**
+		 * How long ids are remembered for, and how long the store has to keep them. Defaults to a
+		 * day.
+		 */
+		public Builder window(long window, TimeUnit unit) {
+			if (window <= 0) throw new IllegalArgumentException("window must be positive");
+			this.windowMillis = unit.toMillis(window);
+			return this;
+		}
+
+		/**
+		 * Where to prune the store. Defaults to a single daemon thread that's only kept while
+		 * there's pruning to do.
+		 */
+		public Builder pruneExecutor(Executor pruneExecutor) {
+			this.pruneExecutor = pruneExecutor;
+			return this;
+		}
+
+		public SeenActivityIndex build() {
+			return new SeenActivityIndex(this);
+		}
+	}
+
+}
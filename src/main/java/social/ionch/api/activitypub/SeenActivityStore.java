@@ -0,0 +1,58 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.util.function.Consumer;
+
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * The lasting record behind a {@link SeenActivityIndex}: the hashes of activities that have been
+ * processed, and when. Writing to it is left to the {@link InboxProcessor}, so that an activity is
+ * only recorded as seen in the same transaction that stores it.
+ */
+public interface SeenActivityStore {
+	/**
+	 * Remembers nothing, so only the in-memory index deduplicates.
+	 */
+	SeenActivityStore NONE = new SeenActivityStore() {
+		@Override
+		public boolean contains(byte[] hash) {
+			return false;
+		}
+		@Override
+		public void forEachSince(long sinceMillis, Consumer<byte[]> action) {}
+		@Override
+		public void prune(long beforeMillis) {}
+	};
+	
+	/**
+	 * @param hash a hash from {@link SeenActivityIndex#hash(String, String)}
+	 */
+	boolean contains(byte[] hash) throws DatabaseException;
+	
+	/**
+	 * Pass every hash recorded since the given time to the action, such as to warm up an index at
+	 * startup.
+	 */
+	void forEachSince(long sinceMillis, Consumer<byte[]> action) throws DatabaseException;
+	
+	/**
+	 * Forget hashes recorded before the given time.
+	 */
+	void prune(long beforeMillis) throws DatabaseException;
+}
@@ -0,0 +1,328 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Checks the HTTP signatures on requests from remote servers, on a pool of threads of its own.
+ * <p>
+ * Everything cheap is checked on the calling thread: that the signature parses, that it covers
+ * the headers it has to, and that it isn't too old. Only requests that get that far have their key
+ * looked up in the {@link PublicKeyCache}, and are queued for the RSA check itself, which is what
+ * costs. The queue is bounded, and requests that don't fit are answered with
+ * {@link Result#OVERLOADED} rather than left to pile up. A signature that doesn't match a cached
+ * key has the key refetched and is checked again, in case the key was rotated.
+ * <p>
+ * Thread-safe.
+ */
+public final class SignatureVerifier {
+
+	public enum Result {
+		VALID,
+		/** There's no signature, or it couldn't be parsed. */
+		MALFORMED,
+		/** The signature doesn't cover all the headers it has to, or one of them is missing. */
+		INSUFFICIENT,
+		/** The signature is too old, or from too far in the future. */
+		EXPIRED,
+		/** The key couldn't be found. */
+		UNKNOWN_KEY,
+		/** The signature doesn't match. */
+		INVALID,
+		/** The verification queue is full. */
+		OVERLOADED,
+		;
+	}
+
+	/**
+	 * The outcome of checking a request.
+	 */
+	public static final class Verification {
+		private final Result result;
+		private final @Nullable HttpSignature signature;
+
+		private Verification(Result result, @Nullable HttpSignature signature) {
+			this.result = result;
+			this.signature = signature;
+		}
+
+		public Result getResult() {
+			return result;
+		}
+
+		public boolean isValid() {
+			return result == Result.VALID;
+		}
+
+		/**
+		 * @return the signature, or null if it couldn't be parsed
+		 */
+		public @Nullable HttpSignature getSignature() {
+			return signature;
+		}
+	}
+
+	private static final Verification MALFORMED = new Verification(Result.MALFORMED, null);
+
+	/** One per verification thread; getting one from the provider is slower than the check is. */
+	private static final ThreadLocal<Signature> SIGNATURES = ThreadLocal.withInitial(() -> {
+		try {
+			return Signature.getInstance(HttpSignature.JCA_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to have it
+			throw new AssertionError(e);
+		}
+	});
+
+	private final PublicKeyCache keys;
+	private final ThreadPoolExecutor executor;
+	private final ImmutableList<String> requiredHeaders;
+	private final long maxClockSkewMillis;
+
+	private final LongAdder verified = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder overloaded = new LongAdder();
+
+	private SignatureVerifier(Builder builder) {
+		this.keys = builder.keys;
+		this.requiredHeaders = builder.requiredHeaders;
+		this.maxClockSkewMillis = builder.maxClockSkewMillis;
+		this.executor = new ThreadPoolExecutor(builder.threads, builder.threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(builder.queueCapacity),
+				new ThreadFactoryBuilder()
+						.setNameFormat("signature-verify-%d")
+						.setDaemon(true)
+						.build());
+	}
+
+	public static Builder builder(PublicKeyCache keys) {
+		return new Builder(keys);
+	}
+
+	/**
+	 * Check the signature on a request.
+	 * @param method the request method, in any case
+	 * @param requestTarget the path and query of the request, as sent
+	 * @param hasBody whether the request has a body, in which case its {@code Digest} header must
+	 * 		be signed too. The caller still has to check the digest against the body.
+	 */
+	public CompletableFuture<Verification> verify(String method, String requestTarget, HttpSignature.Headers headers, boolean hasBody) {
+		String header = headers.get("signature");
+		if (header == null) {
+			header = headers.get("authorization");
+		}
+		HttpSignature signature = header == null ? null : HttpSignature.parse(header);
+		if (signature == null) return completed(MALFORMED);
+		
+		List<String> signed = signature.getHeaders();
+		if (!signed.containsAll(requiredHeaders) || (hasBody && !signed.contains("digest"))) {
+			return completed(new Verification(Result.INSUFFICIENT, signature));
+		}
+		if (!isFresh(signature, headers)) return completed(new Verification(Result.EXPIRED, signature));
+		String signingString = signature.signingString(method, requestTarget, headers);
+		if (signingString == null) return completed(new Verification(Result.INSUFFICIENT, signature));
+		byte[] data = signingString.getBytes(Charsets.UTF_8);
+		
+		CompletableFuture<Verification> result = new CompletableFuture<>();
+		keys.get(signature.getKeyId()).whenComplete((key, err) -> {
+			if (err != null || !key.isPresent()) {
+				result.complete(count(new Verification(Result.UNKNOWN_KEY, signature)));
+				return;
+			}
+			check(result, signature, key.get(), data, true);
+		});
+		return result;
+	}
+
+	/**
+	 * Queue the RSA check. A signature that doesn't match may have been made with a key that was
+	 * rotated behind the same key id since it was cached, so the first time round, a mismatch has
+	 * the key {@link PublicKeyCache#refetch refetched}, and is checked once more if it changed.
+	 */
+	private void check(CompletableFuture<Verification> result, HttpSignature signature, PublicKey key, byte[] data, boolean mayRefetch) {
+		try {
+			executor.execute(() -> {
+				Verification v = check(signature, key, data);
+				if (v.getResult() != Result.INVALID || !mayRefetch) {
+					result.complete(count(v));
+					return;
+				}
+				keys.refetch(signature.getKeyId()).whenComplete((fresh, err) -> {
+					if (err == null && fresh.isPresent() && !fresh.get().equals(key)) {
+						check(result, signature, fresh.get(), data, false);
+					} else {
+						result.complete(count(v));
+					}
+				});
+			});
+		} catch (RejectedExecutionException e) {
+			overloaded.increment();
+			result.complete(new Verification(Result.OVERLOADED, signature));
+		}
+	}
+
+	private CompletableFuture<Verification> completed(Verification v) {
+		return CompletableFuture.completedFuture(count(v));
+	}
+
+	private Verification count(Verification v) {
+		if (v.isValid()) {
+			verified.increment();
+		} else {
+			rejected.increment();
+		}
+		return v;
+	}
+
+	private boolean isFresh(HttpSignature signature, HttpSignature.Headers headers) {
+		// Only parameters the signature covers count; anyone replaying it could rewrite the others
+		List<String> signed = signature.getHeaders();
+		long now = System.currentTimeMillis();
+		if (signed.contains(HttpSignature.EXPIRES) && TimeUnit.SECONDS.toMillis(signature.getExpires()) < now) return false;
+		long signedAt;
+		if (signed.contains(HttpSignature.CREATED)) {
+			signedAt = TimeUnit.SECONDS.toMillis(signature.getCreated());
+		} else {
+			// Without a signed creation time, the signed Date header has to stand in for one
+			String date = signed.contains("date") ? headers.get("date") : null;
+			if (date == null) return false;
+			try {
+				signedAt = ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			} catch (DateTimeParseException e) {
+				return false;
+			}
+		}
+		return Math.abs(now - signedAt) <= maxClockSkewMillis;
+	}
+
+	private static Verification check(HttpSignature signature, PublicKey key, byte[] data) {
+		Signature sig = SIGNATURES.get();
+		try {
+			sig.initVerify(key);
+			sig.update(data);
+			return new Verification(sig.verify(signature.getSignature()) ? Result.VALID : Result.INVALID, signature);
+		} catch (GeneralSecurityException e) {
+			return new Verification(Result.INVALID, signature);
+		}
+	}
+
+	/**
+	 * Stop the verification threads. Checks already queued are finished first.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @return how many checks are waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public long getVerifiedCount() {
+		return verified.sum();
+	}
+
+	/**
+	 * @return how many requests failed to verify, not counting ones turned away as
+	 * 		{@link Result#OVERLOADED}
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	public long getOverloadedCount() {
+		return overloaded.sum();
+	}
+
+	public static final class Builder {
+		private final PublicKeyCache keys;
+		private int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		private int queueCapacity = 1024;
+		private ImmutableList<String> requiredHeaders = ImmutableList.of(HttpSignature.REQUEST_TARGET, "host");
+		private long maxClockSkewMillis = TimeUnit.HOURS.toMillis(12);
+
+		private Builder(PublicKeyCache keys) {
+			this.keys = keys;
+		}
+
+		/**
+		 * How many signatures may be checked at once. Defaults to the number of processors, since
+		 * checking is all CPU.
+		 */
+		public Builder threads(int threads) {
+			if (threads < 1) throw new IllegalArgumentException("threads must be positive");
+			this.threads = threads;
+			return this;
+		}
+
+		/**
+		 * How many checks may wait for a thread before more are turned away. Defaults to 1024.
+		 */
+		public Builder queueCapacity(int queueCapacity) {
+			if (queueCapacity < 1) throw new IllegalArgumentException("queueCapacity must be positive");
+			this.queueCapacity = queueCapacity;
+			return this;
+		}
+
+		/**
+		 * Headers every signature has to cover, as lower-case names. Defaults to
+		 * {@code (request-target)} and {@code host}, so that a signature can't be replayed against
+		 * another path or server.
+		 */
+		public Builder requiredHeaders(String... requiredHeaders) {
+			this.requiredHeaders = ImmutableList.copyOf(requiredHeaders);
+			return this;
+		}
+
+		/**
+		 * How far the signing time may be from now, either way. Defaults to 12 hours, since remote
+		 * servers may sit on a delivery for a while before sending it.
+		 */
+		public Builder maxClockSkew(long skew, TimeUnit unit) {
+			if (skew < 0) throw new IllegalArgumentException("skew must not be negative");
+			this.maxClockSkewMillis = unit.toMillis(skew);
+			return this;
+		}
+
+		public SignatureVerifier build() {
+			return new SignatureVerifier(this);
+		}
+	}
+
+}
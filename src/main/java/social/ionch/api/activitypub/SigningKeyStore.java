@@ -0,0 +1,56 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.security.PrivateKey;
+
+import javax.annotation.Nullable;
+
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Where local actors' private keys are kept, by the key id they're published under, so that
+ * deliveries can be signed as whoever sent them.
+ */
+public interface SigningKeyStore {
+	/**
+	 * Keeps nothing, so every signed delivery fails.
+	 */
+	SigningKeyStore NONE = new SigningKeyStore() {
+		@Override
+		public @Nullable PrivateKey load(String keyId) {
+			return null;
+		}
+		@Override
+		public void save(String keyId, PrivateKey key) {}
+		@Override
+		public void remove(String keyId) {}
+	};
+	
+	/**
+	 * @return the key, or null if there's no key with that id
+	 */
+	@Nullable PrivateKey load(String keyId) throws DatabaseException;
+	
+	/**
+	 * @param keyId the id the matching public key is published under, such as
+	 * 		{@link Person#getKeyId()}
+	 */
+	void save(String keyId, PrivateKey key) throws DatabaseException;
+	
+	void remove(String keyId) throws DatabaseException;
+}
@@ -0,0 +1,259 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Local actors' home timelines, kept in memory as the ids of their newest entries, so that reading
+ * a page of a timeline is a walk over an array instead of a query.
+ * <p>
+ * Each timeline holds up to {@link Builder#capacity} ids in a ring buffer of {@code long}s, newest
+ * pushing out oldest. New entries are pushed into the timelines of everyone they're for as they
+ * arrive. Pages that reach back past the oldest id held are finished with a query against the
+ * {@link TimelineStore}, starting from where the buffer ran out. Timelines are only loaded from the
+ * store when they're first read, so a restart costs nothing up front, and the least recently used
+ * are dropped once there are more than {@link Builder#maximumTimelines}.
+ * <p>
+ * Thread-safe.
+ */
+public final class TimelineCache {
+	private static final long[] NO_IDS = new long[0];
+
+	private final TimelineStore store;
+	private final int capacity;
+	private final Cache<String, Timeline> timelines;
+
+	private final LongAdder memoryReads = new LongAdder();
+	private final LongAdder storeReads = new LongAdder();
+
+	private TimelineCache(Builder builder) {
+		this.store = builder.store;
+		this.capacity = builder.capacity;
+		this.timelines = CacheBuilder.newBuilder()
+				.maximumSize(builder.maximumTimelines)
+				.build();
+	}
+
+	public static Builder builder(TimelineStore store) {
+		return new Builder(store);
+	}
+
+	/**
+	 * Add an entry to the timelines of the given local actors, both in the store and in memory.
+	 */
+	public void fanOut(long entryId, Collection<String> owners) throws DatabaseException {
+		if (owners.isEmpty()) return;
+		store.add(entryId, owners);
+		offer(entryId, owners);
+	}
+
+	/**
+	 * Add an entry that's already in the store to the timelines of the given local actors that are
+	 * in memory. Timelines that aren't will find it in the store when they're loaded.
+	 */
+	public void offer(long entryId, Collection<String> owners) {
+		for (String owner : owners) {
+			Timeline t = timelines.getIfPresent(owner);
+			if (t != null) t.insert(entryId);
+		}
+	}
+
+	/**
+	 * Read a page of a timeline.
+	 * @param beforeId only return ids lower than this; {@link Long#MAX_VALUE} for the newest page
+	 * @return up to {@code limit} ids, newest first. Fewer than {@code limit} means the end has
+	 * 		been reached.
+	 */
+	public long[] read(String owner, long beforeId, int limit) throws DatabaseException {
+		if (limit <= 0) return NO_IDS;
+		Timeline t;
+		try {
+			t = timelines.get(owner, Timeline::new);
+		} catch (ExecutionException e) {
+			// Constructing one can't fail
+			throw new AssertionError(e);
+		}
+		long[] out = new long[limit];
+		long cursor;
+		int n;
+		synchronized (t) {
+			if (!t.loaded) {
+				long[] ids = store.page(owner, Long.MAX_VALUE, capacity);
+				storeReads.increment();
+				for (long id : ids) {
+					t.insert(id);
+				}
+				t.complete = t.complete && ids.length < capacity;
+				t.loaded = true;
+			}
+			n = t.read(beforeId, out);
+			if (n == limit || t.complete) {
+				memoryReads.increment();
+				return n == limit ? out : Arrays.copyOf(out, n);
+			}
+			cursor = n > 0 ? out[n - 1] : t.size > 0 ? Math.min(beforeId, t.get(0)) : beforeId;
+		}
+		// Past what's in memory
+		long[] rest = store.page(owner, cursor, limit - n);
+		storeReads.increment();
+		System.arraycopy(rest, 0, out, n, rest.length);
+		n += rest.length;
+		return n == limit ? out : Arrays.copyOf(out, n);
+	}
+
+	/**
+	 * Drop a timeline from memory, such as after entries were removed from it in the store. It's
+	 * loaded again when next read.
+	 */
+	public void invalidate(String owner) {
+		timelines.invalidate(owner);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long size() {
+		return timelines.size();
+	}
+
+	/**
+	 * @return how many reads were answered from memory alone
+	 */
+	public long getMemoryReadCount() {
+		return memoryReads.sum();
+	}
+
+	/**
+	 * @return how many times the store was queried, to load a timeline or to read past its end
+	 */
+	public long getStoreReadCount() {
+		return storeReads.sum();
+	}
+
+	/**
+	 * The newest ids of one timeline, oldest first, in a ring buffer.
+	 */
+	private final class Timeline {
+		private final long[] ids = new long[capacity];
+		/** Index in {@link #ids} of the oldest id. */
+		private int start;
+		private int size;
+		/** Whether the store has nothing older than what's held. */
+		private boolean complete = true;
+		private boolean loaded;
+
+		private long get(int i) {
+			int j = start + i;
+			return ids[j < capacity ? j : j - capacity];
+		}
+
+		private void set(int i, long id) {
+			int j = start + i;
+			ids[j < capacity ? j : j - capacity] = id;
+		}
+
+		/**
+		 * @return the index of the first id that isn't lower than the given one
+		 */
+		private int lowerBound(long id) {
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (get(mid) < id) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		private synchronized void insert(long id) {
+			// Nearly always the newest, so check that before searching
+			int pos = size == 0 || get(size - 1) < id ? size : lowerBound(id);
+			if (pos < size && get(pos) == id) return;
+			if (size == capacity) {
+				complete = false;
+				if (pos == 0) return;
+				start = start + 1 == capacity ? 0 : start + 1;
+				size--;
+				pos--;
+			}
+			for (int i = size; i > pos; i--) {
+				set(i, get(i - 1));
+			}
+			set(pos, id);
+			size++;
+		}
+
+		/**
+		 * Copy ids lower than the given one into {@code out}, newest first, until it's full.
+		 * @return how many were copied
+		 */
+		private int read(long beforeId, long[] out) {
+			int n = 0;
+			for (int i = lowerBound(beforeId) - 1; i >= 0 && n < out.length; i--) {
+				out[n++] = get(i);
+			}
+			return n;
+		}
+	}
+
+	public static final class Builder {
+		private final TimelineStore store;
+		private int capacity = 800;
+		private long maximumTimelines = 10_000;
+
+		private Builder(TimelineStore store) {
+			this.store = store;
+		}
+
+		/**
+		 * How many of the newest ids to hold per timeline. Defaults to 800, which is 6.25 KiB each.
+		 */
+		public Builder capacity(int capacity) {
+			if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+			this.capacity = capacity;
+			return this;
+		}
+
+		/**
+		 * How many timelines to hold. Defaults to 10000.
+		 */
+		public Builder maximumTimelines(long maximumTimelines) {
+			if (maximumTimelines < 0) throw new IllegalArgumentException("maximumTimelines must not be negative");
+			this.maximumTimelines = maximumTimelines;
+			return this;
+		}
+
+		public TimelineCache build() {
+			return new TimelineCache(this);
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import java.util.Collection;
+
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * The lasting record behind a {@link TimelineCache}: which entries are in whose timeline. Entry
+ * ids are ordered by time, so the newest entries have the highest ids.
+ */
+public interface TimelineStore {
+	/**
+	 * Remembers nothing, so timelines only hold what's arrived since startup.
+	 */
+	TimelineStore NONE = new TimelineStore() {
+		@Override
+		public void add(long entryId, Collection<String> owners) {}
+		@Override
+		public long[] page(String owner, long beforeId, int limit) {
+			return new long[0];
+		}
+	};
+	
+	/**
+	 * Add an entry to the timelines of the given local actors, in one transaction.
+	 */
+	void add(long entryId, Collection<String> owners) throws DatabaseException;
+	
+	/**
+	 * @return up to {@code limit} ids from the owner's timeline that are lower than
+	 * 		{@code beforeId}, highest first
+	 */
+	long[] page(String owner, long beforeId, int limit) throws DatabaseException;
+}
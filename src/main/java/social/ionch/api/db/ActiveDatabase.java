@@ -0,0 +1,56 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.db;
+
+import social.ionch.SkeletonKey;
+
+/**
+ * Holds the Database the server is running on, made from the configured backend once all plugins
+ * are enabled, and before any of them are {@link social.ionch.api.plugin.Plugin#init initialized}.
+ */
+public final class ActiveDatabase {
+
+	private static volatile Database database;
+	
+	/**
+	 * @return the active Database
+	 * @throws IllegalStateException if the server hasn't connected to its database yet
+	 */
+	public static Database get() {
+		Database db = database;
+		if (db == null) throw new IllegalStateException("The database is not available yet");
+		return db;
+	}
+	
+	/**
+	 * @return {@code true} if {@link #get()} will succeed
+	 */
+	public static boolean isAvailable() {
+		return database != null;
+	}
+	
+	/**
+	 * Internal use only.
+	 */
+	public static void $$_set(SkeletonKey key, Database db) {
+		SkeletonKey.verify(key);
+		database = db;
+	}
+	
+	private ActiveDatabase() {}
+
+}
@@ -16,6 +16,9 @@
 
 package social.ionch.api.db;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+
 /**
  * Handles persistence.
  */
@@ -36,4 +39,30 @@ public interface Database {
 	 */
 	String getUri();
 	
+	/**
+	 * Run the given work in a single transaction on a pooled connection, committing if it returns
+	 * normally and rolling back if it throws. Batching related writes into one call is much
+	 * cheaper than committing each of them on its own.
+	 * @return whatever the work returned
+	 * @throws DatabaseException if the work or the commit failed; the transaction has been rolled
+	 * 		back
+	 */
+	<T> T inTransaction(Transaction<T> work) throws DatabaseException;
+	
+	/**
+	 * @return how many transactions can run at once; any more wait for a connection to be free.
+	 * 		Anything running transactions from a pool of threads should keep it smaller than this.
+	 */
+	default int getMaxConnections() {
+		return Integer.MAX_VALUE;
+	}
+	
+	@FunctionalInterface
+	interface Transaction<T> {
+		/**
+		 * @param conn a connection with auto-commit turned off. Don't commit, roll back or close it.
+		 */
+		T run(Connection conn) throws SQLException;
+	}
+	
 }
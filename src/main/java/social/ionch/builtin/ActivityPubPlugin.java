@@ -0,0 +1,332 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.builtin;
+
+import java.net.http.HttpClient;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import social.ionch.api.StandardVirtuals;
+import social.ionch.api.activitypub.Activity;
+import social.ionch.api.activitypub.ActivityType;
+import social.ionch.api.activitypub.DeliveryScheduler;
+import social.ionch.api.activitypub.HttpSigner;
+import social.ionch.api.activitypub.InboxItem;
+import social.ionch.api.activitypub.InboxPipeline;
+import social.ionch.api.activitypub.InboxProcessor;
+import social.ionch.api.activitypub.OrderedCollections;
+import social.ionch.api.activitypub.PublicKeyCache;
+import social.ionch.api.activitypub.RemoteActor;
+import social.ionch.api.activitypub.RemoteActorCache;
+import social.ionch.api.activitypub.SeenActivityIndex;
+import social.ionch.api.activitypub.SignatureVerifier;
+import social.ionch.api.activitypub.SigningKeyStore;
+import social.ionch.api.activitypub.TimelineCache;
+import social.ionch.api.db.ActiveDatabase;
+
+public class ActivityPubPlugin extends BuiltInPlugin {
+	private static final Logger log = LoggerFactory.getLogger(ActivityPubPlugin.class);
+
+	private InboxPipeline inbox;
+	private DeliveryScheduler delivery;
+	private SigningKeyStore signingKeys;
+	private SignatureVerifier signatures;
+	private PublicKeyCache keys;
+	private RemoteActorCache actors;
+	private TimelineCache timelines;
+	private OrderedCollections collections;
+	
+	public ActivityPubPlugin() {
+		id("social.ionch.builtin.activitypub");
+		name("ActivityPub Federation");
+		author("ionChannel");
+		needs(StandardVirtuals.DATABASE);
+	}
+	
+	/**
+	 * @return the pipeline inbound activities should be submitted to, or null before
+	 * 		{@link #init()}
+	 */
+	public InboxPipeline getInbox() {
+		return inbox;
+	}
+	
+	/**
+	 * @return the scheduler outbound activities should be handed to, or null before
+	 * 		{@link #init()}
+	 */
+	public DeliveryScheduler getDelivery() {
+		return delivery;
+	}
+	
+	/**
+	 * @return where local actors' private keys are kept, which outbound deliveries are signed
+	 * 		with, or null before {@link #init()}
+	 */
+	public SigningKeyStore getSigningKeys() {
+		return signingKeys;
+	}
+	
+	/**
+	 * @return the verifier inbound requests' signatures should be checked with, or null before
+	 * 		{@link #init()}
+	 */
+	public SignatureVerifier getSignatureVerifier() {
+		return signatures;
+	}
+	
+	/**
+	 * @return the cache remote actors should be looked up in, or null before {@link #init()}
+	 */
+	public RemoteActorCache getActors() {
+		return actors;
+	}
+	
+	/**
+	 * @return local actors' home timelines, or null before {@link #init()}
+	 */
+	public TimelineCache getTimelines() {
+		return timelines;
+	}
+	
+	/**
+	 * @return local actors' outboxes, followers and following, or null before {@link #init()}
+	 */
+	public OrderedCollections getCollections() {
+		return collections;
+	}
+	
+	@Override
+	public void enable() {
+		// Enabled again after a hot disable, with the database already up
+		if (ActiveDatabase.isAvailable()) start();
+	}
+	
+	@Override
+	public void hotDisable() throws UnsupportedOperationException {
+		shutdown();
+	}
+
+	@Override
+	public void init() {
+		start();
+	}
+	
+	private synchronized void start() {
+		if (inbox != null) return;
+		ActiveDatabase.get().inTransaction(conn -> {
+			try (Statement s = conn.createStatement()) {
+				s.execute("CREATE TABLE IF NOT EXISTS inbox ("
+						+ "seq BIGINT AUTO_INCREMENT PRIMARY KEY, "
+						+ "activity_id VARCHAR(2048), "
+						+ "type VARCHAR(64), "
+						+ "actor VARCHAR(2048), "
+						+ "object_id VARCHAR(2048), "
+						+ "recipient VARCHAR(2048), "
+						+ "received TIMESTAMP NOT NULL, "
+						+ "document BLOB)");
+				s.execute("CREATE INDEX IF NOT EXISTS inbox_object_id ON inbox (object_id)");
+			}
+			SqlDeliveryStore.createTables(conn);
+			SqlSigningKeyStore.createTables(conn);
+			SqlActorStore.createTables(conn);
+			SqlSeenActivityStore.createTables(conn);
+			SqlTimelineStore.createTables(conn);
+			SqlCollectionStore.createTables(conn);
+			return null;
+		});
+		SeenActivityIndex seen = SeenActivityIndex.builder(new SqlSeenActivityStore(ActiveDatabase.get())).build();
+		seen.warm();
+		timelines = TimelineCache.builder(new SqlTimelineStore(ActiveDatabase.get())).build();
+		collections = new OrderedCollections(new SqlCollectionStore(ActiveDatabase.get()), 50);
+		// Leave half the pool for everything else, or workers time out waiting for connections
+		int workers = Math.max(1, Math.min(Math.max(2, Runtime.getRuntime().availableProcessors()),
+				ActiveDatabase.get().getMaxConnections() / 2));
+		inbox = InboxPipeline.builder(ActiveDatabase.get(), new InboxProcessor() {
+					@Override
+					public void process(Connection conn, String objectId, List<InboxItem> items) throws SQLException {
+						store(conn, objectId, items);
+					}
+					@Override
+					public void committed(List<InboxItem> items) {
+						fanOut(items);
+					}
+				})
+				.dedup(seen)
+				.workers(workers)
+				.build();
+		inbox.start();
+		// One client for everything, so that connections to a server are shared between fetching
+		// its actors' keys and delivering to it
+		HttpClient client = HttpClient.newBuilder()
+				.connectTimeout(Duration.ofSeconds(10))
+				.followRedirects(HttpClient.Redirect.NEVER)
+				.build();
+		actors = RemoteActorCache.builder(RemoteActorCache.httpFetcher(client, Duration.ofSeconds(10), 256 * 1024))
+				.store(new SqlActorStore(ActiveDatabase.get()))
+				.build();
+		// Keys are found through the actor cache, so an actor we already know costs no fetch
+		keys = PublicKeyCache.builder(actors.keyFetcher()).build();
+		signatures = SignatureVerifier.builder(keys).build();
+		signingKeys = new SqlSigningKeyStore(ActiveDatabase.get());
+		delivery = DeliveryScheduler.builder(new SqlDeliveryStore(ActiveDatabase.get()))
+				.client(client)
+				.signers(HttpSigner.resolver(signingKeys))
+				.build();
+		delivery.start();
+	}
+	
+	@Override
+	public synchronized void shutdown() {
+		try {
+			if (delivery != null && !delivery.shutdown(30, TimeUnit.SECONDS)) {
+				log.warn("Gave up waiting for {} outbound deliveries", delivery.getInFlightCount());
+			}
+			if (inbox != null && !inbox.shutdown(30, TimeUnit.SECONDS)) {
+				log.warn("Gave up waiting for {} queued inbox activities", inbox.getQueueDepth());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (signatures != null) signatures.shutdown();
+		if (keys != null) keys.shutdown();
+		if (actors != null) actors.shutdown();
+		signatures = null;
+		keys = null;
+		actors = null;
+		timelines = null;
+		collections = null;
+		delivery = null;
+		signingKeys = null;
+		inbox = null;
+	}
+	
+	private void store(Connection conn, String objectId, List<InboxItem> items) throws SQLException {
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		try (PreparedStatement ps = conn.prepareStatement("INSERT INTO inbox "
+				+ "(activity_id, type, actor, object_id, recipient, received, document) VALUES (?, ?, ?, ?, ?, ?, ?)",
+				Statement.RETURN_GENERATED_KEYS)) {
+			for (InboxItem item : items) {
+				Activity a = item.getActivity();
+				ps.setString(1, a.getId());
+				ps.setString(2, a.getTypeName());
+				ps.setString(3, a.getActor());
+				ps.setString(4, objectId);
+				ps.setString(5, item.getRecipient());
+				ps.setTimestamp(6, now);
+				ps.setBytes(7, item.getDocument());
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			// The sequence number doubles as the timeline entry id, since it's ordered by arrival
+			// A driver that returns fewer keys than rows would leave posts off every timeline, so
+			// fail the batch and have it retried instead
+			try (ResultSet keys = ps.getGeneratedKeys()) {
+				int count = 0;
+				for (InboxItem item : items) {
+					if (!keys.next()) break;
+					item.setEntryId(keys.getLong(1));
+					count++;
+				}
+				if (count != items.size() || keys.next()) {
+					throw new SQLException("Got "+count+" generated keys for "+items.size()+" inbox rows");
+				}
+			}
+		}
+		// Items in one call act on the same object, so boosts of it are often by the same actor
+		Map<String, List<String>> followers = Maps.newHashMap();
+		for (InboxItem item : items) {
+			if (!isTimelineEntry(item)) continue;
+			List<String> owners = audienceOf(conn, item, followers);
+			if (owners.isEmpty()) continue;
+			SqlTimelineStore.add(conn, item.getEntryId(), owners);
+			item.setAudience(owners);
+		}
+		SqlSeenActivityStore.add(conn, items, now);
+	}
+	
+	/**
+	 * @return whether the item is a post, for home timelines
+	 */
+	private static boolean isTimelineEntry(InboxItem item) {
+		ActivityType type = item.getActivity().getType();
+		return item.getEntryId() >= 0 && (type == ActivityType.CREATE || type == ActivityType.ANNOUNCE);
+	}
+	
+	/**
+	 * Work out whose home timelines a post goes in: the local actor it was delivered to, if it
+	 * came to a personal inbox, and the local followers of its actor that may see it. That's all of
+	 * them if it's public or addressed to the actor's followers, and otherwise only the ones it
+	 * names, so that a direct or limited post never reaches followers it wasn't sent to.
+	 * @param followers followers already looked up in this transaction, by actor
+	 */
+	private List<String> audienceOf(Connection conn, InboxItem item, Map<String, List<String>> followers) throws SQLException {
+		Activity a = item.getActivity();
+		List<String> owners = Lists.newArrayList();
+		String actor = a.getActor();
+		if (actor != null) {
+			List<String> f = followers.get(actor);
+			if (f == null) {
+				f = SqlTimelineStore.followersOf(conn, actor);
+				followers.put(actor, f);
+			}
+			boolean toFollowers = a.isPublic() || a.isAddressedTo(followersCollectionOf(actor));
+			for (String follower : f) {
+				if (toFollowers || a.isAddressedTo(follower)) owners.add(follower);
+			}
+		}
+		String recipient = item.getRecipient();
+		if (recipient != null && !owners.contains(recipient)) {
+			owners.add(recipient);
+		}
+		return owners;
+	}
+	
+	/**
+	 * @return the id of an actor's followers collection, as their cached document gives it, or as
+	 * 		it's usually named if they aren't cached
+	 */
+	private String followersCollectionOf(String actor) {
+		RemoteActorCache actors = this.actors;
+		RemoteActor cached = actors == null ? null : actors.getIfPresent(actor);
+		String collection = cached == null ? null : cached.getFollowers();
+		return collection != null ? collection : actor + "/followers";
+	}
+	
+	private void fanOut(List<InboxItem> items) {
+		TimelineCache timelines = this.timelines;
+		if (timelines == null) return;
+		for (InboxItem item : items) {
+			timelines.offer(item.getEntryId(), item.getAudience());
+		}
+	}
+	
+}
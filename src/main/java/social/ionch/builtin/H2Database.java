@@ -0,0 +1,77 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.builtin;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import social.ionch.api.db.Database;
+import social.ionch.api.db.DatabaseException;
+
+/*package*/ final class H2Database implements Database {
+
+	private final String url;
+	private final JdbcConnectionPool pool;
+	
+	/*package*/ H2Database(String url, int maxConnections) {
+		this.url = url;
+		this.pool = JdbcConnectionPool.create(url, "", "");
+		pool.setMaxConnections(maxConnections);
+	}
+	
+	@Override
+	public String getUri() {
+		return url;
+	}
+	
+	@Override
+	public <T> T inTransaction(Transaction<T> work) throws DatabaseException {
+		try (Connection conn = pool.getConnection()) {
+			conn.setAutoCommit(false);
+			try {
+				T t = work.run(conn);
+				conn.commit();
+				return t;
+			} catch (SQLException | RuntimeException | Error e) {
+				try {
+					conn.rollback();
+				} catch (SQLException e2) {
+					e.addSuppressed(e2);
+				}
+				throw e;
+			} finally {
+				// Connections go back to the pool, and the next user expects the default
+				conn.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		}
+	}
+	
+	@Override
+	public int getMaxConnections() {
+		return pool.getMaxConnections();
+	}
+	
+	@Override
+	public void destroy() {
+		pool.dispose();
+	}
+	
+}
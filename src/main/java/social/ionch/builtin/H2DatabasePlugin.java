@@ -16,8 +16,6 @@
 
 package social.ionch.builtin;
 
-import org.h2.jdbcx.JdbcConnectionPool;
-
 import com.google.common.net.UrlEscapers;
 
 import com.playsawdust.chipper.toolbox.MoreStrings;
@@ -25,7 +23,6 @@
 import social.ionch.api.JsonObjectBuilder;
 import social.ionch.api.StandardVirtuals;
 import social.ionch.api.config.ConfigSectionHandler;
-import social.ionch.api.db.Database;
 import social.ionch.api.db.DatabaseFactory;
 import social.ionch.api.db.DatabaseFactoryRegistry;
 
@@ -41,19 +38,12 @@ public H2DatabasePlugin() {
 	private final DatabaseFactory factory = DatabaseFactory.from("h2", (config) -> {
 		String fileStr = MoreStrings.removeSuffix(config.get(String.class, "file"), ".mv.db");
 		String url = "jdbc:h2:"+UrlEscapers.urlPathSegmentEscaper().escape(fileStr).replace("%2F", "/")+";FILE_LOCK=FS;COMPRESS=true;DB_CLOSE_DELAY=30";
-		JdbcConnectionPool jcp = JdbcConnectionPool.create(url, "", "");
-		return new Database() {
-			
-			@Override
-			public String getUri() {
-				return url;
-			}
-			
-			@Override
-			public void destroy() {
-				jcp.dispose();
-			}
-		};
+		Integer maxConnections = config.get(Integer.class, "maxConnections");
+		if (maxConnections == null || maxConnections <= 0) {
+			// Enough for a busy inbox worker on every core, with room left over for everything else
+			maxConnections = Math.max(10, Runtime.getRuntime().availableProcessors() * 2);
+		}
+		return new H2Database(url, maxConnections);
 	});
 	
 	@Override
@@ -61,6 +51,7 @@ public void enable() {
 		DatabaseFactoryRegistry.register(factory);
 		ConfigSectionHandler.contributeSection("database.h2", new JsonObjectBuilder()
 				.put("file", "ionch.mv.db", "Must end in .mv.db")
+				.put("maxConnections", 0, "How many connections to pool. 0 picks twice the number of processors,\nand at least 10.")
 				.build(),
 			"Options for using the H2SQL database backend. H2SQL is a fast pure Java SQL database comparable\n" +
 			"to SQLite. It is ionChannel's default backend, and the recommended one for most users. H2SQL\n" +
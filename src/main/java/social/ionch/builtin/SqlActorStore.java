@@ -0,0 +1,89 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.builtin;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+import javax.annotation.Nullable;
+
+import social.ionch.api.activitypub.ActorStore;
+import social.ionch.api.db.Database;
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Keeps remote actor documents in a table, one row per actor.
+ */
+/*package*/ final class SqlActorStore implements ActorStore {
+
+	private final Database database;
+	
+	/*package*/ SqlActorStore(Database database) {
+		this.database = database;
+	}
+	
+	/*package*/ static void createTables(Connection conn) throws SQLException {
+		try (Statement s = conn.createStatement()) {
+			s.execute("CREATE TABLE IF NOT EXISTS remote_actor ("
+					+ "id VARCHAR(2048) PRIMARY KEY, "
+					+ "fetched TIMESTAMP NOT NULL, "
+					+ "document BLOB)");
+		}
+	}
+	
+	@Override
+	public @Nullable Stored load(String id) throws DatabaseException {
+		return database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("SELECT document, fetched FROM remote_actor WHERE id = ?")) {
+				ps.setString(1, id);
+				try (ResultSet rs = ps.executeQuery()) {
+					if (!rs.next()) return null;
+					return new Stored(rs.getBytes(1), rs.getTimestamp(2).getTime());
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void save(String id, @Nullable byte[] document, long fetchedMillis) throws DatabaseException {
+		database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("MERGE INTO remote_actor (id, fetched, document) KEY (id) VALUES (?, ?, ?)")) {
+				ps.setString(1, id);
+				ps.setTimestamp(2, new Timestamp(fetchedMillis));
+				ps.setBytes(3, document);
+				ps.executeUpdate();
+			}
+			return null;
+		});
+	}
+	
+	@Override
+	public void remove(String id) throws DatabaseException {
+		database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("DELETE FROM remote_actor WHERE id = ?")) {
+				ps.setString(1, id);
+				ps.executeUpdate();
+			}
+			return null;
+		});
+	}
+	
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.builtin;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+
+import social.ionch.api.activitypub.CollectionStore;
+import social.ionch.api.db.Database;
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Keeps follows and outboxes in tables ordered by an auto-increment sequence number, with an index
+ * per collection on its owner and sequence number, so that every page is a range scan starting
+ * from the cursor. The follow table itself belongs to {@link SqlTimelineStore}, which fans posts
+ * out along it, and has to be created first.
+ */
+/*package*/ final class SqlCollectionStore implements CollectionStore {
+
+	private final Database database;
+	
+	/*package*/ SqlCollectionStore(Database database) {
+		this.database = database;
+	}
+	
+	/*package*/ static void createTables(Connection conn) throws SQLException {
+		try (Statement s = conn.createStatement()) {
+			s.execute("CREATE INDEX IF NOT EXISTS follow_follower_seq ON follow (follower, seq DESC)");
+			s.execute("CREATE TABLE IF NOT EXISTS outbox ("
+					+ "seq BIGINT AUTO_INCREMENT PRIMARY KEY, "
+					+ "owner VARCHAR(2048) NOT NULL, "
+					+ "activity_id VARCHAR(2048) NOT NULL, "
+					+ "document BLOB)");
+			s.execute("CREATE INDEX IF NOT EXISTS outbox_owner_seq ON outbox (owner, seq DESC)");
+		}
+	}
+	
+	@Override
+	public long count(String owner, Kind kind) throws DatabaseException {
+		String sql;
+		switch (kind) {
+		case OUTBOX:    sql = "SELECT COUNT(*) FROM outbox WHERE owner = ?"; break;
+		case FOLLOWERS: sql = "SELECT COUNT(*) FROM follow WHERE followee = ?"; break;
+		case FOLLOWING: sql = "SELECT COUNT(*) FROM follow WHERE follower = ?"; break;
+		default: throw new AssertionError("Missing case for "+kind);
+		}
+		return database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement(sql)) {
+				ps.setString(1, owner);
+				try (ResultSet rs = ps.executeQuery()) {
+					return rs.next() ? rs.getLong(1) : 0L;
+				}
+			}
+		});
+	}
+	
+	@Override
+	public Page page(String owner, Kind kind, long beforeSeq, int limit) throws DatabaseException {
+		String sql;
+		switch (kind) {
+		case OUTBOX:    sql = "SELECT seq, activity_id, document FROM outbox WHERE owner = ? AND seq < ? ORDER BY seq DESC LIMIT ?"; break;
+		case FOLLOWERS: sql = "SELECT seq, follower, NULL FROM follow WHERE followee = ? AND seq < ? ORDER BY seq DESC LIMIT ?"; break;
+		case FOLLOWING: sql = "SELECT seq, followee, NULL FROM follow WHERE follower = ? AND seq < ? ORDER BY seq DESC LIMIT ?"; break;
+		default: throw new AssertionError("Missing case for "+kind);
+		}
+		return database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement(sql)) {
+				ps.setString(1, owner);
+				ps.setLong(2, beforeSeq);
+				// One more than asked for, to know whether there's a next page
+				ps.setInt(3, limit + 1);
+				List<Item> items = Lists.newArrayListWithCapacity(Math.min(limit, 256));
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next()) {
+						if (items.size() == limit) return new Page(items, items.get(limit - 1).getSeq());
+						items.add(new Item(rs.getLong(1), rs.getString(2), rs.getBytes(3)));
+					}
+				}
+				return new Page(items, -1);
+			}
+		});
+	}
+	
+	@Override
+	public void follow(String follower, String followee) throws DatabaseException {
+		database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("MERGE INTO follow (follower, followee) KEY (follower, followee) VALUES (?, ?)")) {
+				ps.setString(1, follower);
+				ps.setString(2, followee);
+				ps.executeUpdate();
+			}
+			return null;
+		});
+	}
+	
+	@Override
+	public void unfollow(String follower, String followee) throws DatabaseException {
+		database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("DELETE FROM follow WHERE follower = ? AND followee = ?")) {
+				ps.setString(1, follower);
+				ps.setString(2, followee);
+				ps.executeUpdate();
+			}
+			return null;
+		});
+	}
+	
+	@Override
+	public void addToOutbox(String owner, String activityId, @Nullable byte[] document) throws DatabaseException {
+		database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("INSERT INTO outbox (owner, activity_id, document) VALUES (?, ?, ?)")) {
+				ps.setString(1, owner);
+				ps.setString(2, activityId);
+				ps.setBytes(3, document);
+				ps.executeUpdate();
+			}
+			return null;
+		});
+	}
+	
+}
@@ -0,0 +1,162 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.builtin;
+
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import social.ionch.api.activitypub.Delivery;
+import social.ionch.api.activitypub.DeliveryStore;
+import social.ionch.api.db.Database;
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Keeps pending deliveries in two tables: one row per body, and one per inbox it's going to, so
+ * an activity going to hundreds of servers is only stored once.
+ */
+/*package*/ final class SqlDeliveryStore implements DeliveryStore {
+
+	private final Database database;
+	
+	/*package*/ SqlDeliveryStore(Database database) {
+		this.database = database;
+	}
+	
+	/*package*/ static void createTables(Connection conn) throws SQLException {
+		try (Statement s = conn.createStatement()) {
+			s.execute("CREATE TABLE IF NOT EXISTS delivery_body ("
+					+ "id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+					+ "body BLOB NOT NULL, "
+					+ "key_id VARCHAR(2048))");
+			// Tables made before deliveries were signed per sender
+			s.execute("ALTER TABLE delivery_body ADD COLUMN IF NOT EXISTS key_id VARCHAR(2048)");
+			s.execute("CREATE TABLE IF NOT EXISTS delivery ("
+					+ "id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+					+ "body_id BIGINT NOT NULL REFERENCES delivery_body (id), "
+					+ "target VARCHAR(2048) NOT NULL, "
+					+ "attempts INT NOT NULL, "
+					+ "next_attempt TIMESTAMP NOT NULL)");
+			s.execute("CREATE INDEX IF NOT EXISTS delivery_body_id ON delivery (body_id)");
+		}
+	}
+	
+	@Override
+	public long[] add(byte[] body, @Nullable String keyId, List<URI> targets) throws DatabaseException {
+		return database.inTransaction(conn -> {
+			long bodyId;
+			try (PreparedStatement ps = conn.prepareStatement("INSERT INTO delivery_body (body, key_id) VALUES (?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+				ps.setBytes(1, body);
+				ps.setString(2, keyId);
+				ps.executeUpdate();
+				bodyId = generatedKey(ps);
+			}
+			long[] ids = new long[targets.size()];
+			try (PreparedStatement ps = conn.prepareStatement("INSERT INTO delivery (body_id, target, attempts, next_attempt) VALUES (?, ?, 0, ?)", Statement.RETURN_GENERATED_KEYS)) {
+				Timestamp now = new Timestamp(System.currentTimeMillis());
+				for (int i = 0; i < ids.length; i++) {
+					ps.setLong(1, bodyId);
+					ps.setString(2, targets.get(i).toString());
+					ps.setTimestamp(3, now);
+					ps.executeUpdate();
+					ids[i] = generatedKey(ps);
+				}
+			}
+			return ids;
+		});
+	}
+	
+	private static long generatedKey(PreparedStatement ps) throws SQLException {
+		try (ResultSet rs = ps.getGeneratedKeys()) {
+			if (!rs.next()) throw new SQLException("No key generated");
+			return rs.getLong(1);
+		}
+	}
+	
+	@Override
+	public void reschedule(Delivery delivery) throws DatabaseException {
+		database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("UPDATE delivery SET attempts = ?, next_attempt = ? WHERE id = ?")) {
+				ps.setInt(1, delivery.getAttempts());
+				ps.setTimestamp(2, new Timestamp(delivery.getNextAttemptMillis()));
+				ps.setLong(3, delivery.getId());
+				ps.executeUpdate();
+			}
+			return null;
+		});
+	}
+	
+	@Override
+	public void remove(Delivery delivery) throws DatabaseException {
+		database.inTransaction(conn -> {
+			long bodyId;
+			try (PreparedStatement ps = conn.prepareStatement("SELECT body_id FROM delivery WHERE id = ?")) {
+				ps.setLong(1, delivery.getId());
+				try (ResultSet rs = ps.executeQuery()) {
+					if (!rs.next()) return null;
+					bodyId = rs.getLong(1);
+				}
+			}
+			try (PreparedStatement ps = conn.prepareStatement("DELETE FROM delivery WHERE id = ?")) {
+				ps.setLong(1, delivery.getId());
+				ps.executeUpdate();
+			}
+			try (PreparedStatement ps = conn.prepareStatement("DELETE FROM delivery_body WHERE id = ? "
+					+ "AND NOT EXISTS (SELECT 1 FROM delivery WHERE body_id = ?)")) {
+				ps.setLong(1, bodyId);
+				ps.setLong(2, bodyId);
+				ps.executeUpdate();
+			}
+			return null;
+		});
+	}
+	
+	@Override
+	public List<Delivery> loadPending() throws DatabaseException {
+		return database.inTransaction(conn -> {
+			List<Delivery> out = Lists.newArrayList();
+			// Bodies are shared between the deliveries of one activity in memory too
+			Map<Long, byte[]> bodies = Maps.newHashMap();
+			try (Statement s = conn.createStatement();
+					ResultSet rs = s.executeQuery("SELECT d.id, d.body_id, d.target, d.attempts, d.next_attempt, b.body, b.key_id "
+							+ "FROM delivery d JOIN delivery_body b ON b.id = d.body_id ORDER BY d.next_attempt")) {
+				while (rs.next()) {
+					long bodyId = rs.getLong(2);
+					byte[] body = bodies.get(bodyId);
+					if (body == null) {
+						body = rs.getBytes(6);
+						bodies.put(bodyId, body);
+					}
+					out.add(new Delivery(rs.getLong(1), URI.create(rs.getString(3)), body, rs.getString(7), rs.getInt(4), rs.getTimestamp(5).getTime()));
+				}
+			}
+			return out;
+		});
+	}
+	
+}
@@ -0,0 +1,108 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.builtin;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.function.Consumer;
+
+import social.ionch.api.activitypub.InboxItem;
+import social.ionch.api.activitypub.SeenActivityIndex;
+import social.ionch.api.activitypub.SeenActivityStore;
+import social.ionch.api.db.Database;
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Keeps the hashes of processed activity ids, with the inbox each arrived at, in a table, with the primary key as the index.
+ */
+/*package*/ final class SqlSeenActivityStore implements SeenActivityStore {
+
+	private final Database database;
+	
+	/*package*/ SqlSeenActivityStore(Database database) {
+		this.database = database;
+	}
+	
+	/*package*/ static void createTables(Connection conn) throws SQLException {
+		try (Statement s = conn.createStatement()) {
+			s.execute("CREATE TABLE IF NOT EXISTS seen_activity ("
+					+ "hash BINARY(16) PRIMARY KEY, "
+					+ "seen TIMESTAMP NOT NULL)");
+			s.execute("CREATE INDEX IF NOT EXISTS seen_activity_seen ON seen_activity (seen)");
+		}
+	}
+	
+	/**
+	 * Record the activities in a batch as seen, as part of the transaction that processes them.
+	 */
+	/*package*/ static void add(Connection conn, List<InboxItem> items, Timestamp now) throws SQLException {
+		try (PreparedStatement ps = conn.prepareStatement("MERGE INTO seen_activity (hash, seen) KEY (hash) VALUES (?, ?)")) {
+			for (InboxItem item : items) {
+				String id = item.getActivity().getId();
+				if (id == null) continue;
+				ps.setBytes(1, SeenActivityIndex.hash(id, item.getRecipient()));
+				ps.setTimestamp(2, now);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+	}
+	
+	@Override
+	public boolean contains(byte[] hash) throws DatabaseException {
+		return database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM seen_activity WHERE hash = ?")) {
+				ps.setBytes(1, hash);
+				try (ResultSet rs = ps.executeQuery()) {
+					return rs.next();
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void forEachSince(long sinceMillis, Consumer<byte[]> action) throws DatabaseException {
+		database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("SELECT hash FROM seen_activity WHERE seen >= ?")) {
+				ps.setTimestamp(1, new Timestamp(sinceMillis));
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next()) {
+						action.accept(rs.getBytes(1));
+					}
+				}
+			}
+			return null;
+		});
+	}
+	
+	@Override
+	public void prune(long beforeMillis) throws DatabaseException {
+		database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("DELETE FROM seen_activity WHERE seen < ?")) {
+				ps.setTimestamp(1, new Timestamp(beforeMillis));
+				ps.executeUpdate();
+			}
+			return null;
+		});
+	}
+	
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.builtin;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.annotation.Nullable;
+
+import social.ionch.api.activitypub.SigningKeyStore;
+import social.ionch.api.db.Database;
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Keeps local actors' RSA private keys in a table, PKCS#8 encoded, one row per key.
+ */
+/*package*/ final class SqlSigningKeyStore implements SigningKeyStore {
+
+	private final Database database;
+	
+	/*package*/ SqlSigningKeyStore(Database database) {
+		this.database = database;
+	}
+	
+	/*package*/ static void createTables(Connection conn) throws SQLException {
+		try (Statement s = conn.createStatement()) {
+			s.execute("CREATE TABLE IF NOT EXISTS signing_key ("
+					+ "key_id VARCHAR(2048) PRIMARY KEY, "
+					+ "private_key BLOB NOT NULL)");
+		}
+	}
+	
+	@Override
+	public @Nullable PrivateKey load(String keyId) throws DatabaseException {
+		byte[] encoded = database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("SELECT private_key FROM signing_key WHERE key_id = ?")) {
+				ps.setString(1, keyId);
+				try (ResultSet rs = ps.executeQuery()) {
+					return rs.next() ? rs.getBytes(1) : null;
+				}
+			}
+		});
+		if (encoded == null) return null;
+		try {
+			return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(encoded));
+		} catch (GeneralSecurityException e) {
+			throw new DatabaseException("Stored key "+keyId+" is unreadable", e);
+		}
+	}
+	
+	@Override
+	public void save(String keyId, PrivateKey key) throws DatabaseException {
+		database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("MERGE INTO signing_key (key_id, private_key) KEY (key_id) VALUES (?, ?)")) {
+				ps.setString(1, keyId);
+				ps.setBytes(2, key.getEncoded());
+				ps.executeUpdate();
+			}
+			return null;
+		});
+	}
+	
+	@Override
+	public void remove(String keyId) throws DatabaseException {
+		database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("DELETE FROM signing_key WHERE key_id = ?")) {
+				ps.setString(1, keyId);
+				ps.executeUpdate();
+			}
+			return null;
+		});
+	}
+	
+}
@@ -0,0 +1,122 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.builtin;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import social.ionch.api.activitypub.TimelineStore;
+import social.ionch.api.db.Database;
+import social.ionch.api.db.DatabaseException;
+
+/**
+ * Keeps timelines in a table of owner and entry id pairs, indexed so that a page is one range scan
+ * from where the last one ended. Also keeps the follow table that posts are fanned out along.
+ */
+/*package*/ final class SqlTimelineStore implements TimelineStore {
+
+	private final Database database;
+	
+	/*package*/ SqlTimelineStore(Database database) {
+		this.database = database;
+	}
+	
+	/*package*/ static void createTables(Connection conn) throws SQLException {
+		try (Statement s = conn.createStatement()) {
+			s.execute("CREATE TABLE IF NOT EXISTS timeline ("
+					+ "owner VARCHAR(2048) NOT NULL, "
+					+ "entry_id BIGINT NOT NULL, "
+					+ "PRIMARY KEY (owner, entry_id))");
+			s.execute("CREATE INDEX IF NOT EXISTS timeline_owner_entry_desc ON timeline (owner, entry_id DESC)");
+			s.execute("CREATE TABLE IF NOT EXISTS follow ("
+					+ "seq BIGINT AUTO_INCREMENT PRIMARY KEY, "
+					+ "follower VARCHAR(2048) NOT NULL, "
+					+ "followee VARCHAR(2048) NOT NULL, "
+					+ "UNIQUE (follower, followee))");
+			s.execute("CREATE INDEX IF NOT EXISTS follow_followee_seq ON follow (followee, seq DESC)");
+		}
+	}
+	
+	/**
+	 * Add an entry to timelines as part of a transaction already under way.
+	 */
+	/*package*/ static void add(Connection conn, long entryId, Collection<String> owners) throws SQLException {
+		try (PreparedStatement ps = conn.prepareStatement("MERGE INTO timeline (owner, entry_id) KEY (owner, entry_id) VALUES (?, ?)")) {
+			for (String owner : owners) {
+				ps.setString(1, owner);
+				ps.setLong(2, entryId);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+	}
+	
+	/**
+	 * @return every actor following the given one that this server knows of, which for a remote
+	 * 		actor means the local actors following them, read as part of a transaction already under
+	 * 		way
+	 */
+	/*package*/ static List<String> followersOf(Connection conn, String followee) throws SQLException {
+		try (PreparedStatement ps = conn.prepareStatement("SELECT follower FROM follow WHERE followee = ?")) {
+			ps.setString(1, followee);
+			List<String> out = Lists.newArrayList();
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					out.add(rs.getString(1));
+				}
+			}
+			return out;
+		}
+	}
+	
+	@Override
+	public void add(long entryId, Collection<String> owners) throws DatabaseException {
+		database.inTransaction(conn -> {
+			add(conn, entryId, owners);
+			return null;
+		});
+	}
+	
+	@Override
+	public long[] page(String owner, long beforeId, int limit) throws DatabaseException {
+		return database.inTransaction(conn -> {
+			try (PreparedStatement ps = conn.prepareStatement("SELECT entry_id FROM timeline "
+					+ "WHERE owner = ? AND entry_id < ? ORDER BY entry_id DESC LIMIT ?")) {
+				ps.setString(1, owner);
+				ps.setLong(2, beforeId);
+				ps.setInt(3, limit);
+				long[] ids = new long[limit];
+				int n = 0;
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next() && n < limit) {
+						ids[n++] = rs.getLong(1);
+					}
+				}
+				return n == limit ? ids : Arrays.copyOf(ids, n);
+			}
+		});
+	}
+	
+}
@@ -0,0 +1,335 @@
+/*
+ * This file is part of ionChannel.
+ *
+ * ionChannel is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, version 3.
+ *
+ * ionChannel is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with ionChannel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package social.ionch.api.activitypub;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import javax.annotation.Nullable;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs a {@link DeliveryScheduler} against a stub HTTP server on localhost, which can be told to
+ * be slow, fail, or ask for a delay.
+ */
+public class DeliverySchedulerTest {
+	private static final byte[] BODY = "{\"type\":\"Create\"}".getBytes(StandardCharsets.UTF_8);
+
+	/** Decides the status and headers for each request the stub server gets. */
+	private interface Responder {
+		int respond(HttpExchange exchange, int requestNumber) throws IOException, InterruptedException;
+	}
+
+	private HttpServer server;
+	private HttpClient client;
+	private volatile Responder responder = (exchange, n) -> 202;
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger concurrent = new AtomicInteger();
+	private final AtomicInteger maxConcurrent = new AtomicInteger();
+	private final ConcurrentLinkedQueue<Long> requestTimes = new ConcurrentLinkedQueue<>();
+	private final List<DeliveryScheduler> schedulers = Lists.newArrayList();
+
+	@BeforeEach
+	public void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			int n = requests.incrementAndGet();
+			requestTimes.add(System.nanoTime());
+			maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+			try (InputStream in = exchange.getRequestBody()) {
+				in.readAllBytes();
+				int status = responder.respond(exchange, n);
+				exchange.sendResponseHeaders(status, -1);
+			} catch (InterruptedException e) {
+				exchange.sendResponseHeaders(500, -1);
+			} finally {
+				concurrent.decrementAndGet();
+				exchange.close();
+			}
+		});
+		server.start();
+		client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+	}
+
+	@AfterEach
+	public void stopServer() throws InterruptedException {
+		for (DeliveryScheduler scheduler : schedulers) {
+			scheduler.shutdown(5, TimeUnit.SECONDS);
+		}
+		server.stop(0);
+	}
+
+	private URI inbox(String path) {
+		return URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path);
+	}
+
+	private DeliveryScheduler.Builder scheduler(DeliveryStore store) {
+		return DeliveryScheduler.builder(store)
+				.client(client)
+				.baseDelay(20, TimeUnit.MILLISECONDS)
+				.maxDelay(5, TimeUnit.SECONDS);
+	}
+
+	private DeliveryScheduler started(DeliveryScheduler.Builder builder) {
+		DeliveryScheduler scheduler = builder.build();
+		schedulers.add(scheduler);
+		scheduler.start();
+		return scheduler;
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > deadline) throw new AssertionError("Timed out");
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void limitsRequestsInFlightPerHost() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		responder = (exchange, n) -> {
+			release.await();
+			return 202;
+		};
+		MemoryStore store = new MemoryStore();
+		DeliveryScheduler scheduler = started(scheduler(store).maxConcurrencyPerHost(2));
+		List<URI> inboxes = Lists.newArrayList();
+		for (int i = 0; i < 10; i++) {
+			inboxes.add(inbox("/users/" + i + "/inbox"));
+		}
+		assertEquals(10, scheduler.deliver(BODY, null, inboxes));
+		await(() -> requests.get() == 2);
+		// Give any request that shouldn't have been sent time to show up
+		Thread.sleep(200);
+		assertEquals(2, requests.get());
+		assertEquals(8, scheduler.getQueuedCount());
+		release.countDown();
+		await(() -> scheduler.getDeliveredCount() == 10);
+		assertEquals(2, maxConcurrent.get());
+		assertTrue(store.pending.isEmpty());
+	}
+
+	@Test
+	public void backsOffBetweenAttempts() throws Exception {
+		responder = (exchange, n) -> n < 3 ? 503 : 202;
+		MemoryStore store = new MemoryStore();
+		DeliveryScheduler scheduler = started(scheduler(store).baseDelay(100, TimeUnit.MILLISECONDS));
+		scheduler.deliver(BODY, null, Collections.singletonList(inbox("/inbox")));
+		await(() -> scheduler.getDeliveredCount() == 1);
+		assertEquals(3, requests.get());
+		assertEquals(2, scheduler.getRetriedCount());
+		Long[] times = requestTimes.toArray(new Long[0]);
+		// Between half and all of 100ms, then of 200ms
+		assertTrue(times[1] - times[0] >= TimeUnit.MILLISECONDS.toNanos(50), "first retry came too soon");
+		assertTrue(times[2] - times[1] >= TimeUnit.MILLISECONDS.toNanos(100), "second retry came too soon");
+		assertTrue(store.pending.isEmpty());
+	}
+
+	@Test
+	public void backoffStaysWithinBounds() {
+		DeliveryScheduler scheduler = scheduler(DeliveryStore.NONE)
+				.baseDelay(1, TimeUnit.SECONDS)
+				.maxDelay(1, TimeUnit.MINUTES)
+				.build();
+		for (int attempts = 0; attempts < 40; attempts++) {
+			long ceiling = Math.min(TimeUnit.SECONDS.toMillis(1L << Math.min(attempts, 30)), TimeUnit.MINUTES.toMillis(1));
+			for (int i = 0; i < 100; i++) {
+				long delay = scheduler.backoff(attempts);
+				assertTrue(delay >= ceiling / 2 && delay <= ceiling, "delay " + delay + " for " + attempts + " attempts");
+			}
+		}
+	}
+
+	@Test
+	public void honoursRetryAfter() throws Exception {
+		responder = (exchange, n) -> {
+			if (n > 1) return 202;
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			return 429;
+		};
+		DeliveryScheduler scheduler = started(scheduler(new MemoryStore()));
+		scheduler.deliver(BODY, null, Collections.singletonList(inbox("/inbox")));
+		await(() -> scheduler.getDeliveredCount() == 1);
+		Long[] times = requestTimes.toArray(new Long[0]);
+		assertTrue(times[1] - times[0] >= TimeUnit.MILLISECONDS.toNanos(1000), "retried before Retry-After was up");
+	}
+
+	@Test
+	public void givesUpOnPermanentFailures() throws Exception {
+		responder = (exchange, n) -> exchange.getRequestURI().getPath().equals("/gone") ? 410 : 400;
+		MemoryStore store = new MemoryStore();
+		DeliveryScheduler scheduler = started(scheduler(store));
+		scheduler.deliver(BODY, null, Lists.newArrayList(inbox("/gone"), inbox("/bad")));
+		await(() -> scheduler.getFailedCount() == 2);
+		Thread.sleep(200);
+		assertEquals(2, requests.get());
+		assertEquals(0, scheduler.getRetriedCount());
+		assertTrue(store.pending.isEmpty());
+	}
+
+	@Test
+	public void givesUpAfterMaxAttempts() throws Exception {
+		responder = (exchange, n) -> 500;
+		MemoryStore store = new MemoryStore();
+		DeliveryScheduler scheduler = started(scheduler(store).maxAttempts(3).baseDelay(1, TimeUnit.MILLISECONDS));
+		scheduler.deliver(BODY, null, Collections.singletonList(inbox("/inbox")));
+		await(() -> scheduler.getFailedCount() == 1);
+		assertEquals(3, requests.get());
+		assertTrue(store.pending.isEmpty());
+	}
+
+	@Test
+	public void resumesPendingDeliveriesAfterRestart() throws Exception {
+		responder = (exchange, n) -> 503;
+		MemoryStore store = new MemoryStore();
+		DeliveryScheduler first = started(scheduler(store).baseDelay(300, TimeUnit.MILLISECONDS));
+		first.deliver(BODY, null, Lists.newArrayList(inbox("/a"), inbox("/b")));
+		await(() -> first.getRetriedCount() == 2);
+		assertTrue(first.shutdown(5, TimeUnit.SECONDS));
+		assertEquals(2, store.pending.size());
+		for (Delivery d : store.pending.values()) {
+			assertEquals(1, d.getAttempts());
+		}
+
+		responder = (exchange, n) -> 202;
+		DeliveryScheduler second = started(scheduler(store));
+		await(() -> second.getDeliveredCount() == 2);
+		assertEquals(4, requests.get());
+		assertTrue(store.pending.isEmpty());
+	}
+
+	@Test
+	public void survivesManyRequestsFailingOnTheSpot() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		responder = (exchange, n) -> {
+			release.await();
+			return 202;
+		};
+		// Every request but the first fails before it's sent, while the first holds the only slot
+		DeliveryScheduler.RequestSigner signer = (request, delivery) -> {
+			if (!delivery.getTarget().getPath().equals("/slow")) throw new IllegalStateException("No key");
+		};
+		MemoryStore store = new MemoryStore();
+		DeliveryScheduler scheduler = started(scheduler(store).signers(keyId -> signer).maxConcurrencyPerHost(1).maxAttempts(1));
+		List<URI> inboxes = Lists.newArrayList(inbox("/slow"));
+		for (int i = 0; i < 20000; i++) {
+			inboxes.add(inbox("/fail/" + i));
+		}
+		scheduler.deliver(BODY, "https://example.com/users/a#main-key", inboxes);
+		await(() -> requests.get() == 1);
+		release.countDown();
+		await(() -> scheduler.getDeliveredCount() == 1 && scheduler.getFailedCount() == 20000);
+		assertTrue(store.pending.isEmpty());
+	}
+
+	@Test
+	public void signsWithTheSendersKey() throws Exception {
+		Map<String, String> signatures = Maps.newConcurrentMap();
+		responder = (exchange, n) -> {
+			String signature = exchange.getRequestHeaders().getFirst("Signature");
+			if (signature != null) signatures.put(exchange.getRequestURI().getPath(), signature);
+			return 202;
+		};
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		Map<String, HttpSigner> signers = Maps.newHashMap();
+		for (String keyId : new String[] { "https://example.com/users/a#main-key", "https://example.com/users/b#main-key" }) {
+			signers.put(keyId, new HttpSigner(keyId, generator.generateKeyPair().getPrivate()));
+		}
+		DeliveryScheduler scheduler = started(scheduler(new MemoryStore()).signers(signers::get));
+		scheduler.deliver(BODY, "https://example.com/users/a#main-key", Collections.singletonList(inbox("/a")));
+		scheduler.deliver(BODY, "https://example.com/users/b#main-key", Collections.singletonList(inbox("/b")));
+		scheduler.deliver(BODY, null, Collections.singletonList(inbox("/anonymous")));
+		await(() -> scheduler.getDeliveredCount() == 3);
+		assertEquals("https://example.com/users/a#main-key", HttpSignature.parse(signatures.get("/a")).getKeyId());
+		assertEquals("https://example.com/users/b#main-key", HttpSignature.parse(signatures.get("/b")).getKeyId());
+		assertFalse(signatures.containsKey("/anonymous"), "unsigned delivery was signed");
+	}
+
+	@Test
+	public void dropsDeliveriesWhoseKeyIsGone() throws Exception {
+		MemoryStore store = new MemoryStore();
+		DeliveryScheduler scheduler = started(scheduler(store));
+		scheduler.deliver(BODY, "https://example.com/users/deleted#main-key", Collections.singletonList(inbox("/inbox")));
+		await(() -> scheduler.getFailedCount() == 1);
+		assertEquals(0, requests.get());
+		assertTrue(store.pending.isEmpty());
+	}
+
+	/** Keeps deliveries in memory, so that one scheduler can pick up where another left off. */
+	private static final class MemoryStore implements DeliveryStore {
+		private final AtomicLong ids = new AtomicLong();
+		final Map<Long, Delivery> pending = Maps.newConcurrentMap();
+
+		@Override
+		public long[] add(byte[] body, @Nullable String keyId, List<URI> targets) {
+			long[] result = new long[targets.size()];
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < result.length; i++) {
+				result[i] = ids.incrementAndGet();
+				pending.put(result[i], new Delivery(result[i], targets.get(i), body, keyId, 0, now));
+			}
+			return result;
+		}
+
+		@Override
+		public void reschedule(Delivery delivery) {
+			pending.put(delivery.getId(), delivery);
+		}
+
+		@Override
+		public void remove(Delivery delivery) {
+			pending.remove(delivery.getId());
+		}
+
+		@Override
+		public List<Delivery> loadPending() {
+			return Lists.newArrayList(pending.values());
+		}
+	}
+
+}